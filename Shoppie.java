@@ -1,33 +1,235 @@
+package shoppie;
+
 import javax.swing.*;
+import javax.swing.border.Border;
 import javax.swing.border.EmptyBorder;
+import javax.swing.border.LineBorder;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.event.PopupMenuEvent;
+import javax.swing.event.PopupMenuListener;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
 import com.mongodb.client.*;
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoServerException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.PushOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.result.UpdateResult;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.conversions.Bson;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonParseException;
+import org.bson.json.JsonWriterSettings;
+import org.bson.types.ObjectId;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.BufferedImage;
+import java.beans.PropertyChangeListener;
+import java.beans.PropertyChangeSupport;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
 import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.time.Instant;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
 
-public class OnlineGarmentShoppingApp {
+class OnlineGarmentShoppingApp {
     static final String MONGO_URI = "mongodb://localhost:27017";
     static final String DATABASE_NAME = "garment_shop";
     static final String USERS_COLLECTION = "users";
     static final String GARMENTS_COLLECTION = "garments";
     static final String CART_COLLECTION = "shopping_cart";
     static final String ORDERS_COLLECTION = "orders";
+    static final String ORDER_HEADERS_COLLECTION = "order_headers";
+    static final String INVENTORY_COLLECTION = "inventory";
+    static final String RESERVATIONS_COLLECTION = "reservations";
+    static final int CATALOG_PAGE_SIZE = Integer.getInteger("shoppie.catalogPageSize", 60);
+    static final int ORDER_PAGE_SIZE = Integer.getInteger("shoppie.orderPageSize", 30);
+    static final int CATALOG_LOAD_PAGE_SIZE = 500;
+    static final long CATALOG_POLL_MS = Long.getLong("shoppie.catalogPollMs", 5000);
+    static final long PASSWORD_HASH_TARGET_MS = Long.getLong("shoppie.passwordHashTargetMs", 100);
+    static final int PASSWORD_HASH_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    static final int SEARCH_RESULT_LIMIT = 2000;
+    static final boolean VERIFY_QUERY_PLANS = Boolean.getBoolean("shoppie.verifyQueryPlans");
+    static final int MIN_POOL_SIZE = 2;
+    static final String STORE_TYPE = System.getProperty("shoppie.store", "mongo");
+    // Where -Dshoppie.store=remote clients find the shop service, and the port --serve listens on by default
+    static final String SERVICE_URL = System.getProperty("shoppie.serviceUrl", "http://localhost:8086");
+    static final int SERVICE_PORT = 8086;
+    // The PKCS12 keystore --serve takes its TLS certificate from; without one it only binds to loopback
+    static final String SERVICE_KEYSTORE = System.getProperty("shoppie.serviceKeystore");
+    static final String SERVICE_KEYSTORE_PASSWORD = System.getProperty("shoppie.serviceKeystorePassword", "");
+    // Shared secret for catalog and stock writes through the service, and how long a shopper's sign-in lasts there
+    static final String ADMIN_TOKEN = System.getProperty("shoppie.adminToken");
+    static final long SESSION_MS = Long.getLong("shoppie.sessionMs", 12 * 60 * 60 * 1000);
+    // Counters each size's stock is split over, how long a cart holds stock before it
+    // goes back on sale, and how often lapsed holds are returned and shards evened out
+    static final int INVENTORY_SHARDS = Integer.getInteger("shoppie.inventoryShards", 8);
+    static final long RESERVATION_MS = Long.getLong("shoppie.reservationMs", 15 * 60 * 1000);
+    static final long INVENTORY_RECONCILE_MS = Long.getLong("shoppie.inventoryReconcileMs", 30000);
+    static final int SAMPLE_STOCK = 25;
+    // Keeps an offline copy of the catalog and carts in this directory when set, and how often it syncs
+    static final String OFFLINE_DIR = System.getProperty("shoppie.offlineDir");
+    static final long OFFLINE_SYNC_MS = Long.getLong("shoppie.offlineSyncMs", 5000);
+    static final long DATA_TIMEOUT_MS = Long.getLong("shoppie.dataTimeoutMs", 10000);
+    static final int CART_FLUSH_INTERVAL_MS = Integer.getInteger("shoppie.cartFlushIntervalMs", 1500);
+    // How often metrics are written out (0 turns the export off) and where to; the console when unset
+    static final long METRICS_EXPORT_MS = Long.getLong("shoppie.metricsExportMs", 60000);
+    static final String METRICS_FILE = System.getProperty("shoppie.metricsFile");
+    static final long EDT_STALL_MS = Long.getLong("shoppie.edtStallMs", 250);
+    // Operation ids of the latest adds, kept on each cart line so retries are recognised
+    static final String RECENT_OPS_FIELD = "recentOps";
+    static final int RECENT_OPS_KEPT = 16;
 
     private JFrame frame;
     private JTextField usernameField;
     private JPasswordField passwordField;
-    private MongoClient mongoClient;
-    private MongoDatabase database;
+    private final CompletableFuture<ShopStore> connected;
     private String currentUser;
     private static final Dimension STANDARD_SIZE = new Dimension(1200, 800);
     private static final Dimension ITEM_SIZE = new Dimension(300, 200);
     private static final Dimension SIDEBAR_SIZE = new Dimension(250, STANDARD_SIZE.height);
+    // Offered for garments stored without a list of sizes
+    private static final List<String> DEFAULT_SIZES = List.of("S", "M", "L", "XL");
 
     // Color schemes for monochromatic design
     private static class ColorScheme {
@@ -64,7 +266,128 @@ public class OnlineGarmentShoppingApp {
         new Color(20, 20, 20)     // Background
     );
 
-    private ColorScheme currentScheme = LIGHT_SCHEME;
+    private final Theme theme = new Theme(LIGHT_SCHEME);
+
+    // Named colours of a scheme that components are bound to instead of fixed colours
+    private enum ThemeRole {
+        PRIMARY, SECONDARY, ACCENT, TEXT, BACKGROUND;
+
+        Color in(ColorScheme scheme) {
+            switch (this) {
+                case PRIMARY:
+                    return scheme.primaryColor;
+                case SECONDARY:
+                    return scheme.secondaryColor;
+                case ACCENT:
+                    return scheme.accentColor;
+                case TEXT:
+                    return scheme.textColor;
+                default:
+                    return scheme.backgroundColor;
+            }
+        }
+    }
+
+    // Colours components by role. Switching schemes recolours only the bound
+    // components that are showing right now and then broadcasts a "scheme"
+    // property change, so it costs the same however large the catalog is.
+    // Components that are hidden, such as spare product cards, catch up when they
+    // are next shown, and themed line borders look their colour up as they paint.
+    private static class Theme {
+        private static final String BACKGROUND_KEY = "Theme.background";
+        private static final String FOREGROUND_KEY = "Theme.foreground";
+        private static final String VERSION_KEY = "Theme.version";
+
+        private ColorScheme scheme;
+        private int version;
+        private final Set<JComponent> showing = Collections.newSetFromMap(new WeakHashMap<>());
+        private final PropertyChangeSupport changes = new PropertyChangeSupport(this);
+        private final HierarchyListener tracker = e -> {
+            if ((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0) {
+                track((JComponent) e.getComponent());
+            }
+        };
+
+        Theme(ColorScheme scheme) {
+            this.scheme = scheme;
+        }
+
+        ColorScheme scheme() {
+            return scheme;
+        }
+
+        Color color(ThemeRole role) {
+            return role.in(scheme);
+        }
+
+        void background(JComponent component, ThemeRole role) {
+            component.putClientProperty(BACKGROUND_KEY, role);
+            bind(component);
+        }
+
+        void foreground(JComponent component, ThemeRole role) {
+            component.putClientProperty(FOREGROUND_KEY, role);
+            bind(component);
+        }
+
+        Border lineBorder(ThemeRole role) {
+            return new LineBorder(role.in(scheme)) {
+                @Override
+                public void paintBorder(Component component, Graphics g, int x, int y, int width, int height) {
+                    lineColor = color(role);
+                    super.paintBorder(component, g, x, y, width, height);
+                }
+            };
+        }
+
+        void addPropertyChangeListener(PropertyChangeListener listener) {
+            changes.addPropertyChangeListener(listener);
+        }
+
+        // Must be called on the event dispatch thread
+        void switchTo(ColorScheme next) {
+            ColorScheme previous = scheme;
+            scheme = next;
+            version++;
+            for (JComponent component : new ArrayList<>(showing)) {
+                apply(component);
+            }
+            changes.firePropertyChange("scheme", previous, next);
+        }
+
+        private void bind(JComponent component) {
+            if (component.getClientProperty(VERSION_KEY) == null) {
+                component.addHierarchyListener(tracker);
+            }
+            apply(component);
+            if (component.isShowing()) {
+                showing.add(component);
+            }
+        }
+
+        private void track(JComponent component) {
+            if (!component.isShowing()) {
+                showing.remove(component);
+                return;
+            }
+            showing.add(component);
+            if (!Integer.valueOf(version).equals(component.getClientProperty(VERSION_KEY))) {
+                apply(component);
+            }
+        }
+
+        private void apply(JComponent component) {
+            Object background = component.getClientProperty(BACKGROUND_KEY);
+            if (background != null) {
+                component.setBackground(color((ThemeRole) background));
+            }
+            Object foreground = component.getClientProperty(FOREGROUND_KEY);
+            if (foreground != null) {
+                component.setForeground(color((ThemeRole) foreground));
+            }
+            component.putClientProperty(VERSION_KEY, version);
+        }
+    }
 
     // Font constants
     private static final Font TITLE_FONT = new Font("Helvetica", Font.BOLD, 24);
@@ -76,7 +399,42 @@ public class OnlineGarmentShoppingApp {
     private Timer sidebarTimer;
     private boolean isSidebarVisible = false;
 
+    private final ImageLoader imageLoader = new ImageLoader();
+    private GarmentLookup garmentLookup;
+    private final CatalogCache catalogCache = new CatalogCache(() -> store().garments());
+    private final DataService dataService = new DataService(DATA_TIMEOUT_MS);
+    private Accounts accounts;
+    private final ScreenNavigator screens = new ScreenNavigator();
+    private int pendingCalls;
+    private final CatalogSearchIndex searchIndex = new CatalogSearchIndex();
+    // Set on the EDT; the exit hook reads it from its own thread
+    private volatile CartModel cartModel;
+    private Timer cartFlushTimer;
+    private boolean cartFlushInFlight;
+
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--benchmark-thumbnails")) {
+            ThumbnailBenchmark.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--benchmark-search")) {
+            SearchBenchmark.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--serve")) {
+            ShopService.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--simulate-shoppers")) {
+            ShopperSimulation.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--migrate-line-items")) {
+            try (MongoClient client = MongoClients.create(MONGO_URI)) {
+                LineItemMigration.run(client.getDatabase(DATABASE_NAME));
+            }
+            return;
+        }
         SwingUtilities.invokeLater(() -> {
             try {
                 UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
@@ -85,17 +443,152 @@ public class OnlineGarmentShoppingApp {
             }
             new OnlineGarmentShoppingApp().displayLogin();
         });
+        Metrics.start(true);
     }
 
     public OnlineGarmentShoppingApp() {
-        mongoClient = MongoClients.create(MONGO_URI);
-        database = mongoClient.getDatabase(DATABASE_NAME);
-        addSampleGarments();
+        // Connect, build indexes and seed in the background so the login window can
+        // paint straight away; store() waits for the connection when it is needed
+        Executor startupThread = runnable -> {
+            Thread thread = new Thread(runnable, "mongo-startup");
+            thread.setDaemon(true);
+            thread.start();
+        };
+        connected = CompletableFuture.supplyAsync(this::connect, startupThread);
+        // Recoloured components repaint themselves; this also repaints themed borders
+        theme.addPropertyChangeListener(event -> {
+            if (frame != null) {
+                frame.repaint();
+            }
+        });
+        // Last chance to write back cart changes that are still waiting for the next flush
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            CartModel model = cartModel;
+            if (model != null && model.hasPendingChanges()) {
+                try {
+                    model.flush();
+                } catch (RuntimeException e) {
+                    System.out.println("Error saving cart changes on exit: " + e.getMessage());
+                }
+            }
+        }, "cart-flush-on-exit"));
+        connected.thenRunAsync(this::prepareStore, startupThread).exceptionally(error -> {
+            System.out.println("Error preparing the " + STORE_TYPE + " store");
+            error.printStackTrace();
+            return null;
+        });
+    }
+
+    private ShopStore connect() {
+        ShopStore store;
+        if (STORE_TYPE.equals("remote")) {
+            RemoteShopStore remote = new RemoteShopStore(SERVICE_URL);
+            accounts = remote.accounts();
+            store = withOfflineCopy(() -> remote);
+        } else {
+            store = withOfflineCopy(OnlineGarmentShoppingApp::openLocalStore);
+            accounts = new LocalAccounts(store.users(), new PasswordHasher(PASSWORD_HASH_TARGET_MS, PASSWORD_HASH_THREADS));
+        }
+        garmentLookup = new GarmentLookup(catalogCache);
+        StartupTimer.mark("connected");
+        return store;
+    }
+
+    private void prepareStore() {
+        ShopStore store = connected.join();
+        try {
+            store.prepare();
+        } catch (IllegalStateException e) {
+            // Raised by query plan verification, which is meant to fail loudly
+            e.printStackTrace();
+            System.exit(1);
+        }
+        addSampleGarments(store);
+        startInventoryReconciler(store);
+        // Subscribe before loading so nothing that changes during the load is missed
+        catalogCache.watch(new CatalogListener() {
+            @Override
+            public void changed(Document garment) {
+                searchIndex.add(garment);
+                garmentLookup.remember(List.of(garment));
+            }
+
+            @Override
+            public void removed(Object garmentId) {
+                searchIndex.remove(garmentId);
+            }
+        });
+        catalogCache.start();
+        searchIndex.addAll(catalogCache.snapshot());
+        StartupTimer.mark("search index ready");
+    }
+
+    private ShopStore store() {
+        return connected.join();
+    }
+
+    private Accounts accounts() {
+        store();
+        return accounts;
+    }
+
+    // Virtual threads where the JDK has them (21 and later) keep thousands of mostly
+    // waiting tasks cheap; older JDKs get one platform thread per task
+    static ExecutorService perTaskExecutor(String threadName) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads are not available on this JDK, using one platform thread per " + threadName);
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    // Returns lapsed cart holds to stock and evens out the stock shards that checkouts drained
+    static void startInventoryReconciler(ShopStore store) {
+        ScheduledExecutorService reconciler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "inventory-reconcile");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reconciler.scheduleWithFixedDelay(() -> {
+            try {
+                store.inventory().reconcile();
+            } catch (RuntimeException e) {
+                System.out.println("Warning: Could not reconcile inventory: " + e.getMessage());
+            }
+        }, INVENTORY_RECONCILE_MS, INVENTORY_RECONCILE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Fronts the store with an offline copy when -Dshoppie.offlineDir is set; the
+    // copy connects in the background, so this returns without waiting for the store
+    private static ShopStore withOfflineCopy(Supplier<ShopStore> store) {
+        if (OFFLINE_DIR == null) {
+            return store.get();
+        }
+        Path path = Paths.get(OFFLINE_DIR, "offline-" + STORE_TYPE + ".log");
+        try {
+            return OfflineShopStore.open(path, store);
+        } catch (IOException e) {
+            System.out.println("Warning: Could not open the offline copy at " + path + ", working online only: " + e.getMessage());
+            return store.get();
+        }
+    }
+
+    // The store this process talks to directly: MongoDB, or the in-memory stand-in
+    static ShopStore openLocalStore() {
+        if (STORE_TYPE.equals("memory")) {
+            return new InMemoryShopStore();
+        }
+        return MongoShopStore.connect(MONGO_URI, DATABASE_NAME, MIN_POOL_SIZE);
     }
 
-    private void addSampleGarments() {
-        MongoCollection<Document> garmentsCollection = database.getCollection(GARMENTS_COLLECTION);
-        if (garmentsCollection.countDocuments() == 0) {
+    private static void addSampleGarments(ShopStore store) {
+        GarmentRepository garmentRepository = store.garments();
+        if (garmentRepository.isEmpty()) {
             List<Document> sampleGarments = new ArrayList<>();
             sampleGarments.add(createGarment("Modern T-Shirt", 29.99, "Clothing", 
                 "https://example.com/modern-tshirt.jpg", List.of("S", "M", "L", "XL")));
@@ -108,12 +601,21 @@ public class OnlineGarmentShoppingApp {
             sampleGarments.add(createGarment("Stylish Hat", 34.99, "Accessories",
                 "https://example.com/stylish-hat.jpg", List.of("S", "M", "L")));
             
-            garmentsCollection.insertMany(sampleGarments);
+            garmentRepository.insertAll(sampleGarments);
+            try {
+                for (Document garment : sampleGarments) {
+                    for (String size : garment.getList("sizes", String.class)) {
+                        store.inventory().restock(garment.get("_id"), size, SAMPLE_STOCK);
+                    }
+                }
+            } catch (RuntimeException e) {
+                System.out.println("Warning: Could not stock the sample garments, their sizes stay unlimited: " + e.getMessage());
+            }
             System.out.println("Sample garments added to the database.");
         }
     }
 
-    private Document createGarment(String name, double price, String category, String image, List<String> sizes) {
+    private static Document createGarment(String name, double price, String category, String image, List<String> sizes) {
         return new Document()
             .append("name", name)
             .append("price", price)
@@ -126,18 +628,18 @@ public class OnlineGarmentShoppingApp {
         JButton button = new JButton(text);
         button.setFont(BUTTON_FONT);
         button.setForeground(Color.WHITE);
-        button.setBackground(currentScheme.primaryColor);
+        theme.background(button, ThemeRole.PRIMARY);
         button.setBorder(BorderFactory.createEmptyBorder(8, 16, 8, 16));
         button.setFocusPainted(false);
         button.addActionListener(actionListener);
         button.addMouseListener(new MouseAdapter() {
             @Override
             public void mouseEntered(MouseEvent e) {
-                button.setBackground(currentScheme.primaryColor.darker());
+                button.setBackground(theme.color(ThemeRole.PRIMARY).darker());
             }
             @Override
             public void mouseExited(MouseEvent e) {
-                button.setBackground(currentScheme.primaryColor);
+                button.setBackground(theme.color(ThemeRole.PRIMARY));
             }
         });
         return button;
@@ -147,10 +649,10 @@ public class OnlineGarmentShoppingApp {
         JTextField textField = new JTextField(20);
         textField.setFont(BODY_FONT);
         textField.setBorder(BorderFactory.createCompoundBorder(
-            BorderFactory.createLineBorder(currentScheme.primaryColor),
+            theme.lineBorder(ThemeRole.PRIMARY),
             BorderFactory.createEmptyBorder(10, 10, 10, 10)
         ));
-        textField.setForeground(currentScheme.textColor);
+        theme.foreground(textField, ThemeRole.TEXT);
         textField.setText(placeholder);
         textField.addFocusListener(new FocusAdapter() {
             @Override
@@ -173,10 +675,10 @@ public class OnlineGarmentShoppingApp {
         JPasswordField passwordField = new JPasswordField(20);
         passwordField.setFont(BODY_FONT);
         passwordField.setBorder(BorderFactory.createCompoundBorder(
-            BorderFactory.createLineBorder(currentScheme.primaryColor),
+            theme.lineBorder(ThemeRole.PRIMARY),
             BorderFactory.createEmptyBorder(10, 10, 10, 10)
         ));
-        passwordField.setForeground(currentScheme.textColor);
+        theme.foreground(passwordField, ThemeRole.TEXT);
         passwordField.setEchoChar((char) 0);
         passwordField.setText(placeholder);
         passwordField.addFocusListener(new FocusAdapter() {
@@ -206,7 +708,7 @@ public class OnlineGarmentShoppingApp {
         updateUIColors();
 
         JPanel panel = new JPanel(new GridBagLayout());
-        panel.setBackground(currentScheme.backgroundColor);
+        theme.background(panel, ThemeRole.BACKGROUND);
         panel.setBorder(BorderFactory.createEmptyBorder(40, 40, 40, 40));
 
         GridBagConstraints gbc = new GridBagConstraints();
@@ -216,7 +718,7 @@ public class OnlineGarmentShoppingApp {
 
         JLabel titleLabel = new JLabel("Shoppie", SwingConstants.CENTER);
         titleLabel.setFont(TITLE_FONT);
-        titleLabel.setForeground(currentScheme.primaryColor);
+        theme.foreground(titleLabel, ThemeRole.PRIMARY);
         panel.add(titleLabel, gbc);
 
         usernameField = createStyledTextField("Username");
@@ -230,99 +732,177 @@ public class OnlineGarmentShoppingApp {
 
         frame.add(panel, BorderLayout.CENTER);
         frame.setVisible(true);
+        SwingUtilities.invokeLater(() -> StartupTimer.mark("first frame"));
     }
 
     public void login() {
         String username = usernameField.getText();
-        String password = new String(passwordField.getPassword());
-
-        MongoCollection<Document> usersCollection = database.getCollection(USERS_COLLECTION);
-        Document query = new Document("username", username).append("password", password);
-        Document user = usersCollection.find(query).first();
+        char[] password = passwordField.getPassword();
 
-        if (user != null) {
-            currentUser = username;
-            JOptionPane.showMessageDialog(frame, "Login successful!");
-            viewProducts();
-        } else {
-            JOptionPane.showMessageDialog(frame, "Invalid username or password.");
-        }
+        runAsync(() -> {
+            try {
+                return Metrics.time("op.login", () -> accounts().signIn(username, password));
+            } finally {
+                Arrays.fill(password, '\0');
+            }
+        }, outcome -> {
+            if (outcome == AuthOutcome.SUCCESS) {
+                currentUser = username;
+                startCart(username);
+                JOptionPane.showMessageDialog(frame, "Login successful!");
+                viewProducts();
+            } else {
+                JOptionPane.showMessageDialog(frame, outcome.message);
+            }
+        });
     }
 
     public void register() {
         String username = usernameField.getText();
-        String password = new String(passwordField.getPassword());
+        char[] password = passwordField.getPassword();
+
+        runAsync(() -> {
+            try {
+                return Metrics.time("op.register", () -> accounts().register(username, password));
+            } finally {
+                Arrays.fill(password, '\0');
+            }
+        }, outcome -> {
+            if (outcome == AuthOutcome.SUCCESS) {
+                JOptionPane.showMessageDialog(frame, "Registration successful! You can now log in.");
+            } else {
+                JOptionPane.showMessageDialog(frame, outcome.message);
+            }
+        });
+    }
+
+    enum AuthOutcome {
+        SUCCESS(null),
+        INVALID("Invalid username or password."),
+        TAKEN("Username already exists. Please choose another."),
+        THROTTLED("Too many failed attempts. Please wait a while and try again."),
+        BUSY("The server is busy signing other people in. Please try again in a moment.");
+
+        final String message;
+
+        AuthOutcome(String message) {
+            this.message = message;
+        }
+    }
 
-        MongoCollection<Document> usersCollection = database.getCollection(USERS_COLLECTION);
-        Document query = new Document("username", username);
-        Document existingUser = usersCollection.find(query).first();
+    private void startCart(String username) {
+        cartModel = new CartModel(username, () -> store().cart());
+        dataService.call(cartModel::load);
+        cartFlushTimer = new Timer(CART_FLUSH_INTERVAL_MS, e -> flushCart());
+        cartFlushTimer.start();
+        dataService.call(() -> {
+            ShopStore store = store();
+            if (store instanceof OfflineShopStore) {
+                OfflineShopStore offline = (OfflineShopStore) store;
+                offline.onRejected(rejection -> SwingUtilities.invokeLater(() -> showRejection(offline, rejection)));
+            }
+            return null;
+        });
+    }
 
-        if (existingUser != null) {
-            JOptionPane.showMessageDialog(frame, "Username already exists. Please choose another.");
+    // Tells the signed-in user about a write queued while offline that the store
+    // later turned down; anyone else's waits until they sign in
+    private void showRejection(OfflineShopStore offline, Document rejection) {
+        if (!rejection.getString("username").equals(currentUser)) {
+            return;
+        }
+        offline.seen(rejection.get("operationId"));
+        String message;
+        if (rejection.containsKey("orderId")) {
+            screens.invalidate(ORDERS_SCREEN);
+            message = "An order you placed while offline could not be completed: " + rejection.getString("reason")
+                + "\nIt is marked Rejected in your order history.";
         } else {
-            Document newUser = new Document("username", username).append("password", password);
-            usersCollection.insertOne(newUser);
-            JOptionPane.showMessageDialog(frame, "Registration successful! You can now log in.");
+            message = "Some cart changes you made while offline could not be saved: " + rejection.getString("reason");
         }
+        JOptionPane.showMessageDialog(frame, message, "Offline changes", JOptionPane.WARNING_MESSAGE);
     }
 
-    private void updateUIColors() {
-        frame.getContentPane().setBackground(currentScheme.backgroundColor);
-        updateComponentColors(frame.getContentPane());
+    private void stopCart() {
+        if (cartFlushTimer != null) {
+            cartFlushTimer.stop();
+            cartFlushTimer = null;
+        }
+        if (cartModel != null && cartModel.hasPendingChanges()) {
+            CartModel model = cartModel;
+            dataService.call(() -> {
+                model.flush();
+                return null;
+            });
+        }
+        cartModel = null;
+    }
+
+    // Writes pending cart changes back in one batch; failed batches stay queued and
+    // are retried on the next tick
+    private void flushCart() {
+        if (cartModel == null || cartFlushInFlight || !cartModel.hasPendingChanges()) {
+            return;
+        }
+        cartFlushInFlight = true;
+        CartModel model = cartModel;
+        dataService.call(() -> {
+            model.flush();
+            return null;
+        }).whenComplete((flushed, error) -> SwingUtilities.invokeLater(() -> {
+            cartFlushInFlight = false;
+            if (error != null) {
+                System.out.println("Error saving cart changes, will retry: " + error.getMessage());
+            }
+        }));
     }
 
-    private void updateComponentColors(Container container) {
-        for (Component c : container.getComponents()) {
-            if (c instanceof JPanel) {
-                c.setBackground(currentScheme.backgroundColor);
-            } else if (c instanceof JButton) {
-                JButton button = (JButton) c;
-                button.setBackground(currentScheme.primaryColor);
-                button.setForeground(Color.WHITE);
-            } else if (c instanceof JLabel) {
-                JLabel label = (JLabel) c;
-                label.setForeground(currentScheme.textColor);
+    // Runs a store call on the data service with a wait cursor showing, then hands
+    // the result to onSuccess on the event dispatch thread
+    private <T> CompletableFuture<T> runAsync(Supplier<T> call, Consumer<T> onSuccess) {
+        pendingCalls++;
+        frame.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        CompletableFuture<T> result = dataService.call(call);
+        result.whenComplete((value, error) -> SwingUtilities.invokeLater(() -> {
+            if (--pendingCalls == 0) {
+                frame.setCursor(Cursor.getDefaultCursor());
             }
-            if (c instanceof Container) {
-                updateComponentColors((Container) c);
+            if (error == null) {
+                onSuccess.accept(value);
+            } else if (!(error instanceof CancellationException)) {
+                showDataError(error);
             }
-        }
+        }));
+        return result;
     }
 
-    private ImageIcon loadImage(String path, int width, int height) {
-        if (path == null || path.isEmpty()) {
-            System.out.println("Warning: Image path is null or empty");
-            return createPlaceholderImage(width, height);
-        }
-        
-        try {
-            URL imageUrl = new URL(path);
-            Image image = ImageIO.read(imageUrl);
-            if (image != null) {
-                Image scaledImage = image.getScaledInstance(width, height, Image.SCALE_SMOOTH);
-                return new ImageIcon(scaledImage);
+    private void showDataError(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof TimeoutException) {
+            JOptionPane.showMessageDialog(frame, "The database is taking too long to respond. Please try again.");
+        } else if (cause instanceof OutOfStockException) {
+            JOptionPane.showMessageDialog(frame, "Sorry, that sold out while you were shopping. " + cause.getMessage() + ".");
+        } else if (cause instanceof MongoSocketException || cause instanceof MongoTimeoutException) {
+            JOptionPane.showMessageDialog(frame, "Could not reach the database: " + cause.getMessage());
+        } else {
+            cause.printStackTrace();
+            if (cause instanceof MongoException) {
+                JOptionPane.showMessageDialog(frame, "The database could not complete the request: " + cause.getMessage());
+            } else if (cause instanceof IllegalStateException) {
+                // The shop service client and the offline copy word these for the user
+                JOptionPane.showMessageDialog(frame, cause.getMessage());
             } else {
-                System.out.println("Warning: Could not read image from URL: " + path);
-                return createPlaceholderImage(width, height);
+                JOptionPane.showMessageDialog(frame, "Something went wrong: " + cause.getMessage());
             }
-        } catch (Exception e) {
-            System.out.println("Error loading image from URL: " + path);
-            e.printStackTrace();
-            return createPlaceholderImage(width, height);
         }
     }
 
-    private ImageIcon createPlaceholderImage(int width, int height) {
-        BufferedImage placeholderImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g2d = placeholderImage.createGraphics();
-        g2d.setColor(Color.LIGHT_GRAY);
-        g2d.fillRect(0, 0, width, height);
-        g2d.setColor(Color.GRAY);
-        g2d.drawRect(0, 0, width - 1, height - 1);
-        g2d.setColor(Color.DARK_GRAY);
-        g2d.drawString("No Image", 10, height / 2);
-        g2d.dispose();
-        return new ImageIcon(placeholderImage);
+    private void updateUIColors() {
+        theme.background((JComponent) frame.getContentPane(), ThemeRole.BACKGROUND);
+    }
+
+    private void loadImage(JLabel label, String path, int width, int height) {
+        imageLoader.loadInto(label, path, width, height);
     }
 
     private String getSelectedSize(ButtonGroup sizeGroup) {
@@ -335,111 +915,146 @@ public class OnlineGarmentShoppingApp {
         return null;
     }
 
-    private JPanel createProductCard(Document garment) {
-        JPanel cardPanel = new JPanel(new BorderLayout(10, 10));
-        cardPanel.setBackground(currentScheme.secondaryColor);
-        cardPanel.setBorder(BorderFactory.createLineBorder(currentScheme.primaryColor, 1));
-        cardPanel.setPreferredSize(ITEM_SIZE);
+    // Fetches a product card's image ahead of time, so cards bound afterwards show it
+    // straight from memory
+    CompletableFuture<ImageIcon> preloadCardImage(String path) {
+        return imageLoader.load(path, 100, 100);
+    }
 
-        String imagePath = garment.getString("image");
-        ImageIcon garmentImage = loadImage(imagePath, 100, 100);
-        JLabel imageLabel = new JLabel(garmentImage);
-        imageLabel.setBorder(new EmptyBorder(10, 10, 10, 10));
+    ProductCard createProductCard(Document garment) {
+        ProductCard card = new ProductCard();
+        card.bind(garment);
+        return card;
+    }
 
-        JPanel infoPanel = new JPanel(new GridLayout(6, 1, 5, 5));
-        infoPanel.setBackground(currentScheme.secondaryColor);
-        infoPanel.setBorder(new EmptyBorder(10, 10, 10, 10));
+    // A product card that can be rebound to another garment, so the catalog grid
+    // can recycle cards as they scroll out of view
+    private class ProductCard extends JPanel {
+        private final JLabel imageLabel = new JLabel();
+        private final JLabel nameLabel = new JLabel();
+        private final JLabel priceLabel = new JLabel();
+        private final JPanel sizePanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 0));
+        private ButtonGroup sizeGroup = new ButtonGroup();
+        private List<String> sizes = List.of();
+        private Document garment;
 
-        JLabel nameLabel = new JLabel(garment.getString("name"));
-        nameLabel.setFont(HEADER_FONT);
-        nameLabel.setForeground(currentScheme.textColor);
+        ProductCard() {
+            super(new BorderLayout(10, 10));
+            theme.background(this, ThemeRole.SECONDARY);
+            setBorder(theme.lineBorder(ThemeRole.PRIMARY));
+            setPreferredSize(ITEM_SIZE);
 
-        JLabel priceLabel = new JLabel("$" + String.format("%.2f", garment.getDouble("price")));
-        priceLabel.setFont(BODY_FONT);
-        priceLabel.setForeground(currentScheme.accentColor);
+            imageLabel.setBorder(new EmptyBorder(10, 10, 10, 10));
 
-        JLabel sizeLabel = new JLabel("Size:");
-        sizeLabel.setFont(BODY_FONT);
-        sizeLabel.setForeground(currentScheme.textColor);
+            JPanel infoPanel = new JPanel(new GridLayout(6, 1, 5, 5));
+            theme.background(infoPanel, ThemeRole.SECONDARY);
+            infoPanel.setBorder(new EmptyBorder(10, 10, 10, 10));
 
-        JPanel sizePanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 0));
-        sizePanel.setBackground(currentScheme.secondaryColor);
-        ButtonGroup sizeGroup = new ButtonGroup();
-        String[] sizes = {"S", "M", "L", "XL"};
-        for (String size : sizes) {
-            JRadioButton sizeButton = new JRadioButton(size);
-            sizeButton.setFont(BODY_FONT);
-            sizeButton.setBackground(currentScheme.secondaryColor);
-            sizeButton.setForeground(currentScheme.textColor);
-            sizeGroup.add(sizeButton);
-            sizePanel.add(sizeButton);
-        }
+            nameLabel.setFont(HEADER_FONT);
+            theme.foreground(nameLabel, ThemeRole.TEXT);
 
-        JPanel buttonPanel = new JPanel(new GridLayout(1, 2, 5, 0));
-        buttonPanel.setBackground(currentScheme.secondaryColor);
+            priceLabel.setFont(BODY_FONT);
+            theme.foreground(priceLabel, ThemeRole.ACCENT);
 
-        JButton addToCartButton = createStyledButton("Add to Cart", e -> addToCart(garment, getSelectedSize(sizeGroup)));
-        JButton buyNowButton = createStyledButton("Buy Now", e -> buyNow(garment, getSelectedSize(sizeGroup)));
+            JLabel sizeLabel = new JLabel("Size:");
+            sizeLabel.setFont(BODY_FONT);
+            theme.foreground(sizeLabel, ThemeRole.TEXT);
 
-        buttonPanel.add(addToCartButton);
-        buttonPanel.add(buyNowButton);
+            theme.background(sizePanel, ThemeRole.SECONDARY);
 
-        infoPanel.add(nameLabel);
-        infoPanel.add(priceLabel);
-        infoPanel.add(sizeLabel);
-        infoPanel.add(sizePanel);
-        infoPanel.add(Box.createVerticalStrut(10));
-        infoPanel.add(buttonPanel);
+            JPanel buttonPanel = new JPanel(new GridLayout(1, 2, 5, 0));
+            theme.background(buttonPanel, ThemeRole.SECONDARY);
+
+            JButton addToCartButton = createStyledButton("Add to Cart", e -> addToCart(garment, getSelectedSize(sizeGroup)));
+            JButton buyNowButton = createStyledButton("Buy Now", e -> buyNow(garment, getSelectedSize(sizeGroup)));
+
+            buttonPanel.add(addToCartButton);
+            buttonPanel.add(buyNowButton);
+
+            infoPanel.add(nameLabel);
+            infoPanel.add(priceLabel);
+            infoPanel.add(sizeLabel);
+            infoPanel.add(sizePanel);
+            infoPanel.add(Box.createVerticalStrut(10));
+            infoPanel.add(buttonPanel);
+
+            add(imageLabel, BorderLayout.WEST);
+            add(infoPanel, BorderLayout.CENTER);
+        }
 
-        cardPanel.add(imageLabel, BorderLayout.WEST);
-        cardPanel.add(infoPanel, BorderLayout.CENTER);
+        void bind(Document garment) {
+            // A live update to the same garment keeps the size the user picked
+            if (this.garment == null || !Objects.equals(this.garment.get("_id"), garment.get("_id"))) {
+                sizeGroup.clearSelection();
+            }
+            List<String> garmentSizes = garment.getList("sizes", String.class);
+            showSizes(garmentSizes != null && !garmentSizes.isEmpty() ? garmentSizes : DEFAULT_SIZES);
+            this.garment = garment;
+            loadImage(imageLabel, garment.getString("image"), 100, 100);
+            nameLabel.setText(garment.getString("name"));
+            priceLabel.setText("$" + String.format("%.2f", garment.getDouble("price")));
+        }
 
-        return cardPanel;
+        // Rebuilds the size buttons only when the garment's sizes differ from those shown
+        private void showSizes(List<String> garmentSizes) {
+            if (garmentSizes.equals(sizes)) {
+                return;
+            }
+            String selected = getSelectedSize(sizeGroup);
+            sizes = List.copyOf(garmentSizes);
+            sizeGroup = new ButtonGroup();
+            sizePanel.removeAll();
+            for (String size : sizes) {
+                JRadioButton sizeButton = new JRadioButton(size);
+                sizeButton.setFont(BODY_FONT);
+                theme.background(sizeButton, ThemeRole.SECONDARY);
+                theme.foreground(sizeButton, ThemeRole.TEXT);
+                sizeButton.setSelected(size.equals(selected));
+                sizeGroup.add(sizeButton);
+                sizePanel.add(sizeButton);
+            }
+            sizePanel.revalidate();
+            sizePanel.repaint();
+        }
     }
 
     private JPanel createCartItemPanel(Document cartItem, Document garment) {
         JPanel itemPanel = new JPanel(new BorderLayout(10, 10));
-        itemPanel.setBackground(currentScheme.secondaryColor);
-        itemPanel.setBorder(BorderFactory.createLineBorder(currentScheme.primaryColor));
+        theme.background(itemPanel, ThemeRole.SECONDARY);
+        itemPanel.setBorder(theme.lineBorder(ThemeRole.PRIMARY));
         itemPanel.setPreferredSize(ITEM_SIZE);
 
         String imagePath = garment.getString("image");
-        ImageIcon garmentImage = loadImage(imagePath, 100, 100);
-        JLabel imageLabel = new JLabel(garmentImage);
+        JLabel imageLabel = new JLabel();
+        loadImage(imageLabel, imagePath, 100, 100);
         imageLabel.setBorder(new EmptyBorder(5, 5, 5, 5));
 
         JPanel infoPanel = new JPanel(new GridLayout(3, 1, 5, 5));
-        infoPanel.setBackground(currentScheme.secondaryColor);
+        theme.background(infoPanel, ThemeRole.SECONDARY);
 
         JLabel nameLabel = new JLabel(garment.getString("name"));
         nameLabel.setFont(HEADER_FONT);
-        nameLabel.setForeground(currentScheme.textColor);
+        theme.foreground(nameLabel, ThemeRole.TEXT);
 
-        JLabel priceLabel = new JLabel("$" + String.format("%.2f", garment.getDouble("price")));
+        JLabel priceLabel = new JLabel("$" + String.format("%.2f", linePrice(cartItem)));
         priceLabel.setFont(BODY_FONT);
-        priceLabel.setForeground(currentScheme.accentColor);
+        theme.foreground(priceLabel, ThemeRole.ACCENT);
 
-        JLabel sizeLabel = new JLabel("Size: " + cartItem.getString("size"));
+        JLabel sizeLabel = new JLabel("Size: " + cartItem.getString("size") + "   Qty: " + lineQuantity(cartItem));
         sizeLabel.setFont(BODY_FONT);
-        sizeLabel.setForeground(currentScheme.textColor);
+        theme.foreground(sizeLabel, ThemeRole.TEXT);
 
         infoPanel.add(nameLabel);
         infoPanel.add(priceLabel);
         infoPanel.add(sizeLabel);
 
         JPanel buttonPanel = new JPanel(new GridLayout(2, 1, 5, 5));
-        buttonPanel.setBackground(currentScheme.secondaryColor);
+        theme.background(buttonPanel, ThemeRole.SECONDARY);
 
-        JButton buyNowButton = createStyledButton("Buy Now", e -> {
-            removeFromCart(cartItem);
-            buyNow(garment, cartItem.getString("size"));
-        });
-        JButton removeButton = createStyledButton("Remove", e -> {
-            removeFromCart(cartItem);
-            itemPanel.getParent().remove(itemPanel);
-            itemPanel.getParent().revalidate();
-            itemPanel.getParent().repaint();
-        });
+        // Orders the whole line through checkout, so the line leaves the cart only when
+        // the order commits and the order uses up the line's hold
+        JButton buyNowButton = createStyledButton("Buy Now", e -> checkout(List.of(cartItem)));
+        JButton removeButton = createStyledButton("Remove", e -> removeFromCart(cartItem));
 
         buttonPanel.add(buyNowButton);
         buttonPanel.add(removeButton);
@@ -456,20 +1071,41 @@ public class OnlineGarmentShoppingApp {
             JOptionPane.showMessageDialog(frame, "Please select a size before adding to cart.");
             return;
         }
-        MongoCollection<Document> cartCollection = database.getCollection(CART_COLLECTION);
         Document cartItem = new Document("username", currentUser)
-                                .append("garment", garment)
-                                .append("size", size);
-        cartCollection.insertOne(cartItem);
-        
-        int option = JOptionPane.showConfirmDialog(frame, 
-            "Item added to cart. Would you like to buy it now?", 
-            "Added to Cart", 
-            JOptionPane.YES_NO_OPTION);
-            
-        if (option == JOptionPane.YES_OPTION) {
-            buyNow(garment, size);
-        }
+                                .append("garmentId", garment.get("_id"))
+                                .append("size", size)
+                                .append("quantity", 1)
+                                .append("price", garment.getDouble("price"));
+        // Hold the stock for everything of this size in the cart, not just this one
+        CartModel model = cartModel;
+        String username = currentUser;
+        int wanted = model.quantityOf(cartItem) + 1;
+        runAsync(() -> store().inventory().reserve(username, garment.get("_id"), size, wanted), reserved -> {
+            if (!reserved) {
+                JOptionPane.showMessageDialog(frame, "Sorry, " + garment.getString("name") + " is sold out in size " + size + ".");
+                return;
+            }
+            if (model != cartModel) {
+                // Signed out meanwhile: put the hold back to what the cart had before
+                dataService.call(() -> store().inventory().reserve(username, garment.get("_id"), size, wanted - 1))
+                    .whenComplete((restored, error) -> {
+                        if (error != null) {
+                            System.out.println("Warning: Could not release the hold for a discarded cart item: " + error.getMessage());
+                        }
+                    });
+                return;
+            }
+            model.add(cartItem);
+
+            int option = JOptionPane.showConfirmDialog(frame,
+                "Item added to cart. Would you like to buy it now?",
+                "Added to Cart",
+                JOptionPane.YES_NO_OPTION);
+
+            if (option == JOptionPane.YES_OPTION) {
+                buyNow(garment, size);
+            }
+        });
     }
 
     public void buyNow(Document garment, String size) {
@@ -496,85 +1132,317 @@ public class OnlineGarmentShoppingApp {
             String address = addressField.getText();
             String phone = phoneField.getText();
 
-            MongoCollection<Document> ordersCollection = database.getCollection(ORDERS_COLLECTION);
-            Document order = new Document("username", currentUser)
-                                .append("garment", garment)
+            Document item = new Document("garmentId", garment.get("_id"))
                                 .append("size", size)
-                                .append("name", name)
-                                .append("address", address)
-                                .append("phone", phone)
-                                .append("status", "Placed");
-            ordersCollection.insertOne(order);
-            JOptionPane.showMessageDialog(frame, "Order placed successfully!");
+                                .append("quantity", 1)
+                                .append("price", garment.getDouble("price"));
+            placeOrder(List.of(item), name, address, phone, new ArrayList<>(),
+                () -> JOptionPane.showMessageDialog(frame, "Order placed successfully!"));
+        }
+    }
+
+    // Cart and order lines reference the garment by _id and freeze the price it was
+    // bought at. Lines written before that embed the whole garment document.
+    private static Object lineGarmentId(Document line) {
+        if (line.containsKey("garmentId")) {
+            return line.get("garmentId");
+        }
+        Document embedded = line.get("garment", Document.class);
+        return embedded != null ? embedded.get("_id") : null;
+    }
+
+    private static double linePrice(Document line) {
+        if (line.containsKey("price")) {
+            return line.getDouble("price");
+        }
+        Document embedded = line.get("garment", Document.class);
+        return embedded != null ? embedded.getDouble("price") : 0;
+    }
+
+    private static int lineQuantity(Document line) {
+        return line.getInteger("quantity", 1);
+    }
+
+    static double cartTotal(List<Document> lines) {
+        double total = 0;
+        for (Document line : lines) {
+            total += linePrice(line) * lineQuantity(line);
+        }
+        return total;
+    }
+
+    // Rolls per-status order counts and spend up into the shape OrderRepository.summary returns
+    private static Document orderSummary(List<Document> statuses) {
+        int orders = 0;
+        double spend = 0;
+        Document byStatus = new Document();
+        for (Document status : statuses) {
+            int count = ((Number) status.get("orders")).intValue();
+            orders += count;
+            spend += ((Number) status.get("spend")).doubleValue();
+            byStatus.append(status.get("status") != null ? status.get("status").toString() : "Unknown", count);
+        }
+        return new Document("orders", orders).append("spend", spend).append("byStatus", byStatus);
+    }
+
+    private Map<Object, Document> lookupGarments(List<Document> lines) {
+        List<Object> garmentIds = new ArrayList<>();
+        for (Document line : lines) {
+            garmentIds.add(lineGarmentId(line));
+        }
+        return garmentLookup.getAll(garmentIds);
+    }
+
+    // Current display data for a line, falling back to what the line itself
+    // remembers when the garment has since been removed from the catalog
+    private static Document lineGarment(Document line, Map<Object, Document> garments) {
+        Document garment = garments.get(lineGarmentId(line));
+        if (garment != null) {
+            return garment;
+        }
+        Document embedded = line.get("garment", Document.class);
+        if (embedded != null) {
+            return embedded;
         }
+        return new Document("_id", lineGarmentId(line))
+            .append("name", "Unavailable item")
+            .append("price", linePrice(line));
     }
 
     public void removeFromCart(Document cartItem) {
-        MongoCollection<Document> cartCollection = database.getCollection(CART_COLLECTION);
-        cartCollection.deleteOne(cartItem);
-        JOptionPane.showMessageDialog(frame, "Item removed from cart.");
+        cartModel.remove(cartItem.get("_id"));
+        screens.invalidate(CART_SCREEN);
+        // Let the stock go now rather than when the hold lapses
+        String username = currentUser;
+        dataService.call(() -> store().inventory().reserve(username, lineGarmentId(cartItem), cartItem.getString("size"), 0))
+            .whenComplete((released, error) -> {
+                if (error != null) {
+                    System.out.println("Warning: Could not release the hold on a removed cart item: " + error.getMessage());
+                }
+            });
     }
 
-    public void viewProducts() {
-        frame.getContentPane().removeAll();
-        frame.setLayout(new BorderLayout());
-        updateUIColors();
+    private static final String PRODUCTS_SCREEN = "products";
+    private static final String CART_SCREEN = "cart";
+    private static final String ORDERS_SCREEN = "orders";
+
+    // Keeps each screen built for the whole session as a card in a CardLayout.
+    // Navigating only flips cards; a screen reloads or patches itself when the
+    // data behind it has changed since it was last shown.
+    private class ScreenNavigator {
+        private final CardLayout cards = new CardLayout();
+        private final JPanel deck = new JPanel(cards);
+        private final Map<String, Screen> built = new HashMap<>();
+        private Screen current;
+
+        void show(String name, Supplier<Screen> builder) {
+            if (deck.getParent() != frame.getContentPane()) {
+                frame.getContentPane().removeAll();
+                frame.setLayout(new BorderLayout());
+                updateUIColors();
+                theme.background(deck, ThemeRole.BACKGROUND);
+                frame.add(deck, BorderLayout.CENTER);
+            }
+            long start = System.nanoTime();
+            Screen screen = built.get(name);
+            if (screen == null) {
+                screen = builder.get();
+                screen.setName(name);
+                built.put(name, screen);
+                deck.add(screen, name);
+            }
+            cards.show(deck, name);
+            current = screen;
+            screen.refreshIfStale();
+            frame.revalidate();
+            frame.repaint();
+            Metrics.latency("screen." + name + ".show").record(System.nanoTime() - start);
+        }
+
+        // Marks a screen out of date; the one on show catches up straight away
+        void invalidate(String name) {
+            Screen screen = built.get(name);
+            if (screen == null) {
+                return;
+            }
+            screen.markStale();
+            if (screen == current) {
+                screen.refreshIfStale();
+            }
+        }
+
+        // Drops every screen, for example when the user logs out
+        void clear() {
+            for (Screen screen : built.values()) {
+                screen.cancelLoad();
+            }
+            deck.removeAll();
+            built.clear();
+            current = null;
+        }
+    }
+
+    // A screen with a fixed header and a body that is swapped as its data loads
+    private abstract class Screen extends JPanel {
+        private boolean stale = true;
+        private JComponent body;
+        private JComponent footer;
+        private CompletableFuture<?> load;
+        private Object loadToken;
+
+        Screen() {
+            super(new BorderLayout());
+            theme.background(this, ThemeRole.BACKGROUND);
+        }
+
+        abstract void reload();
+
+        boolean isStale() {
+            return stale;
+        }
+
+        void markStale() {
+            stale = true;
+        }
+
+        void refreshIfStale() {
+            if (isStale()) {
+                stale = false;
+                reload();
+            }
+        }
+
+        void setBody(JComponent body, JComponent footer) {
+            if (this.body != null && this.body != body) {
+                remove(this.body);
+            }
+            if (this.footer != null && this.footer != footer) {
+                remove(this.footer);
+            }
+            this.body = body;
+            this.footer = footer;
+            add(body, BorderLayout.CENTER);
+            if (footer != null) {
+                add(footer, BorderLayout.SOUTH);
+            }
+            revalidate();
+            repaint();
+        }
+
+        // Fetches the screen's data on the data service. A loading message fills the
+        // body until the screen has something to show; after that the old content
+        // stays up until the new data is ready. Only the latest load gets rendered.
+        <T> void load(Supplier<T> call, Consumer<T> render) {
+            cancelLoad();
+            if (body == null) {
+                JLabel loadingLabel = new JLabel("Loading...", SwingConstants.CENTER);
+                loadingLabel.setFont(HEADER_FONT);
+                theme.foreground(loadingLabel, ThemeRole.TEXT);
+                setBody(loadingLabel, null);
+            }
+            Object token = new Object();
+            loadToken = token;
+            long start = System.nanoTime();
+            load = runAsync(call, value -> {
+                if (loadToken == token) {
+                    render.accept(value);
+                    // From asking for the data to the screen showing it, queueing included
+                    Metrics.latency("screen." + getName() + ".load").record(System.nanoTime() - start);
+                }
+            });
+            load.whenComplete((value, error) -> {
+                if (error != null) {
+                    SwingUtilities.invokeLater(() -> {
+                        if (loadToken == token) {
+                            stale = true;
+                        }
+                    });
+                }
+            });
+        }
+
+        void cancelLoad() {
+            loadToken = null;
+            if (load != null) {
+                load.cancel(true);
+                load = null;
+            }
+        }
+    }
 
+    private JPanel createScreenHeader(String title) {
         JPanel headerPanel = new JPanel(new BorderLayout());
-        headerPanel.setBackground(currentScheme.primaryColor);
+        theme.background(headerPanel, ThemeRole.PRIMARY);
         headerPanel.setBorder(new EmptyBorder(10, 10, 10, 10));
 
-        JButton menuButton = createStyledButton("☰", e -> toggleSidebar());
-        menuButton.setPreferredSize(new Dimension(50, 50));
-        headerPanel.add(menuButton, BorderLayout.WEST);
+        JButton backButton = createStyledButton("Back", e -> viewProducts());
+        headerPanel.add(backButton, BorderLayout.WEST);
 
-        JLabel titleLabel = new JLabel("Shoppie", SwingConstants.CENTER);
+        JLabel titleLabel = new JLabel(title, SwingConstants.CENTER);
         titleLabel.setFont(TITLE_FONT);
         titleLabel.setForeground(Color.WHITE);
         headerPanel.add(titleLabel, BorderLayout.CENTER);
+        return headerPanel;
+    }
+
+    public void viewProducts() {
+        screens.show(PRODUCTS_SCREEN, ProductsScreen::new);
+    }
 
-        JButton cartButton = createStyledButton("🛒", e -> viewCart());
-        cartButton.setPreferredSize(new Dimension(50, 50));
-        headerPanel.add(cartButton, BorderLayout.EAST);
+    // The catalog follows the catalog cache by itself, so it never needs reloading
+    private class ProductsScreen extends Screen {
+        ProductsScreen() {
+            JPanel headerPanel = new JPanel(new BorderLayout());
+            theme.background(headerPanel, ThemeRole.PRIMARY);
+            headerPanel.setBorder(new EmptyBorder(10, 10, 10, 10));
 
-        frame.add(headerPanel, BorderLayout.NORTH);
+            JButton menuButton = createStyledButton("☰", e -> toggleSidebar());
+            menuButton.setPreferredSize(new Dimension(50, 50));
+            headerPanel.add(menuButton, BorderLayout.WEST);
 
-        MongoCollection<Document> garmentsCollection = database.getCollection(GARMENTS_COLLECTION);
-        List<Document> garments = garmentsCollection.find().into(new ArrayList<>());
+            JLabel titleLabel = new JLabel("Shoppie", SwingConstants.CENTER);
+            titleLabel.setFont(TITLE_FONT);
+            titleLabel.setForeground(Color.WHITE);
 
-        JPanel panel = new JPanel(new GridLayout(0, 3, 20, 20));
-        panel.setBackground(currentScheme.backgroundColor);
-        panel.setBorder(new EmptyBorder(20, 20, 20, 20));
+            JButton cartButton = createStyledButton("🛒", e -> viewCart());
+            cartButton.setPreferredSize(new Dimension(50, 50));
+            headerPanel.add(cartButton, BorderLayout.EAST);
 
-        for (Document garment : garments) {
-            JPanel cardPanel = createProductCard(garment);
-            panel.add(cardPanel);
-        }
+            CatalogGrid grid = new CatalogGrid();
+            grid.setPager(new CatalogPager(() -> catalogCache, "_id", CATALOG_PAGE_SIZE));
 
-        JScrollPane scrollPane = new JScrollPane(panel);
-        scrollPane.setVerticalScrollBarPolicy(ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS);
-        scrollPane.getVerticalScrollBar().setUnitIncrement(16);
-        scrollPane.setBorder(null);
+            JPanel titlePanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 20, 0));
+            theme.background(titlePanel, ThemeRole.PRIMARY);
+            titlePanel.add(titleLabel);
+            titlePanel.add(new CatalogSearchBar(grid));
+            headerPanel.add(titlePanel, BorderLayout.CENTER);
+            add(headerPanel, BorderLayout.NORTH);
 
-        frame.add(scrollPane, BorderLayout.CENTER);
+            JScrollPane scrollPane = new JScrollPane(grid);
+            scrollPane.setVerticalScrollBarPolicy(ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS);
+            scrollPane.getVerticalScrollBar().setUnitIncrement(16);
+            scrollPane.setBorder(null);
 
-        createSidebar();
+            setBody(scrollPane, null);
+            add(createSidebar(), BorderLayout.WEST);
+        }
 
-        frame.revalidate();
-        frame.repaint();
+        @Override
+        void reload() {
+        }
     }
 
-    private void createSidebar() {
+    private JPanel createSidebar() {
         sidebar = new JPanel();
         sidebar.setPreferredSize(SIDEBAR_SIZE);
-        sidebar.setBackground(currentScheme.secondaryColor);
+        theme.background(sidebar, ThemeRole.SECONDARY);
         sidebar.setLayout(new BoxLayout(sidebar, BoxLayout.Y_AXIS));
         sidebar.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
 
         JLabel userLabel = new JLabel("Welcome, " + currentUser);
         userLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
         userLabel.setFont(HEADER_FONT);
-        userLabel.setForeground(currentScheme.textColor);
+        theme.foreground(userLabel, ThemeRole.TEXT);
         sidebar.add(userLabel);
 
         sidebar.add(Box.createRigidArea(new Dimension(0, 20)));
@@ -596,7 +1464,8 @@ public class OnlineGarmentShoppingApp {
         sidebar.add(logoutButton);
 
         sidebar.setVisible(false);
-        frame.add(sidebar, BorderLayout.WEST);
+        isSidebarVisible = false;
+        return sidebar;
     }
 
     private void toggleSidebar() {
@@ -632,75 +1501,131 @@ public class OnlineGarmentShoppingApp {
         sidebarTimer.start();
     }
 
-    private void toggleTheme() {
-        currentScheme = (currentScheme == LIGHT_SCHEME) ? DARK_SCHEME : LIGHT_SCHEME;
-        updateUIColors();
-        SwingUtilities.updateComponentTreeUI(frame);
-        frame.repaint();
+    void toggleTheme() {
+        theme.switchTo(theme.scheme() == LIGHT_SCHEME ? DARK_SCHEME : LIGHT_SCHEME);
     }
 
     public void viewCart() {
-        frame.getContentPane().removeAll();
-        frame.setLayout(new BorderLayout());
-        updateUIColors();
+        screens.show(CART_SCREEN, CartScreen::new);
+    }
 
-        JPanel headerPanel = new JPanel(new BorderLayout());
-        headerPanel.setBackground(currentScheme.primaryColor);
-        headerPanel.setBorder(new EmptyBorder(10, 10, 10, 10));
+    // Shows the cart model and patches itself line by line: when the model has moved
+    // on since the last render, removed lines lose their panel, lines whose quantity
+    // changed get a fresh one and only new lines need their garment looked up
+    private class CartScreen extends Screen {
+        private final JPanel list = new JPanel(new GridLayout(0, 1, 10, 10));
+        private final JScrollPane scrollPane = new JScrollPane(list);
+        private final JLabel emptyCartLabel = new JLabel("Your cart is empty.", SwingConstants.CENTER);
+        private final JPanel totalPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        private final JLabel totalLabel = new JLabel();
+        private final Map<Object, CartRow> rows = new HashMap<>();
+        private long renderedVersion = -1;
+
+        CartScreen() {
+            add(createScreenHeader("Your Cart"), BorderLayout.NORTH);
+            theme.background(list, ThemeRole.BACKGROUND);
+            list.setBorder(new EmptyBorder(20, 20, 20, 20));
 
-        JButton backButton = createStyledButton("Back", e -> viewProducts());
-        headerPanel.add(backButton, BorderLayout.WEST);
+            scrollPane.setVerticalScrollBarPolicy(ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS);
+            scrollPane.getVerticalScrollBar().setUnitIncrement(16);
+            scrollPane.setBorder(null);
 
-        JLabel titleLabel = new JLabel("Your Cart", SwingConstants.CENTER);
-        titleLabel.setFont(TITLE_FONT);
-        titleLabel.setForeground(Color.WHITE);
-        headerPanel.add(titleLabel, BorderLayout.CENTER);
-
-        frame.add(headerPanel, BorderLayout.NORTH);
+            emptyCartLabel.setFont(HEADER_FONT);
+            theme.foreground(emptyCartLabel, ThemeRole.TEXT);
 
-        MongoCollection<Document> cartCollection = database.getCollection(CART_COLLECTION);
-        List<Document> cartItems = cartCollection.find(new Document("username", currentUser)).into(new ArrayList<>());
+            theme.background(totalPanel, ThemeRole.SECONDARY);
+            totalLabel.setFont(HEADER_FONT);
+            theme.foreground(totalLabel, ThemeRole.PRIMARY);
+            totalPanel.add(totalLabel);
+            totalPanel.add(createStyledButton("Checkout", e -> checkout(cartModel.lines())));
+        }
 
-        if (cartItems.isEmpty()) {
-            JLabel emptyCartLabel = new JLabel("Your cart is empty.", SwingConstants.CENTER);
-            emptyCartLabel.setFont(HEADER_FONT);
-            frame.add(emptyCartLabel, BorderLayout.CENTER);
-        } else {
-            JPanel panel = new JPanel(new GridLayout(0, 1, 10, 10));
-            panel.setBackground(currentScheme.backgroundColor);
-            panel.setBorder(new EmptyBorder(20, 20, 20, 20));
+        @Override
+        boolean isStale() {
+            return super.isStale() || cartModel.version() != renderedVersion;
+        }
 
-            double total = 0;
+        @Override
+        void reload() {
+            CartModel model = cartModel;
+            long version = model.version();
+            if (renderedVersion >= 0) {
+                // Edits made on this screen only ever touch lines that are already shown
+                List<Document> lines = model.lines();
+                if (newLines(lines).isEmpty()) {
+                    render(version, new LineItems(lines, Collections.emptyMap()));
+                    return;
+                }
+            }
+            load(() -> {
+                List<Document> lines = model.load();
+                return new LineItems(lines, lookupGarments(newLines(lines)));
+            }, cart -> render(version, cart));
+        }
 
-            for (Document cartItem : cartItems) {
-                Document garment = (Document) cartItem.get("garment");
-                JPanel itemPanel = createCartItemPanel(cartItem, garment);
-                panel.add(itemPanel);
-                total += garment.getDouble("price");
+        private List<Document> newLines(List<Document> lines) {
+            List<Document> added = new ArrayList<>();
+            for (Document line : lines) {
+                if (!rows.containsKey(line.get("_id"))) {
+                    added.add(line);
+                }
             }
+            return added;
+        }
 
-            JScrollPane scrollPane = new JScrollPane(panel);
-            scrollPane.setVerticalScrollBarPolicy(ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS);
-            scrollPane.getVerticalScrollBar().setUnitIncrement(16);
-            scrollPane.setBorder(null);
+        private void render(long version, LineItems cart) {
+            renderedVersion = version;
+            Set<Object> lineIds = new HashSet<>();
+            for (Document line : cart.lines) {
+                lineIds.add(line.get("_id"));
+            }
+            Iterator<Map.Entry<Object, CartRow>> gone = rows.entrySet().iterator();
+            while (gone.hasNext()) {
+                CartRow row = gone.next().getValue();
+                if (!lineIds.contains(row.line.get("_id"))) {
+                    list.remove(row.panel);
+                    gone.remove();
+                }
+            }
 
-            frame.add(scrollPane, BorderLayout.CENTER);
+            for (int index = 0; index < cart.lines.size(); index++) {
+                Document line = cart.lines.get(index);
+                CartRow row = rows.get(line.get("_id"));
+                if (row == null || lineQuantity(row.line) != lineQuantity(line) || linePrice(row.line) != linePrice(line)) {
+                    Document garment = row != null ? row.garment : lineGarment(line, cart.garments);
+                    if (row != null) {
+                        list.remove(row.panel);
+                    }
+                    row = new CartRow(line, garment, createCartItemPanel(line, garment));
+                    rows.put(line.get("_id"), row);
+                    list.add(row.panel, index);
+                } else if (list.getComponent(index) != row.panel) {
+                    list.remove(row.panel);
+                    list.add(row.panel, index);
+                }
+            }
 
-            JPanel totalPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
-            totalPanel.setBackground(currentScheme.secondaryColor);
-            JLabel totalLabel = new JLabel("Total: $" + String.format("%.2f", total));
-            totalLabel.setFont(HEADER_FONT);
-            totalLabel.setForeground(currentScheme.primaryColor);
-            totalPanel.add(totalLabel);
+            totalLabel.setText("Total: $" + String.format("%.2f", cartTotal(cart.lines)));
+            if (cart.lines.isEmpty()) {
+                setBody(emptyCartLabel, null);
+            } else {
+                setBody(scrollPane, totalPanel);
+            }
+            list.revalidate();
+            list.repaint();
+        }
+    }
 
-            JButton checkoutButton = createStyledButton("Checkout", e -> checkout(cartItems));
-            totalPanel.add(checkoutButton);
+    private static class CartRow {
+        final Document line;
+        final Document garment;
+        final JPanel panel;
 
-            frame.add(totalPanel, BorderLayout.SOUTH);
+        CartRow(Document line, Document garment, JPanel panel) {
+            this.line = line;
+            this.garment = garment;
+            this.panel = panel;
         }
-
-        frame.revalidate();
-        frame.repaint();
     }
 
     public void checkout(List<Document> cartItems) {
@@ -723,104 +1648,245 @@ public class OnlineGarmentShoppingApp {
             String address = addressField.getText();
             String phone = phoneField.getText();
 
-            MongoCollection<Document> ordersCollection = database.getCollection(ORDERS_COLLECTION);
-            MongoCollection<Document> cartCollection = database.getCollection(CART_COLLECTION);
-
+            List<Object> cartItemIds = new ArrayList<>();
             for (Document cartItem : cartItems) {
-                Document order = new Document("username", currentUser)
-                                    .append("garment", cartItem.get("garment"))
-                                    .append("size", cartItem.getString("size"))
-                                    .append("name", name)
-                                    .append("address", address)
-                                    .append("phone", phone)
-                                    .append("status", "Placed");
-                ordersCollection.insertOne(order);
-                cartCollection.deleteOne(cartItem);
+                cartItemIds.add(cartItem.get("_id"));
             }
-
-            JOptionPane.showMessageDialog(frame, "Order placed successfully!");
-            viewProducts();
+            placeOrder(cartItems, name, address, phone, cartItemIds, () -> {
+                JOptionPane.showMessageDialog(frame, "Order placed successfully!");
+                viewProducts();
+            });
         }
     }
 
-    public void viewOrders() {
-        frame.getContentPane().removeAll();
-        frame.setLayout(new BorderLayout());
-        updateUIColors();
+    private void placeOrder(List<Document> items, String name, String address, String phone, List<Object> cartItemIds,
+                            Runnable onPlaced) {
+        Order order = newOrder(currentUser, items, name, address, phone);
+        CartModel model = cartModel;
+        runAsync(() -> {
+            submitOrder(store(), model, order, cartItemIds);
+            return null;
+        }, placed -> {
+            screens.invalidate(ORDERS_SCREEN);
+            onPlaced.run();
+        });
+    }
 
-        JPanel headerPanel = new JPanel(new BorderLayout());
-        headerPanel.setBackground(currentScheme.primaryColor);
-        headerPanel.setBorder(new EmptyBorder(10, 10, 10, 10));
+    // An order header plus its lines, ready for OrderRepository.place
+    static class Order {
+        final Document header;
+        final List<Document> lines;
 
-        JButton backButton = createStyledButton("Back", e -> viewProducts());
-        headerPanel.add(backButton, BorderLayout.WEST);
+        Order(Document header, List<Document> lines) {
+            this.header = header;
+            this.lines = lines;
+        }
+    }
 
-        JLabel titleLabel = new JLabel("Your Orders", SwingConstants.CENTER);
-        titleLabel.setFont(TITLE_FONT);
-        titleLabel.setForeground(Color.WHITE);
-        headerPanel.add(titleLabel, BorderLayout.CENTER);
+    static Order newOrder(String username, List<Document> items, String name, String address, String phone) {
+        ObjectId orderId = new ObjectId();
+        Date createdAt = new Date();
+        List<Document> orderLines = new ArrayList<>();
+        List<Document> headerLines = new ArrayList<>();
+
+        for (Document item : items) {
+            Document headerLine = new Document("garmentId", lineGarmentId(item))
+                                    .append("size", item.getString("size"))
+                                    .append("quantity", lineQuantity(item))
+                                    .append("price", linePrice(item));
+            headerLines.add(headerLine);
+            // Lines carry their own _id so a replayed order cannot write them twice
+            orderLines.add(new Document("_id", new ObjectId())
+                                .append("orderId", orderId)
+                                .append("username", username)
+                                .append("garmentId", headerLine.get("garmentId"))
+                                .append("size", headerLine.getString("size"))
+                                .append("quantity", headerLine.getInteger("quantity"))
+                                .append("price", headerLine.getDouble("price"))
+                                .append("name", name)
+                                .append("address", address)
+                                .append("phone", phone)
+                                .append("status", "Placed")
+                                .append("createdAt", createdAt));
+        }
+
+        Document header = new Document("_id", orderId)
+                            .append("username", username)
+                            .append("name", name)
+                            .append("address", address)
+                            .append("phone", phone)
+                            .append("status", "Placed")
+                            .append("total", cartTotal(items))
+                            .append("lines", headerLines)
+                            .append("createdAt", createdAt);
+        return new Order(header, orderLines);
+    }
+
+    // Runs off the EDT. The store writes the order and clears the purchased cart
+    // lines as a single unit.
+    private static void submitOrder(ShopStore store, CartModel model, Order order, List<Object> cartItemIds) {
+        // Purchased lines may still only exist locally
+        if (!cartItemIds.isEmpty()) {
+            model.flush();
+        }
+        Metrics.time("op.checkout", () -> {
+            store.orders().place(order.header, order.lines, order.header.getString("username"), cartItemIds);
+            return null;
+        });
+        if (!cartItemIds.isEmpty()) {
+            model.refresh();
+        }
+    }
 
-        frame.add(headerPanel, BorderLayout.NORTH);
+    public void viewOrders() {
+        screens.show(ORDERS_SCREEN, OrdersScreen::new);
+    }
 
-        MongoCollection<Document> ordersCollection = database.getCollection(ORDERS_COLLECTION);
-        List<Document> orders = ordersCollection.find(new Document("username", currentUser)).into(new ArrayList<>());
+    // Loads once and again only after an order is placed; the history it already
+    // shows stays on screen until the fresh summary arrives
+    private class OrdersScreen extends Screen {
+        OrdersScreen() {
+            add(createScreenHeader("Your Orders"), BorderLayout.NORTH);
+        }
 
-        if (orders.isEmpty()) {
-            JLabel emptyOrdersLabel = new JLabel("You have no orders.", SwingConstants.CENTER);
-            emptyOrdersLabel.setFont(HEADER_FONT);
-            frame.add(emptyOrdersLabel, BorderLayout.CENTER);
-        } else {
-            JPanel panel = new JPanel(new GridLayout(0, 1, 10, 10));
-            panel.setBackground(currentScheme.backgroundColor);
-            panel.setBorder(new EmptyBorder(20, 20, 20, 20));
+        @Override
+        void reload() {
+            String username = currentUser;
+            OrderHistoryPager pager = new OrderHistoryPager(() -> store().orders(), username, ORDER_PAGE_SIZE);
+            load(() -> store().orders().summary(username), summary -> showOrders(summary, pager));
+        }
 
-            for (Document order : orders) {
-                JPanel orderPanel = createOrderPanel(order);
-                panel.add(orderPanel);
+        private void showOrders(Document summary, OrderHistoryPager pager) {
+            if (summary.getInteger("orders") == 0) {
+                JLabel emptyOrdersLabel = new JLabel("You have no orders.", SwingConstants.CENTER);
+                emptyOrdersLabel.setFont(HEADER_FONT);
+                theme.foreground(emptyOrdersLabel, ThemeRole.TEXT);
+                setBody(emptyOrdersLabel, null);
+                return;
             }
-
-            JScrollPane scrollPane = new JScrollPane(panel);
+            JScrollPane scrollPane = new JScrollPane(new OrderHistoryList(pager));
             scrollPane.setVerticalScrollBarPolicy(ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS);
             scrollPane.getVerticalScrollBar().setUnitIncrement(16);
             scrollPane.setBorder(null);
 
-            frame.add(scrollPane, BorderLayout.CENTER);
+            List<String> statuses = new ArrayList<>();
+            for (Map.Entry<String, Object> status : summary.get("byStatus", Document.class).entrySet()) {
+                statuses.add(status.getKey() + ": " + status.getValue());
+            }
+            JPanel summaryPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+            theme.background(summaryPanel, ThemeRole.SECONDARY);
+            JLabel summaryLabel = new JLabel(summary.getInteger("orders") + " orders   Lifetime spend: $"
+                + String.format("%.2f", summary.getDouble("spend")) + "   " + String.join(", ", statuses));
+            summaryLabel.setFont(HEADER_FONT);
+            theme.foreground(summaryLabel, ThemeRole.PRIMARY);
+            summaryPanel.add(summaryLabel);
+
+            setBody(scrollPane, summaryPanel);
+        }
+    }
+
+    // Order history that builds order panels a page at a time, only when the user
+    // scrolls close to the end of what is already shown
+    private class OrderHistoryList extends JPanel {
+        private static final int PREFETCH_ROWS = 3;
+
+        private final OrderHistoryPager pager;
+        private boolean loadingPage;
+        private JViewport viewport;
+        private final ChangeListener viewportListener = e -> loadIfNearEnd();
+
+        OrderHistoryList(OrderHistoryPager pager) {
+            super(new GridLayout(0, 1, 10, 10));
+            this.pager = pager;
+            theme.background(this, ThemeRole.BACKGROUND);
+            setBorder(new EmptyBorder(20, 20, 20, 20));
+        }
+
+        @Override
+        public void addNotify() {
+            super.addNotify();
+            viewport = (JViewport) SwingUtilities.getAncestorOfClass(JViewport.class, this);
+            if (viewport != null) {
+                viewport.addChangeListener(viewportListener);
+            }
+            loadNextPage();
+        }
+
+        @Override
+        public void removeNotify() {
+            if (viewport != null) {
+                viewport.removeChangeListener(viewportListener);
+                viewport = null;
+            }
+            super.removeNotify();
+        }
+
+        // The viewport also reports view size changes, so this runs again after each
+        // page is laid out and keeps loading until the visible area is filled
+        private void loadIfNearEnd() {
+            if (viewport == null) {
+                return;
+            }
+            Rectangle visible = viewport.getViewRect();
+            if (visible.y + visible.height + PREFETCH_ROWS * ITEM_SIZE.height >= getHeight()) {
+                loadNextPage();
+            }
         }
 
-        frame.revalidate();
-        frame.repaint();
+        private void loadNextPage() {
+            if (loadingPage || !pager.hasMore()) {
+                return;
+            }
+            loadingPage = true;
+            dataService.call(() -> {
+                List<Document> orders = pager.nextPage();
+                return new LineItems(orders, lookupGarments(orders));
+            }).whenComplete((page, error) -> SwingUtilities.invokeLater(() -> {
+                loadingPage = false;
+                if (error != null) {
+                    System.out.println("Error loading order history page");
+                    error.printStackTrace();
+                    return;
+                }
+                for (Document order : page.lines) {
+                    add(createOrderPanel(order, lineGarment(order, page.garments)));
+                }
+                revalidate();
+                repaint();
+            }));
+        }
     }
 
-    private JPanel createOrderPanel(Document order) {
+    private JPanel createOrderPanel(Document order, Document garment) {
         JPanel orderPanel = new JPanel(new BorderLayout(10, 10));
-        orderPanel.setBackground(currentScheme.secondaryColor);
-        orderPanel.setBorder(BorderFactory.createLineBorder(currentScheme.primaryColor));
+        theme.background(orderPanel, ThemeRole.SECONDARY);
+        orderPanel.setBorder(theme.lineBorder(ThemeRole.PRIMARY));
         orderPanel.setPreferredSize(ITEM_SIZE);
 
-        Document garment = (Document) order.get("garment");
         String imagePath = garment.getString("image");
-        ImageIcon garmentImage = loadImage(imagePath, 100, 100);
-        JLabel imageLabel = new JLabel(garmentImage);
+        JLabel imageLabel = new JLabel();
+        loadImage(imageLabel, imagePath, 100, 100);
         imageLabel.setBorder(new EmptyBorder(5, 5, 5, 5));
 
         JPanel infoPanel = new JPanel(new GridLayout(4, 1, 5, 5));
-        infoPanel.setBackground(currentScheme.secondaryColor);
+        theme.background(infoPanel, ThemeRole.SECONDARY);
 
         JLabel nameLabel = new JLabel(garment.getString("name"));
         nameLabel.setFont(HEADER_FONT);
-        nameLabel.setForeground(currentScheme.textColor);
+        theme.foreground(nameLabel, ThemeRole.TEXT);
 
-        JLabel priceLabel = new JLabel("$" + String.format("%.2f", garment.getDouble("price")));
+        // The line total, as the order summary's spend counts it
+        JLabel priceLabel = new JLabel("$" + String.format("%.2f", linePrice(order) * lineQuantity(order)));
         priceLabel.setFont(BODY_FONT);
-        priceLabel.setForeground(currentScheme.accentColor);
+        theme.foreground(priceLabel, ThemeRole.ACCENT);
 
-        JLabel sizeLabel = new JLabel("Size: " + order.getString("size"));
+        JLabel sizeLabel = new JLabel("Size: " + order.getString("size") + "   Qty: " + lineQuantity(order));
         sizeLabel.setFont(BODY_FONT);
-        sizeLabel.setForeground(currentScheme.textColor);
+        theme.foreground(sizeLabel, ThemeRole.TEXT);
 
         JLabel statusLabel = new JLabel("Status: " + order.getString("status"));
         statusLabel.setFont(BODY_FONT);
-        statusLabel.setForeground(currentScheme.textColor);
+        theme.foreground(statusLabel, ThemeRole.TEXT);
 
         infoPanel.add(nameLabel);
         infoPanel.add(priceLabel);
@@ -834,7 +1900,6114 @@ public class OnlineGarmentShoppingApp {
     }
 
     public void logout() {
+        screens.clear();
+        stopCart();
         currentUser = null;
         displayLogin();
-    }
+    }
+
+    // Fetches and decodes product images on a small worker pool so the
+    // event dispatch thread only ever sees ready-made icons
+    private static class ImageLoader {
+        private static final int WORKER_THREADS = 4;
+        private static final int CONNECT_TIMEOUT_MS = 5000;
+        private static final int READ_TIMEOUT_MS = 10000;
+        private static final String PENDING_KEY = "ImageLoader.pending";
+
+        private final ExecutorService workers = Executors.newFixedThreadPool(WORKER_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "image-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final Map<String, CompletableFuture<ImageIcon>> inFlight = new ConcurrentHashMap<>();
+        private final Map<String, ImageIcon> placeholders = new ConcurrentHashMap<>();
+        private final ThumbnailCache cache = new ThumbnailCache();
+
+        ImageLoader() {
+            workers.execute(cache::pruneDisk);
+        }
+
+        // Shows a placeholder right away and swaps in the real image once it arrives.
+        // Must be called on the event dispatch thread.
+        void loadInto(JLabel label, String path, int width, int height) {
+            if (path == null || path.isEmpty()) {
+                System.out.println("Warning: Image path is null or empty");
+                label.putClientProperty(PENDING_KEY, null);
+                label.setIcon(placeholder("No Image", width, height));
+                return;
+            }
+
+            String key = path + "@" + width + "x" + height;
+            ImageIcon cached = cache.getFromMemory(key);
+            Metrics.cache("image.memory").record(cached != null);
+            if (cached != null) {
+                label.putClientProperty(PENDING_KEY, null);
+                label.setIcon(cached);
+                return;
+            }
+            label.putClientProperty(PENDING_KEY, key);
+            label.setIcon(placeholder("Loading...", width, height));
+
+            fetchAsync(key, path, width, height).thenAccept(icon -> SwingUtilities.invokeLater(() -> {
+                // The label may have been reused for another garment in the meantime
+                if (key.equals(label.getClientProperty(PENDING_KEY))) {
+                    label.setIcon(icon != null ? icon : placeholder("No Image", width, height));
+                    label.putClientProperty(PENDING_KEY, null);
+                }
+            }));
+        }
+
+        // The image through the same caches as loadInto, without a label to put it in
+        CompletableFuture<ImageIcon> load(String path, int width, int height) {
+            String key = path + "@" + width + "x" + height;
+            ImageIcon cached = cache.getFromMemory(key);
+            return cached != null ? CompletableFuture.completedFuture(cached) : fetchAsync(key, path, width, height);
+        }
+
+        // Requests for the same image while one fetch is running share it
+        private CompletableFuture<ImageIcon> fetchAsync(String key, String path, int width, int height) {
+            CompletableFuture<ImageIcon> future = inFlight.computeIfAbsent(key,
+                k -> CompletableFuture.supplyAsync(() -> fetch(key, path, width, height), workers));
+            future.whenComplete((icon, error) -> inFlight.remove(key, future));
+            return future;
+        }
+
+        private ImageIcon fetch(String key, String path, int width, int height) {
+            long start = System.nanoTime();
+            ImageIcon icon = fetchUncached(key, path, width, height);
+            LatencyHistogram fetches = Metrics.latency("image.fetch");
+            if (icon == null) {
+                fetches.recordError();
+            }
+            fetches.record(System.nanoTime() - start);
+            return icon;
+        }
+
+        private ImageIcon fetchUncached(String key, String path, int width, int height) {
+            ThumbnailCache.DiskEntry onDisk = Metrics.time("image.disk.read", () -> cache.readFromDisk(key));
+            Metrics.cache("image.disk").record(onDisk != null && onDisk.isFresh());
+            if (onDisk != null && onDisk.isFresh()) {
+                return cache.putInMemory(key, new ImageIcon(onDisk.image));
+            }
+
+            try {
+                URLConnection connection = new URL(path).openConnection();
+                connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+                connection.setReadTimeout(READ_TIMEOUT_MS);
+                if (onDisk != null) {
+                    // Revalidate the stale thumbnail instead of downloading it again
+                    if (onDisk.etag != null) {
+                        connection.setRequestProperty("If-None-Match", onDisk.etag);
+                    }
+                    if (onDisk.lastModified > 0) {
+                        connection.setIfModifiedSince(onDisk.lastModified);
+                    }
+                }
+                long connectStart = System.nanoTime();
+                boolean notModified = onDisk != null && connection instanceof HttpURLConnection
+                    && ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+                if (onDisk != null) {
+                    Metrics.cache("image.revalidation").record(notModified);
+                }
+                if (notModified) {
+                    Metrics.latency("image.connect").record(System.nanoTime() - connectStart);
+                    cache.markRevalidated(key, onDisk);
+                    return cache.putInMemory(key, new ImageIcon(onDisk.image));
+                }
+                try (InputStream in = connection.getInputStream()) {
+                    long decodeStart = System.nanoTime();
+                    Metrics.latency("image.connect").record(decodeStart - connectStart);
+                    // Includes the transfer, since the decoder reads straight off the connection
+                    BufferedImage image = ThumbnailScaler.decode(in, width, height);
+                    Metrics.latency("image.decode").record(System.nanoTime() - decodeStart);
+                    if (image != null) {
+                        BufferedImage scaledImage = Metrics.time("image.scale", () -> ThumbnailScaler.scale(image, width, height));
+                        Metrics.time("image.disk.write", () -> {
+                            cache.writeToDisk(key, scaledImage, connection.getHeaderField("ETag"), connection.getLastModified());
+                            return null;
+                        });
+                        return cache.putInMemory(key, new ImageIcon(scaledImage));
+                    }
+                }
+                System.out.println("Warning: Could not read image from URL: " + path);
+            } catch (Exception e) {
+                System.out.println("Error loading image from URL: " + path);
+                e.printStackTrace();
+            }
+            // A stale thumbnail is still better than a placeholder when the server is unreachable
+            return onDisk != null ? cache.putInMemory(key, new ImageIcon(onDisk.image)) : null;
+        }
+
+        private ImageIcon placeholder(String text, int width, int height) {
+            return placeholders.computeIfAbsent(text + "@" + width + "x" + height,
+                k -> createPlaceholderImage(text, width, height));
+        }
+
+        private static ImageIcon createPlaceholderImage(String text, int width, int height) {
+            BufferedImage placeholderImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g2d = placeholderImage.createGraphics();
+            g2d.setColor(Color.LIGHT_GRAY);
+            g2d.fillRect(0, 0, width, height);
+            g2d.setColor(Color.GRAY);
+            g2d.drawRect(0, 0, width - 1, height - 1);
+            g2d.setColor(Color.DARK_GRAY);
+            g2d.drawString(text, 10, height / 2);
+            g2d.dispose();
+            return new ImageIcon(placeholderImage);
+        }
+    }
+
+    // Two-tier cache of scaled thumbnails keyed by image URL and target size: an LRU of
+    // icons in memory backed by PNG files on disk that survive restarts
+    private static class ThumbnailCache {
+        private static final long MAX_MEMORY_BYTES = 64L * 1024 * 1024;
+        private static final long MAX_DISK_BYTES = 256L * 1024 * 1024;
+        private static final long DISK_TTL_MS = 24L * 60 * 60 * 1000;
+        private static final Path DISK_DIRECTORY = Paths.get(System.getProperty("user.home"), ".shoppie", "thumbnails");
+
+        static class DiskEntry {
+            final BufferedImage image;
+            final String etag;
+            final long lastModified;
+            final long fetchedAt;
+
+            DiskEntry(BufferedImage image, String etag, long lastModified, long fetchedAt) {
+                this.image = image;
+                this.etag = etag;
+                this.lastModified = lastModified;
+                this.fetchedAt = fetchedAt;
+            }
+
+            boolean isFresh() {
+                return System.currentTimeMillis() - fetchedAt < DISK_TTL_MS;
+            }
+        }
+
+        private final LinkedHashMap<String, ImageIcon> memory = new LinkedHashMap<>(16, 0.75f, true);
+        private long memoryBytes;
+
+        synchronized ImageIcon getFromMemory(String key) {
+            return memory.get(key);
+        }
+
+        synchronized ImageIcon putInMemory(String key, ImageIcon icon) {
+            ImageIcon previous = memory.put(key, icon);
+            if (previous != null) {
+                memoryBytes -= sizeOf(previous);
+            }
+            memoryBytes += sizeOf(icon);
+            Iterator<Map.Entry<String, ImageIcon>> eldest = memory.entrySet().iterator();
+            while (memoryBytes > MAX_MEMORY_BYTES && eldest.hasNext()) {
+                memoryBytes -= sizeOf(eldest.next().getValue());
+                eldest.remove();
+            }
+            return icon;
+        }
+
+        private static long sizeOf(ImageIcon icon) {
+            return 4L * icon.getIconWidth() * icon.getIconHeight();
+        }
+
+        DiskEntry readFromDisk(String key) {
+            Path imageFile = imageFile(key);
+            Path metaFile = metaFile(key);
+            if (!Files.exists(imageFile) || !Files.exists(metaFile)) {
+                return null;
+            }
+            try (InputStream in = Files.newInputStream(metaFile)) {
+                Properties meta = new Properties();
+                meta.load(in);
+                BufferedImage image = ImageIO.read(imageFile.toFile());
+                if (image == null) {
+                    return null;
+                }
+                image = ThumbnailScaler.scale(image, image.getWidth(), image.getHeight());
+                touch(imageFile);
+                return new DiskEntry(image, meta.getProperty("etag"),
+                    Long.parseLong(meta.getProperty("lastModified", "0")),
+                    Long.parseLong(meta.getProperty("fetchedAt", "0")));
+            } catch (IOException | NumberFormatException e) {
+                System.out.println("Warning: Ignoring unreadable cached thumbnail for " + key);
+                return null;
+            }
+        }
+
+        void writeToDisk(String key, BufferedImage image, String etag, long lastModified) {
+            Path tempImage = null;
+            try {
+                Files.createDirectories(DISK_DIRECTORY);
+                tempImage = Files.createTempFile(DISK_DIRECTORY, "thumb", ".tmp");
+                ImageIO.write(image, "png", tempImage.toFile());
+                Files.move(tempImage, imageFile(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                tempImage = null;
+                writeMeta(key, etag, lastModified);
+            } catch (IOException e) {
+                System.out.println("Warning: Could not cache thumbnail for " + key);
+            } finally {
+                deleteQuietly(tempImage);
+            }
+        }
+
+        void markRevalidated(String key, DiskEntry entry) {
+            try {
+                writeMeta(key, entry.etag, entry.lastModified);
+                touch(imageFile(key));
+            } catch (IOException e) {
+                System.out.println("Warning: Could not update cached thumbnail for " + key);
+            }
+        }
+
+        private void writeMeta(String key, String etag, long lastModified) throws IOException {
+            Properties meta = new Properties();
+            meta.setProperty("url", key);
+            if (etag != null) {
+                meta.setProperty("etag", etag);
+            }
+            meta.setProperty("lastModified", Long.toString(lastModified));
+            meta.setProperty("fetchedAt", Long.toString(System.currentTimeMillis()));
+            Path tempMeta = Files.createTempFile(DISK_DIRECTORY, "meta", ".tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(tempMeta)) {
+                    meta.store(out, null);
+                }
+                Files.move(tempMeta, metaFile(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                deleteQuietly(tempMeta);
+            }
+        }
+
+        // The PNG's modification time records when it was last used, which pruneDisk() goes by
+        private static void touch(Path imageFile) {
+            try {
+                Files.setLastModifiedTime(imageFile, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (IOException e) {
+                // Only makes the thumbnail a little likelier to be pruned
+            }
+        }
+
+        private static void deleteQuietly(Path file) {
+            if (file == null) {
+                return;
+            }
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                System.out.println("Warning: Could not delete temporary file " + file);
+            }
+        }
+
+        // Deletes the least recently used thumbnails once the disk tier outgrows its budget
+        void pruneDisk() {
+            if (!Files.isDirectory(DISK_DIRECTORY)) {
+                return;
+            }
+            try {
+                List<Path> files = new ArrayList<>();
+                try (Stream<Path> listing = Files.list(DISK_DIRECTORY)) {
+                    listing.filter(file -> file.toString().endsWith(".png")).forEach(files::add);
+                }
+                long total = 0;
+                for (Path file : files) {
+                    total += Files.size(file);
+                }
+                if (total <= MAX_DISK_BYTES) {
+                    return;
+                }
+                files.sort((a, b) -> Long.compare(a.toFile().lastModified(), b.toFile().lastModified()));
+                for (Path file : files) {
+                    if (total <= MAX_DISK_BYTES) {
+                        break;
+                    }
+                    total -= Files.size(file);
+                    Files.deleteIfExists(file);
+                    String name = file.getFileName().toString();
+                    Files.deleteIfExists(file.resolveSibling(name.substring(0, name.length() - 4) + ".properties"));
+                }
+            } catch (IOException e) {
+                System.out.println("Warning: Could not prune thumbnail cache: " + e.getMessage());
+            }
+        }
+
+        private static Path imageFile(String key) {
+            return DISK_DIRECTORY.resolve(hash(key) + ".png");
+        }
+
+        private static Path metaFile(String key) {
+            return DISK_DIRECTORY.resolve(hash(key) + ".properties");
+        }
+
+        private static String hash(String key) {
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+                StringBuilder hex = new StringBuilder();
+                for (byte b : digest) {
+                    hex.append(String.format("%02x", b));
+                }
+                return hex.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    // Produces thumbnails without fully decoding large sources and without the
+    // lazily rendered images that getScaledInstance hands back
+    static class ThumbnailScaler {
+        // Decodes an image, letting the reader skip pixels when the source is far
+        // larger than the thumbnail. Keeps at least twice the target resolution so
+        // the final downscale still has detail to work with.
+        static BufferedImage decode(InputStream in, int width, int height) throws IOException {
+            try (ImageInputStream stream = ImageIO.createImageInputStream(in)) {
+                if (stream == null) {
+                    return null;
+                }
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+                if (!readers.hasNext()) {
+                    return null;
+                }
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(stream, true, true);
+                    int subsampling = Math.max(1, Math.min(reader.getWidth(0) / (width * 2), reader.getHeight(0) / (height * 2)));
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                    return reader.read(0, param);
+                } finally {
+                    reader.dispose();
+                }
+            }
+        }
+
+        // Halves the image with bilinear filtering until it is within a factor of two
+        // of the target, then draws the last step into a screen-compatible image
+        static BufferedImage scale(BufferedImage source, int width, int height) {
+            BufferedImage current = source;
+            int currentWidth = source.getWidth();
+            int currentHeight = source.getHeight();
+            while (currentWidth / 2 >= width && currentHeight / 2 >= height) {
+                currentWidth /= 2;
+                currentHeight /= 2;
+                BufferedImage step = new BufferedImage(currentWidth, currentHeight, BufferedImage.TYPE_INT_ARGB);
+                drawScaled(current, step, currentWidth, currentHeight);
+                current = step;
+            }
+            BufferedImage result = createCompatibleImage(width, height);
+            drawScaled(current, result, width, height);
+            return result;
+        }
+
+        static BufferedImage createCompatibleImage(int width, int height) {
+            if (GraphicsEnvironment.isHeadless()) {
+                return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            }
+            GraphicsConfiguration configuration = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                .getDefaultScreenDevice().getDefaultConfiguration();
+            return configuration.createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+        }
+
+        private static void drawScaled(BufferedImage source, BufferedImage target, int width, int height) {
+            Graphics2D g2d = target.createGraphics();
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g2d.drawImage(source, 0, 0, width, height, null);
+            g2d.dispose();
+        }
+    }
+
+    // Compares the thumbnail pipeline against the old ImageIO.read + getScaledInstance
+    // path. Run with: java Shoppie.java --benchmark-thumbnails [image-file] [iterations]
+    private static class ThumbnailBenchmark {
+        private static final int THUMBNAIL_SIZE = 100;
+
+        static void run(String[] args) {
+            try {
+                byte[] source = args.length > 1 ? Files.readAllBytes(Paths.get(args[1])) : syntheticJpeg(4000, 3000);
+                int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+                // Warm both paths up before measuring
+                measure("getScaledInstance", source, 3, ThumbnailBenchmark::legacyPath);
+                measure("ThumbnailScaler", source, 3, ThumbnailBenchmark::scalerPath);
+
+                System.out.println("Source: " + source.length + " bytes, " + iterations + " iterations");
+                System.out.println(measure("getScaledInstance", source, iterations, ThumbnailBenchmark::legacyPath));
+                System.out.println(measure("ThumbnailScaler", source, iterations, ThumbnailBenchmark::scalerPath));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        interface ThumbnailPath {
+            Image create(byte[] source) throws IOException;
+        }
+
+        private static Image legacyPath(byte[] source) throws IOException {
+            Image image = ImageIO.read(new ByteArrayInputStream(source));
+            // ImageIcon forces the lazily scaled pixels to be produced, as the old code did
+            return new ImageIcon(image.getScaledInstance(THUMBNAIL_SIZE, THUMBNAIL_SIZE, Image.SCALE_SMOOTH)).getImage();
+        }
+
+        private static Image scalerPath(byte[] source) throws IOException {
+            BufferedImage decoded = ThumbnailScaler.decode(new ByteArrayInputStream(source), THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+            return ThumbnailScaler.scale(decoded, THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+        }
+
+        private static String measure(String name, byte[] source, int iterations, ThumbnailPath path) throws IOException {
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    heapPools.add(pool);
+                }
+            }
+
+            System.gc();
+            heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+            long cpuStart = threads.getCurrentThreadCpuTime();
+            long wallStart = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                path.create(source);
+            }
+            long cpuNanos = threads.getCurrentThreadCpuTime() - cpuStart;
+            long wallNanos = System.nanoTime() - wallStart;
+            long peakHeap = 0;
+            for (MemoryPoolMXBean pool : heapPools) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+
+            return String.format("%-18s cpu %8.2f ms/op   wall %8.2f ms/op   peak heap %6d MB",
+                name, cpuNanos / 1e6 / iterations, wallNanos / 1e6 / iterations, peakHeap / (1024 * 1024));
+        }
+
+        private static byte[] syntheticJpeg(int width, int height) throws IOException {
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g2d = image.createGraphics();
+            g2d.setPaint(new GradientPaint(0, 0, Color.DARK_GRAY, width, height, Color.LIGHT_GRAY));
+            g2d.fillRect(0, 0, width, height);
+            g2d.setColor(Color.WHITE);
+            for (int x = 0; x < width; x += 40) {
+                g2d.drawLine(x, 0, width - x, height);
+            }
+            g2d.dispose();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(image, "jpg", out);
+            return out.toByteArray();
+        }
+    }
+
+    // Measures search latency over a synthetic catalog.
+    // Run with: java Shoppie.java --benchmark-search [garments] [queries]
+    private static class SearchBenchmark {
+        private static final String[] WORDS = {"modern", "designer", "sleek", "trendy", "stylish", "classic", "linen",
+            "denim", "wool", "cotton", "shirt", "jeans", "jacket", "sneakers", "hat", "dress", "skirt", "coat", "boots", "scarf"};
+        private static final String[] CATEGORIES = {"Clothing", "Footwear", "Accessories", "Outerwear", "Sportswear"};
+        private static final String[] QUERIES = {"s", "sl", "jack", "denim j", "stylish hat", "sneekers", "wool coat", "foot"};
+
+        static void run(String[] args) {
+            int garments = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+            int queries = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+            Random random = new Random(42);
+            CatalogSearchIndex index = new CatalogSearchIndex();
+            long buildStart = System.nanoTime();
+            for (int i = 0; i < garments; i++) {
+                index.add(new Document("_id", new ObjectId())
+                    .append("name", WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)] + " " + i)
+                    .append("category", CATEGORIES[random.nextInt(CATEGORIES.length)])
+                    .append("price", 5 + random.nextInt(300) + 0.99));
+            }
+            System.out.printf("Indexed %d garments in %.1f ms%n", garments, (System.nanoTime() - buildStart) / 1e6);
+
+            for (String query : QUERIES) {
+                long[] nanos = new long[queries];
+                int results = 0;
+                for (int i = 0; i < queries; i++) {
+                    long start = System.nanoTime();
+                    results = index.search(query, null, -1, SEARCH_RESULT_LIMIT).total;
+                    nanos[i] = System.nanoTime() - start;
+                }
+                // Only the second half counts, the first half warms up
+                long[] measured = Arrays.copyOfRange(nanos, queries / 2, queries);
+                Arrays.sort(measured);
+                System.out.printf("%-14s %7d results   p50 %8.1f us   p99 %8.1f us%n", "'" + query + "'", results,
+                    measured[measured.length / 2] / 1e3, measured[(int) (measured.length * 0.99)] / 1e3);
+            }
+        }
+    }
+
+    // Serves the shop's data over HTTP so desktop clients started with
+    // -Dshoppie.store=remote share one connection pool, one catalog cache and one
+    // password hashing pool instead of each opening its own MongoClient. Identical
+    // reads that arrive together are answered by a single store call, and catalog
+    // and order history responses are kept until a write invalidates them.
+    // Shoppers act through the bearer token /auth/login hands them, which names
+    // the user; catalog and stock writes need -Dshoppie.adminToken. Passwords and
+    // tokens cross the network, so binding anywhere but loopback needs TLS from
+    // -Dshoppie.serviceKeystore.
+    // Run with: java Shoppie.java --serve [port] [bind-address]
+    static class ShopService implements HttpHandler {
+        private static final int CACHED_RESPONSES = 2048;
+        private static final String CATALOG = "catalog";
+        // The writes that need the admin token; RemoteShopStore sends it with these
+        static final Set<String> ADMIN_WRITES = Set.of("/garments", "/inventory/restock");
+
+        private final ShopStore store;
+        private final CatalogCache catalog;
+        private final Accounts accounts;
+        private final Sessions sessions = new Sessions();
+        private final Map<String, Read> reads = new HashMap<>();
+        private final Map<String, Function<Document, Document>> writes = new HashMap<>();
+        // Keyed by scope, generation and URI, so a write only has to bump its scope's generation
+        private final Map<String, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+        private final Map<String, byte[]> responses = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > CACHED_RESPONSES;
+            }
+        };
+        private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+        private final HitCounter responseHits = Metrics.cache("service.responses");
+        private final HitCounter coalesced = Metrics.cache("service.coalesced");
+
+        // A GET endpoint: the scope whose writes make its answer stale, and whether
+        // answers are worth keeping once they have been sent
+        private static class Read {
+            final Function<Document, String> scope;
+            final boolean cached;
+            final Function<Document, Document> handler;
+
+            Read(Function<Document, String> scope, boolean cached, Function<Document, Document> handler) {
+                this.scope = scope;
+                this.cached = cached;
+                this.handler = handler;
+            }
+        }
+
+        // Turned away before the endpoint runs, with the status to answer
+        private static class Refused extends RuntimeException {
+            final int status;
+
+            Refused(int status, String message) {
+                super(message);
+                this.status = status;
+            }
+        }
+
+        // Random bearer tokens handed out on sign-in, each naming its user until it lapses
+        private static class Sessions {
+            private final SecureRandom random = new SecureRandom();
+            private final Map<String, Session> byToken = new ConcurrentHashMap<>();
+
+            private static class Session {
+                final String username;
+                final long expiresAt;
+
+                Session(String username, long expiresAt) {
+                    this.username = username;
+                    this.expiresAt = expiresAt;
+                }
+            }
+
+            String start(String username) {
+                byte[] bytes = new byte[32];
+                random.nextBytes(bytes);
+                String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+                long now = System.currentTimeMillis();
+                byToken.values().removeIf(session -> session.expiresAt <= now);
+                byToken.put(token, new Session(username, now + SESSION_MS));
+                return token;
+            }
+
+            // The user the token was handed to, or null when it is unknown or has lapsed
+            String usernameFor(String token) {
+                Session session = token != null ? byToken.get(token) : null;
+                if (session == null) {
+                    return null;
+                }
+                if (session.expiresAt <= System.currentTimeMillis()) {
+                    byToken.remove(token, session);
+                    return null;
+                }
+                return session.username;
+            }
+        }
+
+        private ShopService(ShopStore store, CatalogCache catalog, Accounts accounts) {
+            this.store = store;
+            this.catalog = catalog;
+            this.accounts = accounts;
+
+            reads.put("/garments/empty", new Read(q -> CATALOG, true,
+                q -> new Document("empty", catalog.isEmpty())));
+            reads.put("/garments/page", new Read(q -> CATALOG, true,
+                q -> items(catalog.page(required(q, "sortField", String.class), q.get("afterSortValue"), q.get("afterId"), limit(q)))));
+            // Id sets are rarely asked for twice, so these are only coalesced
+            reads.put("/garments/byIds", new Read(q -> CATALOG, false,
+                q -> items(catalog.findByIds(list(q, "ids", Object.class)))));
+            reads.put("/garments/modifiedSince", new Read(q -> CATALOG, true,
+                q -> items(catalog.modifiedSince(required(q, "since", Date.class)))));
+            reads.put("/cart", new Read(q -> cartScope(q), false,
+                q -> items(store.cart().findByUsername(username(q)))));
+            reads.put("/orders", new Read(q -> ordersScope(q), true,
+                q -> items(store.orders().findByUsername(username(q)))));
+            reads.put("/orders/page", new Read(q -> ordersScope(q), true,
+                q -> items(store.orders().page(username(q), optional(q, "beforeCreatedAt", Date.class), q.get("beforeId"), limit(q)))));
+            reads.put("/orders/summary", new Read(q -> ordersScope(q), true,
+                q -> store.orders().summary(username(q))));
+            // Stock moves with every checkout, so it is only coalesced
+            reads.put("/inventory", new Read(q -> "inventory:" + q.get("garmentId"), false,
+                q -> new Document("available", new Document(store.inventory().available(required(q, "garmentId", Object.class))))));
+
+            // The catalog listener below invalidates the catalog scope
+            writes.put("/garments", body -> {
+                List<Document> garments = list(body, "garments", Document.class);
+                catalog.insertAll(garments);
+                return new Document("garments", garments);
+            });
+            writes.put("/cart/add", body -> {
+                store.cart().add(line(body, username(body)));
+                invalidate(cartScope(body));
+                return new Document();
+            });
+            writes.put("/cart/remove", body -> {
+                store.cart().remove(username(body), required(body, "lineId", Object.class));
+                invalidate(cartScope(body));
+                return new Document();
+            });
+            writes.put("/cart/apply", body -> {
+                Map<Object, Integer> quantities = new LinkedHashMap<>();
+                for (Document pair : list(body, "quantities", Document.class)) {
+                    quantities.put(required(pair, "lineId", Object.class), quantity(pair));
+                }
+                store.cart().applyChanges(username(body), lines(body, "additions", username(body)),
+                    list(body, "removedIds", Object.class), quantities);
+                invalidate(cartScope(body));
+                return new Document();
+            });
+            writes.put("/orders/place", body -> {
+                store.orders().place(required(body, "header", Document.class), lines(body, "lines", username(body)),
+                    username(body), list(body, "cartItemIds", Object.class));
+                invalidate(ordersScope(body));
+                invalidate(cartScope(body));
+                return new Document();
+            });
+            writes.put("/inventory/restock", body -> {
+                store.inventory().restock(required(body, "garmentId", Object.class), required(body, "size", String.class),
+                    atLeast(body, "units", 1));
+                return new Document();
+            });
+            writes.put("/inventory/reserve", body -> new Document("reserved", store.inventory().reserve(username(body),
+                required(body, "garmentId", Object.class), required(body, "size", String.class), atLeast(body, "units", 0))));
+            writes.put("/auth/login", body -> {
+                String username = required(body, "username", String.class);
+                AuthOutcome outcome = accounts.signIn(username, password(body));
+                Document response = new Document("outcome", outcome.name());
+                return outcome == AuthOutcome.SUCCESS ? response.append("token", sessions.start(username)) : response;
+            });
+            writes.put("/auth/register", body ->
+                new Document("outcome", accounts.register(required(body, "username", String.class), password(body)).name()));
+
+            catalog.watch(new CatalogListener() {
+                @Override
+                public void changed(Document garment) {
+                    invalidate(CATALOG);
+                }
+
+                @Override
+                public void removed(Object garmentId) {
+                    invalidate(CATALOG);
+                }
+            });
+        }
+
+        static void run(String[] args) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : SERVICE_PORT;
+            String bindAddress = args.length > 2 ? args[2] : "127.0.0.1";
+            if (STORE_TYPE.equals("remote")) {
+                System.out.println("Error: The shop service needs -Dshoppie.store=mongo or -Dshoppie.store=memory");
+                return;
+            }
+            // Without TCP_NODELAY every small response waits out the client's delayed ACK, about 40 ms
+            if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+                System.setProperty("sun.net.httpserver.nodelay", "true");
+            }
+            HttpServer server;
+            try {
+                InetSocketAddress address = new InetSocketAddress(bindAddress, port);
+                if (SERVICE_KEYSTORE != null) {
+                    HttpsServer https = HttpsServer.create(address, 0);
+                    https.setHttpsConfigurator(new HttpsConfigurator(tlsContext()));
+                    server = https;
+                } else if (address.getAddress() != null && address.getAddress().isLoopbackAddress()) {
+                    server = HttpServer.create(address, 0);
+                } else {
+                    System.out.println("Error: Passwords and session tokens would cross the network in the clear; "
+                        + "bind to loopback or give the service a certificate with -Dshoppie.serviceKeystore");
+                    return;
+                }
+            } catch (IOException | GeneralSecurityException e) {
+                System.out.println("Error: Could not listen on " + bindAddress + ":" + port + ": " + e.getMessage());
+                return;
+            }
+            if (ADMIN_TOKEN == null) {
+                System.out.println("Warning: No -Dshoppie.adminToken is set, so catalog and stock changes through the service are turned off");
+            }
+
+            ShopStore store = openLocalStore();
+            store.prepare();
+            addSampleGarments(store);
+            startInventoryReconciler(store);
+            attach(server, store);
+            server.start();
+            Metrics.start(false);
+            System.out.printf("Serving the %s store on %s://%s:%d%n", STORE_TYPE, SERVICE_KEYSTORE != null ? "https" : "http",
+                bindAddress, server.getAddress().getPort());
+        }
+
+        // Serves store from server, which the caller starts
+        static void attach(HttpServer server, ShopStore store) {
+            CatalogCache catalog = new CatalogCache(store::garments);
+            ShopService service = new ShopService(store, catalog,
+                new LocalAccounts(store.users(), new PasswordHasher(PASSWORD_HASH_TARGET_MS, PASSWORD_HASH_THREADS)));
+            catalog.start();
+            server.createContext("/", service);
+            server.setExecutor(perTaskExecutor("shop-service"));
+        }
+
+        private static SSLContext tlsContext() throws IOException, GeneralSecurityException {
+            char[] password = SERVICE_KEYSTORE_PASSWORD.toCharArray();
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            try (InputStream in = Files.newInputStream(Paths.get(SERVICE_KEYSTORE))) {
+                keyStore.load(in, password);
+            }
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(keyStore, password);
+            SSLContext tls = SSLContext.getInstance("TLS");
+            tls.init(keys.getKeyManagers(), null, null);
+            return tls;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            Read read = reads.get(path);
+            Function<Document, Document> write = writes.get(path);
+            int status = 200;
+            byte[] body;
+            try {
+                if (read == null && write == null) {
+                    status = 404;
+                    body = error("No such endpoint: " + path);
+                } else if (read != null && exchange.getRequestMethod().equals("GET")) {
+                    Document query = query(exchange.getRequestURI());
+                    authorize(path, exchange, query);
+                    body = Metrics.time("service" + path, () -> read(read, query, exchange.getRequestURI()));
+                } else if (write != null && exchange.getRequestMethod().equals("POST")) {
+                    Document request = Document.parse(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+                    authorize(path, exchange, request);
+                    body = Metrics.time("service" + path, () -> json(write.apply(request)));
+                } else {
+                    status = 405;
+                    body = error(exchange.getRequestMethod() + " is not supported on " + path);
+                }
+            } catch (Refused e) {
+                status = e.status;
+                body = error(e.getMessage());
+            } catch (OutOfStockException e) {
+                status = 409;
+                body = json(new Document("error", e.getMessage()).append("garmentId", e.garmentId).append("size", e.size));
+            } catch (JsonParseException | IllegalArgumentException e) {
+                status = 400;
+                body = error("Bad request to " + path + ": " + e.getMessage());
+            } catch (RuntimeException e) {
+                System.out.println("Error serving " + path + ": " + e.getMessage());
+                status = 500;
+                body = error(e.getMessage());
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+
+        private static Document query(URI uri) {
+            String rawQuery = uri.getRawQuery();
+            return rawQuery != null && rawQuery.startsWith("q=")
+                ? Document.parse(URLDecoder.decode(rawQuery.substring(2), StandardCharsets.UTF_8))
+                : new Document();
+        }
+
+        // Catalog and stock writes need the admin token. Requests that name a user
+        // need that user's session, and the session decides the username, so one
+        // shopper's token cannot read or change another's cart or orders. Catalog
+        // and stock reads and signing in are open to anyone.
+        private void authorize(String path, HttpExchange exchange, Document request) {
+            String token = bearerToken(exchange);
+            if (ADMIN_WRITES.contains(path)) {
+                if (ADMIN_TOKEN == null) {
+                    throw new Refused(403, "Catalog and stock changes are turned off on this service");
+                }
+                if (token == null || !MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), ADMIN_TOKEN.getBytes(StandardCharsets.UTF_8))) {
+                    throw new Refused(403, "Catalog and stock changes need the admin token");
+                }
+                return;
+            }
+            if (path.startsWith("/garments") || path.startsWith("/auth/") || path.equals("/inventory")) {
+                return;
+            }
+            String username = sessions.usernameFor(token);
+            if (username == null) {
+                throw new Refused(401, "Sign in first, or again if the session has lapsed");
+            }
+            Object named = request.get("username");
+            if (named != null && !named.equals(username)) {
+                throw new Refused(403, "Signed in as a different user");
+            }
+            request.put("username", username);
+        }
+
+        private static String bearerToken(HttpExchange exchange) {
+            String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            return authorization != null && authorization.startsWith("Bearer ") ? authorization.substring(7) : null;
+        }
+
+        private byte[] read(Read read, Document query, URI uri) {
+            String scope = read.scope.apply(query);
+            String key = scope + "|" + generation(scope).get() + "|" + uri;
+            if (read.cached) {
+                byte[] cached;
+                synchronized (responses) {
+                    cached = responses.get(key);
+                }
+                responseHits.record(cached != null);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+            CompletableFuture<byte[]> mine = new CompletableFuture<>();
+            CompletableFuture<byte[]> running = inFlight.putIfAbsent(key, mine);
+            coalesced.record(running != null);
+            if (running != null) {
+                try {
+                    return running.join();
+                } catch (CompletionException e) {
+                    throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+                }
+            }
+            try {
+                byte[] body = json(read.handler.apply(query));
+                if (read.cached) {
+                    synchronized (responses) {
+                        responses.put(key, body);
+                    }
+                }
+                mine.complete(body);
+                return body;
+            } catch (RuntimeException e) {
+                mine.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(key, mine);
+            }
+        }
+
+        // Later reads of the scope use a new key; the old responses age out of the cache
+        private void invalidate(String scope) {
+            generation(scope).incrementAndGet();
+        }
+
+        private AtomicLong generation(String scope) {
+            return generations.computeIfAbsent(scope, s -> new AtomicLong());
+        }
+
+        private static String cartScope(Document request) {
+            return "cart:" + username(request);
+        }
+
+        private static String ordersScope(Document request) {
+            return "orders:" + username(request);
+        }
+
+        // Set by authorize() from the session
+        private static String username(Document request) {
+            return request.getString("username");
+        }
+
+        private static char[] password(Document request) {
+            return required(request, "password", String.class).toCharArray();
+        }
+
+        // Request fields are checked here, so a malformed request gets a 400 naming
+        // the field instead of failing somewhere inside the store
+        private static <T> T required(Document request, String field, Class<T> type) {
+            T value = optional(request, field, type);
+            if (value == null) {
+                throw new IllegalArgumentException(field + " is missing");
+            }
+            return value;
+        }
+
+        private static <T> T optional(Document request, String field, Class<T> type) {
+            Object value = request.get(field);
+            if (value != null && !type.isInstance(value)) {
+                throw new IllegalArgumentException(field + " should be a " + type.getSimpleName() + " value");
+            }
+            return type.cast(value);
+        }
+
+        private static <T> List<T> list(Document request, String field, Class<T> itemType) {
+            List<?> values = required(request, field, List.class);
+            for (Object value : values) {
+                if (!itemType.isInstance(value)) {
+                    throw new IllegalArgumentException(field + " must only hold " + itemType.getSimpleName() + " values");
+                }
+            }
+            @SuppressWarnings("unchecked")
+            List<T> typed = (List<T>) values;
+            return typed;
+        }
+
+        private static int atLeast(Document request, String field, int min) {
+            int value = required(request, field, Integer.class);
+            if (value < min) {
+                throw new IllegalArgumentException(field + " must be at least " + min);
+            }
+            return value;
+        }
+
+        private static int limit(Document request) {
+            return atLeast(request, "limit", 1);
+        }
+
+        private static int quantity(Document line) {
+            return atLeast(line, "quantity", 1);
+        }
+
+        // A cart or order line must name a garment and size and belong to the signed-in user
+        private static Document line(Document line, String username) {
+            required(line, "garmentId", Object.class);
+            required(line, "size", String.class);
+            if (line.containsKey("quantity")) {
+                quantity(line);
+            }
+            optional(line, "price", Double.class);
+            Object owner = line.get("username");
+            if (owner != null && !owner.equals(username)) {
+                throw new IllegalArgumentException("A line belongs to a different user");
+            }
+            return line;
+        }
+
+        private static List<Document> lines(Document request, String field, String username) {
+            List<Document> lines = list(request, field, Document.class);
+            for (Document line : lines) {
+                line(line, username);
+            }
+            return lines;
+        }
+
+        private static Document items(List<Document> items) {
+            return new Document("items", items);
+        }
+
+        private static byte[] json(Document document) {
+            return document.toJson(RemoteShopStore.JSON).getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static byte[] error(String message) {
+            return json(new Document("error", message));
+        }
+    }
+
+    // Drives the shopping operations headlessly with many concurrent shoppers, to size
+    // the database and the client fleet without clicking through the UI. Runs against
+    // whichever store -Dshoppie.store selects. Shoppers sign in as sim-shopper-<n>
+    // and their carts and orders are real writes; only the in-memory store gets a
+    // synthetic catalog. Against a shop service the shoppers sign up through it and
+    // the service hashes their passwords; otherwise logins hash on this machine.
+    // Run with: java Shoppie.java --simulate-shoppers [shoppers] [seconds] [browse:cart:checkout:orders] [think-ms]
+    private static class ShopperSimulation {
+        private static final String PASSWORD = "simulated-password";
+        private static final String[] OPERATIONS = {"login", "viewProducts", "addToCart", "checkout", "viewOrders"};
+        private static final String[] SIZES = {"S", "M", "L", "XL"};
+        private static final int SEEDED_GARMENTS = 1000;
+
+        private final OnlineGarmentShoppingApp app = new OnlineGarmentShoppingApp();
+        private final Map<String, LatencyHistogram> latencies = new LinkedHashMap<>();
+        // Cumulative weights of browsing, adding to the cart, checking out and viewing orders
+        private final int[] mix = new int[4];
+        private final long thinkMs;
+        private ShopStore store;
+        private long deadline;
+
+        private ShopperSimulation(String mix, long thinkMs) {
+            String[] weights = mix.split(":");
+            int total = 0;
+            for (int i = 0; i < this.mix.length; i++) {
+                total += i < weights.length ? Integer.parseInt(weights[i]) : 0;
+                this.mix[i] = total;
+            }
+            if (total <= 0) {
+                throw new IllegalArgumentException("The operation mix needs at least one positive weight: " + mix);
+            }
+            this.thinkMs = thinkMs;
+            for (String operation : OPERATIONS) {
+                latencies.put(operation, Metrics.latency("sim." + operation));
+            }
+        }
+
+        static void run(String[] args) {
+            int shoppers = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+            int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+            String mix = args.length > 3 ? args[3] : "60:25:10:5";
+            long thinkMs = args.length > 4 ? Long.parseLong(args[4]) : 500;
+
+            ShopperSimulation simulation = new ShopperSimulation(mix, thinkMs);
+            simulation.prepare(shoppers);
+            System.out.printf("Simulating %d shoppers for %d s against the %s store, mix %s, think time %d ms%n",
+                shoppers, seconds, STORE_TYPE, mix, thinkMs);
+
+            ExecutorService threads = perTaskExecutor("shopper");
+            long start = System.nanoTime();
+            simulation.deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+            for (int i = 0; i < shoppers; i++) {
+                String username = "sim-shopper-" + i;
+                threads.execute(() -> simulation.shop(username));
+            }
+            threads.shutdown();
+            try {
+                if (!threads.awaitTermination(seconds + 60L, TimeUnit.SECONDS)) {
+                    System.out.println("Warning: Some shoppers were still busy when the report was taken");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            simulation.report((System.nanoTime() - start) / 1e9);
+        }
+
+        private void prepare(int shoppers) {
+            store = app.store();
+            if (STORE_TYPE.equals("memory")) {
+                Random random = new Random(42);
+                List<Document> garments = new ArrayList<>();
+                for (int i = 0; i < SEEDED_GARMENTS; i++) {
+                    garments.add(new Document("name", "Simulated garment " + i)
+                        .append("price", 5 + random.nextInt(300) + 0.99)
+                        .append("category", "Clothing")
+                        .append("sizes", List.of(SIZES)));
+                }
+                store.garments().insertAll(garments);
+            }
+            if (STORE_TYPE.equals("remote")) {
+                for (int i = 0; i < shoppers; i++) {
+                    AuthOutcome outcome;
+                    do {
+                        outcome = app.accounts().register("sim-shopper-" + i, PASSWORD.toCharArray());
+                    } while (outcome == AuthOutcome.BUSY);
+                }
+                return;
+            }
+            // Every shopper shares one password, so it only has to be hashed once
+            Document credentials = ((LocalAccounts) app.accounts()).credentials(PASSWORD.toCharArray());
+            for (int i = 0; i < shoppers; i++) {
+                String username = "sim-shopper-" + i;
+                if (store.users().findByUsername(username) == null) {
+                    Document user = new Document("username", username);
+                    user.putAll(credentials);
+                    store.users().insert(user);
+                }
+            }
+        }
+
+        private void shop(String username) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            // Spread the first logins out instead of having every shopper arrive at once
+            if (!pause(random.nextLong(Math.max(1, thinkMs)))) {
+                return;
+            }
+            CartModel cart = new CartModel(username, store::cart);
+            while (!signIn(username, cart)) {
+                if (!pause(think(random))) {
+                    return;
+                }
+            }
+            Object afterId = null;
+            List<Document> page = Collections.emptyList();
+            while (pause(think(random))) {
+                try {
+                    int pick = random.nextInt(mix[mix.length - 1]);
+                    if (pick < mix[0] || page.isEmpty()) {
+                        Object after = afterId;
+                        page = latencies.get("viewProducts").time(() ->
+                            store.garments().page("_id", null, after, CATALOG_PAGE_SIZE));
+                        // Start over from the top once the end of the catalog is reached
+                        afterId = page.size() < CATALOG_PAGE_SIZE ? null : page.get(page.size() - 1).get("_id");
+                    } else if (pick < mix[1]) {
+                        addToCart(username, cart, page.get(random.nextInt(page.size())), random);
+                    } else if (pick < mix[2]) {
+                        if (cart.lines().isEmpty()) {
+                            addToCart(username, cart, page.get(random.nextInt(page.size())), random);
+                        }
+                        List<Document> items = cart.lines();
+                        List<Object> lineIds = new ArrayList<>();
+                        for (Document item : items) {
+                            lineIds.add(item.get("_id"));
+                        }
+                        Order order = newOrder(username, items, "Simulated Shopper", "1 Load Test Lane", "555-0100");
+                        try {
+                            latencies.get("checkout").time(() -> {
+                                submitOrder(store, cart, order, lineIds);
+                                return null;
+                            });
+                        } catch (OutOfStockException e) {
+                            // Give up on the cart rather than failing the same checkout forever
+                            lineIds.forEach(cart::remove);
+                            cart.flush();
+                        }
+                    } else {
+                        latencies.get("viewOrders").time(() -> {
+                            store.orders().summary(username);
+                            return store.orders().page(username, null, null, ORDER_PAGE_SIZE);
+                        });
+                    }
+                } catch (RuntimeException e) {
+                    // Already counted against the operation; the shopper carries on
+                }
+            }
+        }
+
+        // Signs in the way the login screen does, then loads the shopper's cart. Logins
+        // turned away because the hashing pool is full count as errors but not towards
+        // the latency, which would otherwise be swamped by instant rejections.
+        private boolean signIn(String username, CartModel cart) {
+            LatencyHistogram logins = latencies.get("login");
+            long start = System.nanoTime();
+            try {
+                AuthOutcome outcome = app.accounts().signIn(username, PASSWORD.toCharArray());
+                if (outcome == AuthOutcome.SUCCESS) {
+                    cart.load();
+                    logins.record(System.nanoTime() - start);
+                    return true;
+                }
+                logins.recordError();
+            } catch (RuntimeException e) {
+                logins.recordError();
+            }
+            return false;
+        }
+
+        // The app batches cart writes; a shopper here writes each add straight away,
+        // which is the heaviest the cart collection will see
+        private void addToCart(String username, CartModel cart, Document garment, ThreadLocalRandom random) {
+            List<String> sizes = garment.getList("sizes", String.class);
+            String size = sizes != null && !sizes.isEmpty() ? sizes.get(random.nextInt(sizes.size())) : SIZES[random.nextInt(SIZES.length)];
+            Document line = new Document("username", username)
+                .append("garmentId", garment.get("_id"))
+                .append("size", size)
+                .append("quantity", 1)
+                .append("price", garment.getDouble("price"));
+            latencies.get("addToCart").time(() -> {
+                // A sold-out size is a normal answer, not an error; the shopper moves on
+                if (store.inventory().reserve(username, garment.get("_id"), size, cart.quantityOf(line) + 1)) {
+                    cart.add(line);
+                    cart.flush();
+                }
+                return null;
+            });
+        }
+
+        // Exponentially distributed, capped at ten times the mean
+        private long think(ThreadLocalRandom random) {
+            return (long) Math.min(thinkMs * 10.0, -thinkMs * Math.log(1 - random.nextDouble()));
+        }
+
+        // Sleeps unless that would run past the deadline; false once the run is over
+        private boolean pause(long millis) {
+            if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis) >= deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(millis);
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        private void report(double elapsedSeconds) {
+            System.out.printf("%-14s %9s %9s %9s %9s %9s %9s %8s%n",
+                "operation", "ops", "ops/s", "mean ms", "p50 ms", "p99 ms", "p999 ms", "errors");
+            long totalOps = 0;
+            for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+                LatencyHistogram histogram = entry.getValue();
+                long count = histogram.getCount();
+                totalOps += count;
+                System.out.printf("%-14s %9d %9.1f %9.2f %9.2f %9.2f %9.2f %8d%n", entry.getKey(), count,
+                    count / elapsedSeconds, histogram.getMeanMillis(), histogram.getP50Millis(),
+                    histogram.getP99Millis(), histogram.percentileMillis(0.999), histogram.getErrors());
+            }
+            System.out.printf("%-14s %9d %9.1f  over %.1f s%n", "total", totalOps, totalOps / elapsedSeconds, elapsedSeconds);
+            // Per-command database timings, when the store is Mongo
+            Metrics.export();
+        }
+    }
+
+    // Catalog grid that only keeps cards alive for the visible rows plus a small
+    // overscan, rebinding them to other garments as the user scrolls
+    private class CatalogGrid extends JPanel implements Scrollable {
+        private static final int COLUMNS = 3;
+        private static final int GAP = 20;
+        private static final int OVERSCAN_ROWS = 1;
+        private static final int PREFETCH_ROWS = 4;
+
+        private List<Document> garments = new ArrayList<>();
+        private CatalogPager pager;
+        private boolean loadingPage;
+        private final Map<Integer, ProductCard> boundCards = new HashMap<>();
+        private final List<ProductCard> spareCards = new ArrayList<>();
+        private JViewport viewport;
+        private final ChangeListener viewportListener = e -> layoutVisibleCards();
+        private AutoCloseable catalogSubscription;
+
+        CatalogGrid() {
+            super(null);
+            theme.background(this, ThemeRole.BACKGROUND);
+        }
+
+        void setGarments(List<Document> garments) {
+            this.garments = garments;
+            this.pager = null;
+            for (ProductCard card : boundCards.values()) {
+                releaseCard(card);
+            }
+            boundCards.clear();
+            revalidate();
+            layoutVisibleCards();
+        }
+
+        // Shows the catalog a page at a time, fetching the next page in the
+        // background whenever the user scrolls close to the end of what is loaded
+        void setPager(CatalogPager pager) {
+            setGarments(new ArrayList<>());
+            this.pager = pager;
+            loadNextPage();
+        }
+
+        private void loadNextPage() {
+            if (pager == null || loadingPage || !pager.hasMore()) {
+                return;
+            }
+            loadingPage = true;
+            CatalogPager source = pager;
+            dataService.call(source::nextPage).whenComplete((page, error) -> SwingUtilities.invokeLater(() -> {
+                loadingPage = false;
+                if (source != pager) {
+                    return;
+                }
+                if (error != null) {
+                    System.out.println("Error loading catalog page");
+                    error.printStackTrace();
+                    return;
+                }
+                garmentLookup.remember(page);
+                searchIndex.addAll(page);
+                garments.addAll(page);
+                StartupTimer.mark("catalog ready");
+                revalidate();
+                layoutVisibleCards();
+            }));
+        }
+
+        @Override
+        public void addNotify() {
+            super.addNotify();
+            viewport = (JViewport) SwingUtilities.getAncestorOfClass(JViewport.class, this);
+            if (viewport != null) {
+                viewport.addChangeListener(viewportListener);
+            }
+            catalogSubscription = catalogCache.watch(new CatalogListener() {
+                @Override
+                public void changed(Document garment) {
+                    SwingUtilities.invokeLater(() -> garmentChanged(garment));
+                }
+
+                @Override
+                public void removed(Object garmentId) {
+                    SwingUtilities.invokeLater(() -> garmentRemoved(garmentId));
+                }
+            });
+        }
+
+        @Override
+        public void removeNotify() {
+            if (viewport != null) {
+                viewport.removeChangeListener(viewportListener);
+                viewport = null;
+            }
+            try {
+                catalogSubscription.close();
+            } catch (Exception e) {
+                System.out.println("Warning: Could not unsubscribe from catalog changes: " + e.getMessage());
+            }
+            super.removeNotify();
+        }
+
+        // Rebinds the card showing the garment, if any. New garments are appended
+        // once the whole catalog is shown; before that the pager will reach them.
+        private void garmentChanged(Document garment) {
+            int index = indexOf(garment.get("_id"));
+            if (index >= 0) {
+                garments.set(index, garment);
+                ProductCard card = boundCards.get(index);
+                if (card != null) {
+                    card.bind(garment);
+                }
+            } else if (pager != null && !pager.hasMore()) {
+                garments.add(garment);
+                revalidate();
+                layoutVisibleCards();
+            }
+        }
+
+        private void garmentRemoved(Object garmentId) {
+            int index = indexOf(garmentId);
+            if (index < 0) {
+                return;
+            }
+            garments.remove(index);
+            // Everything after the removed garment moves up a cell
+            for (ProductCard card : boundCards.values()) {
+                releaseCard(card);
+            }
+            boundCards.clear();
+            revalidate();
+            layoutVisibleCards();
+        }
+
+        private int indexOf(Object garmentId) {
+            for (int i = 0; i < garments.size(); i++) {
+                if (garmentId.equals(garments.get(i).get("_id"))) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public void doLayout() {
+            layoutVisibleCards();
+        }
+
+        @Override
+        public Dimension getPreferredSize() {
+            int rows = (garments.size() + COLUMNS - 1) / COLUMNS;
+            return new Dimension(COLUMNS * ITEM_SIZE.width + (COLUMNS + 1) * GAP, rows * rowHeight() + GAP);
+        }
+
+        private int rowHeight() {
+            return ITEM_SIZE.height + GAP;
+        }
+
+        private int cellWidth() {
+            return Math.max(ITEM_SIZE.width, (getWidth() - (COLUMNS + 1) * GAP) / COLUMNS);
+        }
+
+        private void layoutVisibleCards() {
+            Rectangle visible = getVisibleRect();
+            if (visible.isEmpty()) {
+                return;
+            }
+            int firstRow = Math.max(0, visible.y / rowHeight() - OVERSCAN_ROWS);
+            int lastRow = (visible.y + visible.height) / rowHeight() + OVERSCAN_ROWS;
+            if ((lastRow + PREFETCH_ROWS) * COLUMNS >= garments.size()) {
+                loadNextPage();
+            }
+            if (garments.isEmpty()) {
+                return;
+            }
+            int firstIndex = firstRow * COLUMNS;
+            int lastIndex = Math.min(garments.size() - 1, (lastRow + 1) * COLUMNS - 1);
+
+            // Recycle cards that scrolled out of range before binding new ones
+            Iterator<Map.Entry<Integer, ProductCard>> bound = boundCards.entrySet().iterator();
+            while (bound.hasNext()) {
+                Map.Entry<Integer, ProductCard> entry = bound.next();
+                if (entry.getKey() < firstIndex || entry.getKey() > lastIndex) {
+                    releaseCard(entry.getValue());
+                    bound.remove();
+                }
+            }
+
+            int cellWidth = cellWidth();
+            for (int index = firstIndex; index <= lastIndex; index++) {
+                ProductCard card = boundCards.get(index);
+                if (card == null) {
+                    card = acquireCard(garments.get(index));
+                    boundCards.put(index, card);
+                }
+                int row = index / COLUMNS;
+                int column = index % COLUMNS;
+                card.setBounds(GAP + column * (cellWidth + GAP), GAP + row * rowHeight(), cellWidth, ITEM_SIZE.height);
+                card.validate();
+            }
+        }
+
+        private ProductCard acquireCard(Document garment) {
+            if (spareCards.isEmpty()) {
+                ProductCard card = createProductCard(garment);
+                add(card);
+                return card;
+            }
+            ProductCard card = spareCards.remove(spareCards.size() - 1);
+            card.bind(garment);
+            card.setVisible(true);
+            return card;
+        }
+
+        private void releaseCard(ProductCard card) {
+            card.setVisible(false);
+            spareCards.add(card);
+        }
+
+        @Override
+        public Dimension getPreferredScrollableViewportSize() {
+            return getPreferredSize();
+        }
+
+        @Override
+        public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+            return 16;
+        }
+
+        @Override
+        public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+            return orientation == SwingConstants.VERTICAL ? visibleRect.height : visibleRect.width;
+        }
+
+        @Override
+        public boolean getScrollableTracksViewportWidth() {
+            return true;
+        }
+
+        @Override
+        public boolean getScrollableTracksViewportHeight() {
+            return false;
+        }
+    }
+
+    // Search-as-you-type over the local search index. Every keystroke or facet
+    // change is answered on the EDT straight from the index; clearing the search
+    // goes back to paging through the full catalog.
+    private class CatalogSearchBar extends JPanel {
+        private static final String PLACEHOLDER = "Search";
+
+        private final CatalogGrid grid;
+        private final JTextField searchField = createStyledTextField(PLACEHOLDER);
+        private final JComboBox<FacetChoice> categoryBox = new JComboBox<>(new FacetChoice[] {FacetChoice.ANY_CATEGORY});
+        private final JComboBox<FacetChoice> priceBox = new JComboBox<>(new FacetChoice[] {FacetChoice.ANY_PRICE});
+        private final JLabel resultsLabel = new JLabel();
+        private CatalogSearchIndex.SearchResult lastResult;
+        private boolean browsing = true;
+
+        CatalogSearchBar(CatalogGrid grid) {
+            super(new FlowLayout(FlowLayout.CENTER, 8, 0));
+            this.grid = grid;
+            theme.background(this, ThemeRole.PRIMARY);
+            searchField.setColumns(16);
+            resultsLabel.setFont(BODY_FONT);
+            resultsLabel.setForeground(Color.WHITE);
+
+            searchField.getDocument().addDocumentListener(new DocumentListener() {
+                @Override
+                public void insertUpdate(DocumentEvent e) {
+                    search();
+                }
+
+                @Override
+                public void removeUpdate(DocumentEvent e) {
+                    search();
+                }
+
+                @Override
+                public void changedUpdate(DocumentEvent e) {
+                    search();
+                }
+            });
+            categoryBox.addActionListener(e -> search());
+            priceBox.addActionListener(e -> search());
+            // Facet counts follow the current text, so the choices are rebuilt each time a list opens
+            categoryBox.addPopupMenuListener(new FacetRefresher(categoryBox, this::categoryChoices));
+            priceBox.addPopupMenuListener(new FacetRefresher(priceBox, this::priceChoices));
+
+            add(searchField);
+            add(categoryBox);
+            add(priceBox);
+            add(resultsLabel);
+        }
+
+        private String query() {
+            String text = searchField.getText();
+            return text.equals(PLACEHOLDER) ? "" : text;
+        }
+
+        private void search() {
+            String query = query();
+            FacetChoice category = (FacetChoice) categoryBox.getSelectedItem();
+            FacetChoice price = (FacetChoice) priceBox.getSelectedItem();
+            lastResult = searchIndex.search(query, category.category, price.priceBucket, SEARCH_RESULT_LIMIT);
+            if (query.isBlank() && FacetChoice.ANY_CATEGORY.equals(category) && FacetChoice.ANY_PRICE.equals(price)) {
+                resultsLabel.setText("");
+                if (!browsing) {
+                    browsing = true;
+                    grid.setPager(new CatalogPager(() -> catalogCache, "_id", CATALOG_PAGE_SIZE));
+                }
+                return;
+            }
+            browsing = false;
+            resultsLabel.setText(lastResult.total + (lastResult.total == 1 ? " result" : " results"));
+            grid.setGarments(lastResult.garments);
+        }
+
+        private List<FacetChoice> categoryChoices() {
+            List<FacetChoice> choices = new ArrayList<>();
+            choices.add(FacetChoice.ANY_CATEGORY);
+            CatalogSearchIndex.SearchResult facets = lastResult != null ? lastResult : searchIndex.search("", null, -1, 0);
+            for (Map.Entry<String, Integer> category : facets.categories.entrySet()) {
+                choices.add(new FacetChoice(category.getKey() + " (" + category.getValue() + ")", category.getKey(), -1));
+            }
+            return choices;
+        }
+
+        private List<FacetChoice> priceChoices() {
+            List<FacetChoice> choices = new ArrayList<>();
+            choices.add(FacetChoice.ANY_PRICE);
+            CatalogSearchIndex.SearchResult facets = lastResult != null ? lastResult : searchIndex.search("", null, -1, 0);
+            double[] bounds = CatalogSearchIndex.PRICE_BUCKETS;
+            for (int bucket = 0; bucket < bounds.length; bucket++) {
+                String range = bucket + 1 < bounds.length
+                    ? String.format("$%.0f-%.0f", bounds[bucket], bounds[bucket + 1])
+                    : String.format("$%.0f+", bounds[bucket]);
+                choices.add(new FacetChoice(range + " (" + facets.priceBuckets[bucket] + ")", null, bucket));
+            }
+            return choices;
+        }
+    }
+
+    // One entry of a facet drop-down; equal to any other entry for the same facet
+    // value, so rebuilding the list with fresh counts keeps the selection
+    private static class FacetChoice {
+        static final FacetChoice ANY_CATEGORY = new FacetChoice("All categories", null, -1);
+        static final FacetChoice ANY_PRICE = new FacetChoice("Any price", null, -1);
+
+        final String label;
+        final String category;
+        final int priceBucket;
+
+        FacetChoice(String label, String category, int priceBucket) {
+            this.label = label;
+            this.category = category;
+            this.priceBucket = priceBucket;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof FacetChoice)) {
+                return false;
+            }
+            FacetChoice choice = (FacetChoice) other;
+            return Objects.equals(category, choice.category) && priceBucket == choice.priceBucket;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(category, priceBucket);
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    private static class FacetRefresher implements PopupMenuListener {
+        private final JComboBox<FacetChoice> box;
+        private final Supplier<List<FacetChoice>> choices;
+
+        FacetRefresher(JComboBox<FacetChoice> box, Supplier<List<FacetChoice>> choices) {
+            this.box = box;
+            this.choices = choices;
+        }
+
+        @Override
+        public void popupMenuWillBecomeVisible(PopupMenuEvent e) {
+            Object selected = box.getSelectedItem();
+            DefaultComboBoxModel<FacetChoice> model = new DefaultComboBoxModel<>(choices.get().toArray(new FacetChoice[0]));
+            int index = model.getIndexOf(selected);
+            model.setSelectedItem(index >= 0 ? model.getElementAt(index) : selected);
+            box.setModel(model);
+        }
+
+        @Override
+        public void popupMenuWillBecomeInvisible(PopupMenuEvent e) {
+        }
+
+        @Override
+        public void popupMenuCanceled(PopupMenuEvent e) {
+        }
+    }
+
+    // Keyset pagination over the garments: each page continues after the last
+    // (sort key, _id) seen, so every page is an indexed range scan instead of a
+    // skip over everything already shown
+    private static class CatalogPager {
+        private final Supplier<GarmentRepository> garmentRepository;
+        private final String sortField;
+        private final int pageSize;
+        private Object lastSortValue;
+        private Object lastId;
+        private volatile boolean exhausted;
+
+        CatalogPager(Supplier<GarmentRepository> garmentRepository, String sortField, int pageSize) {
+            this.garmentRepository = garmentRepository;
+            this.sortField = sortField;
+            this.pageSize = pageSize;
+        }
+
+        boolean hasMore() {
+            return !exhausted;
+        }
+
+        synchronized List<Document> nextPage() {
+            if (exhausted) {
+                return new ArrayList<>();
+            }
+            List<Document> page = garmentRepository.get().page(sortField, lastSortValue, lastId, pageSize);
+            if (page.size() < pageSize) {
+                exhausted = true;
+            }
+            if (!page.isEmpty()) {
+                Document last = page.get(page.size() - 1);
+                lastSortValue = last.get(sortField);
+                lastId = last.get("_id");
+            }
+            return page;
+        }
+    }
+
+    // Keyset pagination over a user's order lines, newest first, continuing after
+    // the last (createdAt, _id) seen
+    private static class OrderHistoryPager {
+        private final Supplier<OrderRepository> orderRepository;
+        private final String username;
+        private final int pageSize;
+        private Date lastCreatedAt;
+        private Object lastId;
+        private volatile boolean exhausted;
+
+        OrderHistoryPager(Supplier<OrderRepository> orderRepository, String username, int pageSize) {
+            this.orderRepository = orderRepository;
+            this.username = username;
+            this.pageSize = pageSize;
+        }
+
+        boolean hasMore() {
+            return !exhausted;
+        }
+
+        synchronized List<Document> nextPage() {
+            if (exhausted) {
+                return new ArrayList<>();
+            }
+            List<Document> page = orderRepository.get().page(username, lastCreatedAt, lastId, pageSize);
+            if (page.size() < pageSize) {
+                exhausted = true;
+            }
+            if (!page.isEmpty()) {
+                Document last = page.get(page.size() - 1);
+                lastCreatedAt = last.getDate("createdAt");
+                lastId = last.get("_id");
+            }
+            return page;
+        }
+    }
+
+    // The whole catalog held in memory and kept current, so navigating to the
+    // catalog never re-reads the garments collection. It is loaded once, then
+    // follows the store's change stream, or polls for garments with a newer
+    // updatedAt when the store cannot push changes; polling does not see deletes.
+    // Reads go straight to the store until the first load has finished. Cached
+    // garments are shared with callers, who must not modify them.
+    private static class CatalogCache implements GarmentRepository {
+        private final Supplier<GarmentRepository> store;
+        private final ConcurrentSkipListMap<ObjectId, Document> garments = new ConcurrentSkipListMap<>();
+        private final List<CatalogListener> listeners = new CopyOnWriteArrayList<>();
+        // Deleted while the load was running, so a page read before the delete must not bring them back
+        private final Set<Object> removedWhileLoading = ConcurrentHashMap.newKeySet();
+        private volatile boolean loaded;
+        private volatile Date watermark = new Date(0);
+        private ScheduledExecutorService poller;
+
+        CatalogCache(Supplier<GarmentRepository> store) {
+            this.store = store;
+        }
+
+        // Subscribes to the store and loads the catalog; called once, off the EDT
+        void start() {
+            GarmentRepository source = store.get();
+            boolean pushed;
+            try {
+                source.watch(new CatalogListener() {
+                    @Override
+                    public void changed(Document garment) {
+                        apply(garment);
+                    }
+
+                    @Override
+                    public void removed(Object garmentId) {
+                        CatalogCache.this.removed(garmentId);
+                    }
+
+                    @Override
+                    public void resynced(Set<Object> liveIds) {
+                        for (ObjectId garmentId : garments.keySet()) {
+                            if (!liveIds.contains(garmentId)) {
+                                CatalogCache.this.removed(garmentId);
+                            }
+                        }
+                    }
+                });
+                pushed = true;
+            } catch (UnsupportedOperationException e) {
+                System.out.println(e.getMessage() + "; polling the catalog every " + CATALOG_POLL_MS + " ms instead");
+                pushed = false;
+            }
+
+            CatalogPager pager = new CatalogPager(() -> source, "_id", CATALOG_LOAD_PAGE_SIZE);
+            LatencyHistogram pageLoads = Metrics.latency("op.catalog.loadPage");
+            while (pager.hasMore()) {
+                for (Document garment : pageLoads.time(pager::nextPage)) {
+                    if (!removedWhileLoading.contains(garment.get("_id"))) {
+                        garments.putIfAbsent(garment.getObjectId("_id"), garment);
+                        advanceWatermark(garment);
+                    }
+                }
+            }
+            loaded = true;
+            removedWhileLoading.clear();
+            StartupTimer.mark("catalog cached");
+
+            if (!pushed) {
+                poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "catalog-poll");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                poller.scheduleWithFixedDelay(this::poll, CATALOG_POLL_MS, CATALOG_POLL_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        // Re-reads everything at or after the watermark; garments that come back
+        // unchanged are not reported again
+        private void poll() {
+            try {
+                for (Document garment : store.get().modifiedSince(watermark)) {
+                    if (!garment.equals(garments.get(garment.getObjectId("_id")))) {
+                        apply(garment);
+                    }
+                }
+            } catch (RuntimeException e) {
+                System.out.println("Error polling the catalog, will retry: " + e.getMessage());
+            }
+        }
+
+        // A garment already cached as it is, such as one this cache inserted and the
+        // store then reported, is not passed on again
+        private void apply(Document garment) {
+            Document previous = garments.put(garment.getObjectId("_id"), garment);
+            removedWhileLoading.remove(garment.get("_id"));
+            advanceWatermark(garment);
+            if (garment.equals(previous)) {
+                return;
+            }
+            for (CatalogListener listener : listeners) {
+                listener.changed(garment);
+            }
+        }
+
+        private void removed(Object garmentId) {
+            garments.remove(garmentId);
+            if (!loaded) {
+                removedWhileLoading.add(garmentId);
+            }
+            for (CatalogListener listener : listeners) {
+                listener.removed(garmentId);
+            }
+        }
+
+        private void advanceWatermark(Document garment) {
+            Date updatedAt = garment.getDate("updatedAt");
+            if (updatedAt != null && updatedAt.after(watermark)) {
+                watermark = updatedAt;
+            }
+        }
+
+        Collection<Document> snapshot() {
+            return new ArrayList<>(garments.values());
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return loaded ? garments.isEmpty() : store.get().isEmpty();
+        }
+
+        @Override
+        public void insertAll(List<Document> newGarments) {
+            store.get().insertAll(newGarments);
+            for (Document garment : newGarments) {
+                apply(new Document(garment));
+            }
+        }
+
+        @Override
+        public List<Document> page(String sortField, Object afterSortValue, Object afterId, int limit) {
+            if (!loaded || !sortField.equals("_id")) {
+                return store.get().page(sortField, afterSortValue, afterId, limit);
+            }
+            Collection<Document> candidates = afterId == null ? garments.values() : garments.tailMap((ObjectId) afterId, false).values();
+            List<Document> page = new ArrayList<>(Math.min(limit, 256));
+            for (Document garment : candidates) {
+                if (page.size() == limit) {
+                    break;
+                }
+                page.add(garment);
+            }
+            return page;
+        }
+
+        @Override
+        public List<Document> findByIds(Collection<Object> garmentIds) {
+            if (!loaded) {
+                return store.get().findByIds(garmentIds);
+            }
+            List<Document> found = new ArrayList<>();
+            for (Object garmentId : garmentIds) {
+                Document garment = garments.get(garmentId);
+                if (garment != null) {
+                    found.add(garment);
+                }
+            }
+            return found;
+        }
+
+        // Listeners hear about every change from the moment they subscribe, on the
+        // thread that delivered it
+        @Override
+        public AutoCloseable watch(CatalogListener listener) {
+            listeners.add(listener);
+            return () -> listeners.remove(listener);
+        }
+
+        @Override
+        public List<Document> modifiedSince(Date since) {
+            return store.get().modifiedSince(since);
+        }
+    }
+
+    // Shared, bounded cache of garment display data keyed by _id, so cart and
+    // order lines only have to store a reference to the garment
+    private static class GarmentLookup {
+        private static final int MAX_ENTRIES = 10000;
+
+        private final GarmentRepository garmentRepository;
+        private final LinkedHashMap<Object, Document> cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Document> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+
+        GarmentLookup(GarmentRepository garmentRepository) {
+            this.garmentRepository = garmentRepository;
+        }
+
+        synchronized void remember(Collection<Document> garments) {
+            for (Document garment : garments) {
+                cache.put(garment.get("_id"), garment);
+            }
+        }
+
+        // Resolves all ids at once, fetching whatever is not cached in a single lookup
+        Map<Object, Document> getAll(Collection<Object> garmentIds) {
+            Map<Object, Document> found = new HashMap<>();
+            List<Object> missing = new ArrayList<>();
+            synchronized (this) {
+                for (Object garmentId : garmentIds) {
+                    Document garment = cache.get(garmentId);
+                    Metrics.cache("garments.lookup").record(garment != null);
+                    if (garment != null) {
+                        found.put(garmentId, garment);
+                    } else if (garmentId != null && !missing.contains(garmentId)) {
+                        missing.add(garmentId);
+                    }
+                }
+            }
+            if (!missing.isEmpty()) {
+                List<Document> fetched = Metrics.time("op.garments.fetch", () -> garmentRepository.findByIds(missing));
+                remember(fetched);
+                for (Document garment : fetched) {
+                    found.put(garment.get("_id"), garment);
+                }
+            }
+            return found;
+        }
+    }
+
+    // Local full-text index over garment name and category, so the catalog can be
+    // searched as the user types without a database round trip per keystroke.
+    // Garments get dense doc numbers in the order they are added; tokens sit in a
+    // prefix trie whose nodes carry sorted postings of those numbers, and category
+    // and price bucket facets are postings over the same numbers. Re-adding a
+    // garment with a changed name, category or price retires its old number, and
+    // the index is rebuilt from the live garments once retired numbers pile up.
+    static class CatalogSearchIndex {
+        // Lower bounds of the price facet buckets
+        static final double[] PRICE_BUCKETS = {0, 25, 50, 100, 200};
+        private static final int MIN_FUZZY_LENGTH = 4;
+        // Trie nodes this shallow also keep the postings of their whole subtree, so
+        // the first keystrokes of a search do not have to merge thousands of tokens
+        private static final int PREFIX_POSTINGS_DEPTH = 2;
+        // Rebuild once at least this many numbers, and a quarter of all numbers, are retired
+        private static final int COMPACT_MIN_RETIRED = 256;
+
+        static class SearchResult {
+            final List<Document> garments;
+            final int total;
+            // Facet counts over the text matches, before the facet filters are applied
+            final Map<String, Integer> categories;
+            final int[] priceBuckets;
+
+            SearchResult(List<Document> garments, int total, Map<String, Integer> categories, int[] priceBuckets) {
+                this.garments = garments;
+                this.total = total;
+                this.categories = categories;
+                this.priceBuckets = priceBuckets;
+            }
+        }
+
+        // Doc numbers in ascending order; they only ever grow, so appends keep them sorted
+        private static class Postings {
+            private int[] docs = new int[4];
+            private int size;
+
+            void add(int doc) {
+                if (size > 0 && docs[size - 1] == doc) {
+                    return;
+                }
+                if (size == docs.length) {
+                    docs = Arrays.copyOf(docs, size * 2);
+                }
+                docs[size++] = doc;
+            }
+
+            int[] toArray() {
+                return Arrays.copyOf(docs, size);
+            }
+        }
+
+        private static class TrieNode {
+            final Map<Character, TrieNode> children = new HashMap<>(4);
+            // Garments with a token ending at this node
+            Postings postings;
+            // Garments with a token anywhere below this node, shallow nodes only
+            Postings prefixPostings;
+        }
+
+        private final List<Document> docs = new ArrayList<>();
+        private final BitSet retired = new BitSet();
+        private final Map<Object, Integer> docById = new HashMap<>();
+        private final TrieNode root = new TrieNode();
+        private final Map<String, Postings> byCategory = new HashMap<>();
+        private final List<String> categoryNames = new ArrayList<>();
+        private final Map<String, Integer> categoryNumbers = new HashMap<>();
+        private int[] docCategory = new int[64];
+        private byte[] docPriceBucket = new byte[64];
+        private final Postings[] byPriceBucket = new Postings[PRICE_BUCKETS.length];
+
+        CatalogSearchIndex() {
+            clear();
+        }
+
+        private void clear() {
+            docs.clear();
+            retired.clear();
+            docById.clear();
+            root.children.clear();
+            root.postings = null;
+            root.prefixPostings = null;
+            byCategory.clear();
+            categoryNames.clear();
+            categoryNumbers.clear();
+            docCategory = new int[64];
+            docPriceBucket = new byte[64];
+            for (int i = 0; i < byPriceBucket.length; i++) {
+                byPriceBucket[i] = new Postings();
+            }
+        }
+
+        synchronized void addAll(Collection<Document> garments) {
+            for (Document garment : garments) {
+                add(garment);
+            }
+        }
+
+        synchronized void add(Document garment) {
+            Object id = garment.get("_id");
+            Integer existing = docById.get(id);
+            if (existing != null) {
+                Document indexed = docs.get(existing);
+                if (Objects.equals(indexed.get("name"), garment.get("name"))
+                        && Objects.equals(indexed.get("category"), garment.get("category"))
+                        && Objects.equals(indexed.get("price"), garment.get("price"))) {
+                    // Nothing searchable changed, just keep the newer display data
+                    docs.set(existing, garment);
+                    return;
+                }
+                retired.set(existing);
+                compactIfWorthIt();
+            }
+            int doc = docs.size();
+            docs.add(garment);
+            docById.put(id, doc);
+            for (String token : new LinkedHashSet<>(tokenize(garment.getString("name") + " " + garment.getString("category")))) {
+                TrieNode node = root;
+                for (int i = 0; i < token.length(); i++) {
+                    node = node.children.computeIfAbsent(token.charAt(i), c -> new TrieNode());
+                    if (i < PREFIX_POSTINGS_DEPTH) {
+                        if (node.prefixPostings == null) {
+                            node.prefixPostings = new Postings();
+                        }
+                        node.prefixPostings.add(doc);
+                    }
+                }
+                if (node.postings == null) {
+                    node.postings = new Postings();
+                }
+                node.postings.add(doc);
+            }
+            String category = categoryOf(garment);
+            byCategory.computeIfAbsent(category, c -> new Postings()).add(doc);
+            byPriceBucket[priceBucket(garment)].add(doc);
+            if (doc == docCategory.length) {
+                docCategory = Arrays.copyOf(docCategory, doc * 2);
+                docPriceBucket = Arrays.copyOf(docPriceBucket, doc * 2);
+            }
+            docCategory[doc] = categoryNumbers.computeIfAbsent(category, c -> {
+                categoryNames.add(c);
+                return categoryNames.size() - 1;
+            });
+            docPriceBucket[doc] = (byte) priceBucket(garment);
+        }
+
+        synchronized void remove(Object garmentId) {
+            Integer doc = docById.remove(garmentId);
+            if (doc != null) {
+                retired.set(doc);
+                compactIfWorthIt();
+            }
+        }
+
+        // Renumbers the live garments in their current order, dropping the retired
+        // numbers from the trie and the facets; amortised over the retirements
+        private boolean compactIfWorthIt() {
+            int retiredCount = retired.cardinality();
+            if (retiredCount < COMPACT_MIN_RETIRED || retiredCount * 4 < docs.size()) {
+                return false;
+            }
+            List<Document> live = new ArrayList<>();
+            for (int doc = 0; doc < docs.size(); doc++) {
+                if (!retired.get(doc)) {
+                    live.add(docs.get(doc));
+                }
+            }
+            clear();
+            for (Document garment : live) {
+                add(garment);
+            }
+            return true;
+        }
+
+        synchronized int size() {
+            return docById.size();
+        }
+
+        // Every query term must match a token, either as a prefix or, when nothing
+        // starts with it, within one edit. category and priceBucket narrow the
+        // results when set (null and -1 mean any).
+        synchronized SearchResult search(String query, String category, int priceBucket, int limit) {
+            int[] matches = null;
+            for (String term : tokenize(query)) {
+                int[] termMatches = prefixMatches(term);
+                if (termMatches.length == 0 && term.length() >= MIN_FUZZY_LENGTH) {
+                    termMatches = fuzzyMatches(term);
+                }
+                matches = matches == null ? termMatches : intersect(matches, termMatches);
+                if (matches.length == 0) {
+                    break;
+                }
+            }
+            if (matches == null) {
+                matches = allDocs();
+            }
+
+            int[] perCategory = new int[categoryNames.size()];
+            int[] bucketCounts = new int[PRICE_BUCKETS.length];
+            for (int doc : matches) {
+                if (!retired.get(doc)) {
+                    perCategory[docCategory[doc]]++;
+                    bucketCounts[docPriceBucket[doc]]++;
+                }
+            }
+            Map<String, Integer> categoryCounts = new TreeMap<>();
+            for (int i = 0; i < perCategory.length; i++) {
+                if (perCategory[i] > 0) {
+                    categoryCounts.put(categoryNames.get(i), perCategory[i]);
+                }
+            }
+
+            if (category != null) {
+                Postings inCategory = byCategory.get(category);
+                matches = inCategory != null ? intersect(matches, inCategory.toArray()) : new int[0];
+            }
+            if (priceBucket >= 0) {
+                matches = intersect(matches, byPriceBucket[priceBucket].toArray());
+            }
+            List<Document> garments = new ArrayList<>();
+            int total = 0;
+            for (int doc : matches) {
+                if (!retired.get(doc)) {
+                    if (garments.size() < limit) {
+                        garments.add(docs.get(doc));
+                    }
+                    total++;
+                }
+            }
+            return new SearchResult(garments, total, categoryCounts, bucketCounts);
+        }
+
+        static List<String> tokenize(String text) {
+            List<String> tokens = new ArrayList<>();
+            if (text == null) {
+                return tokens;
+            }
+            for (String token : text.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+                if (!token.isEmpty()) {
+                    tokens.add(token);
+                }
+            }
+            return tokens;
+        }
+
+        static int priceBucket(Document garment) {
+            Object price = garment.get("price");
+            double value = price instanceof Number ? ((Number) price).doubleValue() : 0;
+            int bucket = 0;
+            while (bucket + 1 < PRICE_BUCKETS.length && value >= PRICE_BUCKETS[bucket + 1]) {
+                bucket++;
+            }
+            return bucket;
+        }
+
+        static String categoryOf(Document garment) {
+            String category = garment.getString("category");
+            return category != null ? category : "Other";
+        }
+
+        private int[] allDocs() {
+            int[] all = new int[docs.size()];
+            for (int doc = 0; doc < all.length; doc++) {
+                all[doc] = doc;
+            }
+            return all;
+        }
+
+        private int[] prefixMatches(String prefix) {
+            TrieNode node = root;
+            for (int i = 0; i < prefix.length() && node != null; i++) {
+                node = node.children.get(prefix.charAt(i));
+            }
+            if (node == null) {
+                return new int[0];
+            }
+            if (node.prefixPostings != null) {
+                return node.prefixPostings.toArray();
+            }
+            List<Postings> found = new ArrayList<>();
+            collect(node, found);
+            return union(found);
+        }
+
+        private static void collect(TrieNode node, List<Postings> found) {
+            if (node.postings != null) {
+                found.add(node.postings);
+            }
+            for (TrieNode child : node.children.values()) {
+                collect(child, found);
+            }
+        }
+
+        // Walks the trie with one row of the edit distance table per node, pruning
+        // branches that can no longer come within one edit of the term
+        private int[] fuzzyMatches(String term) {
+            int[] firstRow = new int[term.length() + 1];
+            for (int i = 0; i < firstRow.length; i++) {
+                firstRow[i] = i;
+            }
+            List<Postings> found = new ArrayList<>();
+            for (Map.Entry<Character, TrieNode> child : root.children.entrySet()) {
+                fuzzy(child.getValue(), child.getKey(), term, firstRow, found);
+            }
+            return union(found);
+        }
+
+        private static void fuzzy(TrieNode node, char letter, String term, int[] previousRow, List<Postings> found) {
+            int[] row = new int[previousRow.length];
+            row[0] = previousRow[0] + 1;
+            int best = row[0];
+            for (int i = 1; i < row.length; i++) {
+                int substitution = previousRow[i - 1] + (term.charAt(i - 1) == letter ? 0 : 1);
+                row[i] = Math.min(substitution, Math.min(row[i - 1] + 1, previousRow[i] + 1));
+                best = Math.min(best, row[i]);
+            }
+            if (row[row.length - 1] <= 1 && node.postings != null) {
+                found.add(node.postings);
+            }
+            if (best <= 1) {
+                for (Map.Entry<Character, TrieNode> child : node.children.entrySet()) {
+                    fuzzy(child.getValue(), child.getKey(), term, row, found);
+                }
+            }
+        }
+
+        private static int[] union(List<Postings> postings) {
+            if (postings.size() == 1) {
+                return postings.get(0).toArray();
+            }
+            int total = 0;
+            for (Postings p : postings) {
+                total += p.size;
+            }
+            int[] all = new int[total];
+            int offset = 0;
+            for (Postings p : postings) {
+                System.arraycopy(p.docs, 0, all, offset, p.size);
+                offset += p.size;
+            }
+            Arrays.sort(all);
+            int distinct = 0;
+            for (int i = 0; i < all.length; i++) {
+                if (i == 0 || all[i] != all[i - 1]) {
+                    all[distinct++] = all[i];
+                }
+            }
+            return Arrays.copyOf(all, distinct);
+        }
+
+        private static int[] intersect(int[] a, int[] b) {
+            int[] both = new int[Math.min(a.length, b.length)];
+            int size = 0;
+            for (int i = 0, j = 0; i < a.length && j < b.length;) {
+                if (a[i] < b[j]) {
+                    i++;
+                } else if (a[i] > b[j]) {
+                    j++;
+                } else {
+                    both[size++] = a[i];
+                    i++;
+                    j++;
+                }
+            }
+            return Arrays.copyOf(both, size);
+        }
+    }
+
+    // One-off migration of cart and order lines that still embed the whole garment
+    // document to the garmentId/quantity/price shape. Duplicate cart lines for the
+    // same garment and size are then merged into one, so the unique cart line index
+    // can be built.
+    // Run with: java Shoppie.java --migrate-line-items
+    private static class LineItemMigration {
+        private static final int BATCH_SIZE = 500;
+
+        static void run(MongoDatabase database) {
+            migrate(database.getCollection(CART_COLLECTION));
+            migrate(database.getCollection(ORDERS_COLLECTION));
+            mergeDuplicateCartLines(database.getCollection(CART_COLLECTION));
+            IndexManager.ensureIndexes(database);
+        }
+
+        // Keeps the first line of each (username, garmentId, size) group with the
+        // summed quantity and deletes the rest
+        private static void mergeDuplicateCartLines(MongoCollection<Document> collection) {
+            List<Bson> pipeline = List.of(
+                Aggregates.match(Filters.exists("garmentId")),
+                Aggregates.sort(Sorts.ascending("_id")),
+                Aggregates.group(new Document("username", "$username").append("garmentId", "$garmentId").append("size", "$size"),
+                    Accumulators.push("ids", "$_id"),
+                    Accumulators.sum("quantity", new Document("$ifNull", List.of("$quantity", 1)))),
+                Aggregates.match(Filters.exists("ids.1")));
+            List<WriteModel<Document>> batch = new ArrayList<>();
+            int merged = 0;
+            for (Document group : collection.aggregate(pipeline).allowDiskUse(true)) {
+                List<Object> ids = group.getList("ids", Object.class);
+                batch.add(new UpdateOneModel<>(Filters.eq("_id", ids.get(0)),
+                    Updates.set("quantity", ((Number) group.get("quantity")).intValue())));
+                batch.add(new DeleteManyModel<>(Filters.in("_id", ids.subList(1, ids.size()))));
+                merged += ids.size() - 1;
+                if (batch.size() >= BATCH_SIZE) {
+                    collection.bulkWrite(batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                collection.bulkWrite(batch);
+            }
+            System.out.println(collection.getNamespace().getCollectionName() + ": merged " + merged + " duplicate lines.");
+        }
+
+        private static void migrate(MongoCollection<Document> collection) {
+            List<WriteModel<Document>> batch = new ArrayList<>();
+            int migrated = 0;
+            int skipped = 0;
+            for (Document line : collection.find(Filters.exists("garment")).batchSize(BATCH_SIZE)) {
+                Document garment = line.get("garment", Document.class);
+                if (garment == null || garment.get("_id") == null) {
+                    System.out.println("Warning: Skipping line without a garment _id: " + line.get("_id"));
+                    skipped++;
+                    continue;
+                }
+                batch.add(new UpdateOneModel<>(Filters.eq("_id", line.get("_id")), Updates.combine(
+                    Updates.set("garmentId", garment.get("_id")),
+                    Updates.set("price", line.containsKey("price") ? line.getDouble("price") : garment.getDouble("price")),
+                    Updates.set("quantity", line.getInteger("quantity", 1)),
+                    Updates.unset("garment"))));
+                if (batch.size() == BATCH_SIZE) {
+                    migrated += collection.bulkWrite(batch).getModifiedCount();
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                migrated += collection.bulkWrite(batch).getModifiedCount();
+            }
+            System.out.println(collection.getNamespace().getCollectionName() + ": migrated " + migrated
+                + " lines, skipped " + skipped + ".");
+        }
+    }
+
+    // Creates the indexes behind every hot query and, in diagnostic mode
+    // (-Dshoppie.verifyQueryPlans=true), checks with explain() that none of
+    // those queries falls back to a collection scan
+    private static class IndexManager {
+        static void ensureIndexes(MongoDatabase database) {
+            createIndex(database, USERS_COLLECTION, Indexes.ascending("username"), new IndexOptions().unique(true).name("username_unique"));
+            // One line per garment and size, which is what makes an add a single indexed upsert
+            createIndex(database, CART_COLLECTION, Indexes.ascending("username", "garmentId", "size"),
+                new IndexOptions().unique(true).name("username_garmentId_size_unique"));
+            createIndex(database, ORDERS_COLLECTION, Indexes.compoundIndex(Indexes.ascending("username"), Indexes.descending("createdAt", "_id")),
+                new IndexOptions().name("username_createdAt_id"));
+            createIndex(database, ORDER_HEADERS_COLLECTION, Indexes.compoundIndex(Indexes.ascending("username"), Indexes.descending("createdAt")),
+                new IndexOptions().name("username_createdAt"));
+            createIndex(database, GARMENTS_COLLECTION, Indexes.ascending("name", "_id"), new IndexOptions().name("name_id"));
+            createIndex(database, GARMENTS_COLLECTION, Indexes.ascending("price", "_id"), new IndexOptions().name("price_id"));
+            createIndex(database, GARMENTS_COLLECTION, Indexes.ascending("category", "price", "_id"), new IndexOptions().name("category_price_id"));
+            createIndex(database, GARMENTS_COLLECTION, Indexes.ascending("updatedAt"), new IndexOptions().name("updatedAt"));
+            createIndex(database, INVENTORY_COLLECTION, Indexes.ascending("garmentId", "size"), new IndexOptions().name("garmentId_size"));
+            createIndex(database, RESERVATIONS_COLLECTION, Indexes.ascending("expiresAt"), new IndexOptions().name("expiresAt"));
+        }
+
+        private static void createIndex(MongoDatabase database, String collectionName, Bson keys, IndexOptions options) {
+            try {
+                database.getCollection(collectionName).createIndex(keys, options);
+            } catch (MongoException e) {
+                // Most likely existing duplicates blocking a unique index; the app still works without it
+                System.out.println("Warning: Could not create index " + options.getName() + " on " + collectionName + ": " + e.getMessage());
+            }
+        }
+
+        static void verifyQueryPlans(MongoDatabase database) {
+            List<String> collectionScans = new ArrayList<>();
+            check(collectionScans, "login", database.getCollection(USERS_COLLECTION)
+                .find(Filters.eq("username", "u")));
+            check(collectionScans, "viewCart", database.getCollection(CART_COLLECTION)
+                .find(Filters.eq("username", "u")));
+            check(collectionScans, "addToCart", database.getCollection(CART_COLLECTION)
+                .find(Filters.and(Filters.eq("username", "u"), Filters.eq("garmentId", new ObjectId()), Filters.eq("size", "M"))));
+            check(collectionScans, "checkout", database.getCollection(CART_COLLECTION)
+                .find(Filters.and(Filters.eq("username", "u"), Filters.in("_id", List.of(new ObjectId())))));
+            check(collectionScans, "viewOrders", database.getCollection(ORDERS_COLLECTION)
+                .find(Filters.and(Filters.eq("username", "u"), Filters.or(
+                    Filters.lt("createdAt", new Date()),
+                    Filters.and(Filters.eq("createdAt", new Date()), Filters.lt("_id", new ObjectId())))))
+                .sort(Sorts.descending("createdAt", "_id")).limit(ORDER_PAGE_SIZE));
+            check(collectionScans, "catalogPage", database.getCollection(GARMENTS_COLLECTION)
+                .find(Filters.gt("_id", new ObjectId())).sort(Sorts.ascending("_id")).limit(CATALOG_PAGE_SIZE));
+            check(collectionScans, "catalogByName", database.getCollection(GARMENTS_COLLECTION)
+                .find(Filters.or(Filters.gt("name", "n"), Filters.and(Filters.eq("name", "n"), Filters.gt("_id", new ObjectId()))))
+                .sort(Sorts.ascending("name", "_id")).limit(CATALOG_PAGE_SIZE));
+            check(collectionScans, "catalogPoll", database.getCollection(GARMENTS_COLLECTION)
+                .find(Filters.gte("updatedAt", new Date())));
+            check(collectionScans, "garmentLookup", database.getCollection(GARMENTS_COLLECTION)
+                .find(Filters.in("_id", List.of(new ObjectId()))));
+
+            if (!collectionScans.isEmpty()) {
+                throw new IllegalStateException("Hot queries are doing collection scans: " + String.join(", ", collectionScans));
+            }
+            System.out.println("Query plans verified: no collection scans.");
+        }
+
+        private static void check(List<String> collectionScans, String name, FindIterable<Document> query) {
+            Document plan = query.explain();
+            Object winningPlan = plan.get("queryPlanner", Document.class).get("winningPlan");
+            if (containsStage(winningPlan, "COLLSCAN")) {
+                System.out.println("COLLSCAN in " + name + ": " + plan.toJson());
+                collectionScans.add(name);
+            }
+        }
+
+        private static boolean containsStage(Object node, String stage) {
+            if (node instanceof Document) {
+                Document document = (Document) node;
+                if (stage.equals(document.get("stage"))) {
+                    return true;
+                }
+                for (Object child : document.values()) {
+                    if (containsStage(child, stage)) {
+                        return true;
+                    }
+                }
+            } else if (node instanceof List) {
+                for (Object child : (List<?>) node) {
+                    if (containsStage(child, stage)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    // Logs each startup phase once, measured from JVM start, so cold start
+    // regressions show up in the console output
+    private static class StartupTimer {
+        private static final long JVM_START = ManagementFactory.getRuntimeMXBean().getStartTime();
+        private static final Set<String> reached = ConcurrentHashMap.newKeySet();
+
+        static void mark(String phase) {
+            if (reached.add(phase)) {
+                System.out.println("Startup: " + phase + " after " + (System.currentTimeMillis() - JVM_START) + " ms");
+            }
+        }
+    }
+
+    // Process-wide latency histograms and cache hit counters, cheap enough to leave
+    // on in production. Every metric is also an MXBean under "shoppie:", and once
+    // started the exporter logs a snapshot every METRICS_EXPORT_MS.
+    private static class Metrics {
+        private static final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+        private static final Map<String, HitCounter> caches = new ConcurrentHashMap<>();
+        private static final Map<String, Long> exportedCounts = new HashMap<>();
+
+        static LatencyHistogram latency(String name) {
+            LatencyHistogram histogram = latencies.get(name);
+            return histogram != null ? histogram
+                : latencies.computeIfAbsent(name, n -> register("Latency", n, new LatencyHistogram()));
+        }
+
+        static HitCounter cache(String name) {
+            HitCounter counter = caches.get(name);
+            return counter != null ? counter : caches.computeIfAbsent(name, n -> register("Cache", n, new HitCounter()));
+        }
+
+        static <T> T time(String name, Supplier<T> operation) {
+            return latency(name).time(operation);
+        }
+
+        private static <M> M register(String type, String name, M metric) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metric,
+                    new ObjectName("shoppie:type=" + type + ",name=" + ObjectName.quote(name)));
+            } catch (JMException e) {
+                System.out.println("Warning: Could not register metric " + name + " with JMX: " + e.getMessage());
+            }
+            return metric;
+        }
+
+        // Starts the periodic export and, in the desktop app, the event dispatch thread watchdog
+        static void start(boolean watchDispatchThread) {
+            ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            if (METRICS_EXPORT_MS > 0) {
+                scheduler.scheduleWithFixedDelay(Metrics::export, METRICS_EXPORT_MS, METRICS_EXPORT_MS, TimeUnit.MILLISECONDS);
+                Runtime.getRuntime().addShutdownHook(new Thread(Metrics::export, "metrics-on-exit"));
+            }
+            if (watchDispatchThread) {
+                new EdtWatchdog().start(scheduler);
+            }
+        }
+
+        // Writes the metrics that moved since the last export, to METRICS_FILE when
+        // one is configured and to the console otherwise
+        static synchronized void export() {
+            List<String> lines = new ArrayList<>();
+            for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(latencies).entrySet()) {
+                LatencyHistogram histogram = entry.getValue();
+                long count = histogram.getCount();
+                Long previous = exportedCounts.put(entry.getKey(), count);
+                if (count > 0 && (previous == null || previous != count)) {
+                    lines.add(String.format("%s count=%d (+%d) errors=%d mean=%.2fms p50=%.2fms p95=%.2fms p99=%.2fms max=%.2fms",
+                        entry.getKey(), count, count - (previous != null ? previous : 0), histogram.getErrors(),
+                        histogram.getMeanMillis(), histogram.getP50Millis(), histogram.getP95Millis(),
+                        histogram.getP99Millis(), histogram.getMaxMillis()));
+                }
+            }
+            for (Map.Entry<String, HitCounter> entry : new TreeMap<>(caches).entrySet()) {
+                HitCounter counter = entry.getValue();
+                long lookups = counter.getHits() + counter.getMisses();
+                Long previous = exportedCounts.put("cache:" + entry.getKey(), lookups);
+                if (lookups > 0 && (previous == null || previous != lookups)) {
+                    lines.add(String.format("%s hits=%d misses=%d hitRate=%.1f%%",
+                        entry.getKey(), counter.getHits(), counter.getMisses(), 100 * counter.getHitRate()));
+                }
+            }
+            if (lines.isEmpty()) {
+                return;
+            }
+            if (METRICS_FILE == null) {
+                for (String line : lines) {
+                    System.out.println("Metrics: " + line);
+                }
+                return;
+            }
+            StringBuilder out = new StringBuilder();
+            String timestamp = Instant.now().toString();
+            for (String line : lines) {
+                out.append(timestamp).append(' ').append(line).append(System.lineSeparator());
+            }
+            try {
+                Files.write(Paths.get(METRICS_FILE), out.toString().getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                System.out.println("Warning: Could not write metrics to " + METRICS_FILE + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public interface LatencyMXBean {
+        long getCount();
+        long getErrors();
+        double getMeanMillis();
+        double getP50Millis();
+        double getP95Millis();
+        double getP99Millis();
+        double getMaxMillis();
+    }
+
+    public interface CacheMXBean {
+        long getHits();
+        long getMisses();
+        double getHitRate();
+    }
+
+    // Log-linear histogram with four buckets per power of two nanoseconds, so
+    // percentiles are accurate to within a quarter of their value and recording
+    // is a few uncontended atomic adds with no allocation
+    static class LatencyHistogram implements LatencyMXBean {
+        private static final int SUB_BUCKET_BITS = 2;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        <T> T time(Supplier<T> operation) {
+            long start = System.nanoTime();
+            try {
+                return operation.get();
+            } catch (RuntimeException | Error e) {
+                errors.increment();
+                throw e;
+            } finally {
+                record(System.nanoTime() - start);
+            }
+        }
+
+        void record(long nanos) {
+            nanos = Math.max(1, nanos);
+            buckets.incrementAndGet(bucketOf(nanos));
+            count.increment();
+            totalNanos.add(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        void recordError() {
+            errors.increment();
+        }
+
+        private static int bucketOf(long nanos) {
+            int octave = 63 - Long.numberOfLeadingZeros(nanos);
+            if (octave < SUB_BUCKET_BITS) {
+                return (int) nanos;
+            }
+            int sub = (int) (nanos >>> (octave - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return octave * SUB_BUCKETS + sub;
+        }
+
+        private static long upperBoundOf(int bucket) {
+            int octave = bucket / SUB_BUCKETS;
+            if (octave < SUB_BUCKET_BITS) {
+                return bucket + 1;
+            }
+            int sub = bucket % SUB_BUCKETS;
+            return (1L << octave) + ((long) (sub + 1) << (octave - SUB_BUCKET_BITS));
+        }
+
+        private double percentileMillis(double fraction) {
+            long[] counts = new long[buckets.length()];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBoundOf(i), maxNanos.get()) / 1e6;
+                }
+            }
+            return maxNanos.get() / 1e6;
+        }
+
+        @Override
+        public long getCount() {
+            return count.sum();
+        }
+
+        @Override
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        @Override
+        public double getMeanMillis() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalNanos.sum() / 1e6 / n;
+        }
+
+        @Override
+        public double getP50Millis() {
+            return percentileMillis(0.50);
+        }
+
+        @Override
+        public double getP95Millis() {
+            return percentileMillis(0.95);
+        }
+
+        @Override
+        public double getP99Millis() {
+            return percentileMillis(0.99);
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return maxNanos.get() / 1e6;
+        }
+    }
+
+    static class HitCounter implements CacheMXBean {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+
+        void record(boolean hit) {
+            (hit ? hits : misses).increment();
+        }
+
+        @Override
+        public long getHits() {
+            return hits.sum();
+        }
+
+        @Override
+        public long getMisses() {
+            return misses.sum();
+        }
+
+        @Override
+        public double getHitRate() {
+            long hitCount = hits.sum();
+            long lookups = hitCount + misses.sum();
+            return lookups == 0 ? 0 : (double) hitCount / lookups;
+        }
+    }
+
+    // Posts a heartbeat to the event dispatch thread every HEARTBEAT_MS and records
+    // how long it queued as "edt.lag". A heartbeat held up by more than EDT_STALL_MS
+    // is a stall: it is reported once, with what the dispatch thread was doing, and
+    // its full length lands in "edt.stall" when the heartbeat finally runs.
+    private static class EdtWatchdog {
+        private static final long HEARTBEAT_MS = 100;
+
+        private final LatencyHistogram lag = Metrics.latency("edt.lag");
+        private final LatencyHistogram stalls = Metrics.latency("edt.stall");
+        private volatile long postedAt;
+        private volatile Thread dispatchThread;
+        private boolean reported;
+
+        void start(ScheduledExecutorService scheduler) {
+            scheduler.scheduleWithFixedDelay(this::check, HEARTBEAT_MS, HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+        }
+
+        private void check() {
+            long posted = postedAt;
+            long now = System.nanoTime();
+            if (posted == 0) {
+                postedAt = now;
+                SwingUtilities.invokeLater(() -> {
+                    long waited = System.nanoTime() - postedAt;
+                    dispatchThread = Thread.currentThread();
+                    lag.record(waited);
+                    if (waited > TimeUnit.MILLISECONDS.toNanos(EDT_STALL_MS)) {
+                        stalls.record(waited);
+                    }
+                    postedAt = 0;
+                });
+                reported = false;
+            } else if (!reported && now - posted > TimeUnit.MILLISECONDS.toNanos(EDT_STALL_MS)) {
+                reported = true;
+                StringBuilder message = new StringBuilder("Warning: Event dispatch thread has been busy for "
+                    + TimeUnit.NANOSECONDS.toMillis(now - posted) + " ms");
+                Thread thread = dispatchThread;
+                if (thread != null) {
+                    for (StackTraceElement frame : thread.getStackTrace()) {
+                        message.append(System.lineSeparator()).append("\tat ").append(frame);
+                    }
+                }
+                System.out.println(message);
+            }
+        }
+    }
+
+    // Times every command the Mongo driver sends, as "mongo.<command>.<collection>"
+    private static class MongoCommandTimer implements CommandListener {
+        private final Map<Integer, String> started = new ConcurrentHashMap<>();
+
+        @Override
+        public void commandStarted(CommandStartedEvent event) {
+            BsonValue target = event.getCommand().get(event.getCommandName());
+            String collection = target != null && target.isString() ? target.asString().getValue() : event.getDatabaseName();
+            started.put(event.getRequestId(), "mongo." + event.getCommandName() + "." + collection);
+        }
+
+        @Override
+        public void commandSucceeded(CommandSucceededEvent event) {
+            String name = started.remove(event.getRequestId());
+            if (name != null) {
+                Metrics.latency(name).record(event.getElapsedTime(TimeUnit.NANOSECONDS));
+            }
+        }
+
+        @Override
+        public void commandFailed(CommandFailedEvent event) {
+            String name = started.remove(event.getRequestId());
+            if (name != null) {
+                LatencyHistogram histogram = Metrics.latency(name);
+                histogram.recordError();
+                histogram.record(event.getElapsedTime(TimeUnit.NANOSECONDS));
+            }
+        }
+    }
+
+    // Data access behind the shopping flows. Every implementation hands back the
+    // same Document shapes, so the UI does not know which one it is talking to.
+    interface ShopStore {
+        GarmentRepository garments();
+        UserRepository users();
+        CartRepository cart();
+        OrderRepository orders();
+        InventoryRepository inventory();
+
+        // Builds indexes or anything else the store needs; runs once, off the startup path
+        void prepare();
+    }
+
+    interface GarmentRepository {
+        boolean isEmpty();
+
+        // Stamps each garment with updatedAt; anything else that writes garments must
+        // do the same for polling clients to notice
+        void insertAll(List<Document> garments);
+
+        // Up to limit garments ordered by (sortField, _id) that come after the given
+        // position, or from the start of the catalog when afterId is null
+        List<Document> page(String sortField, Object afterSortValue, Object afterId, int limit);
+        List<Document> findByIds(Collection<Object> garmentIds);
+
+        // Reports inserted, updated and deleted garments to the listener as they
+        // happen, until the returned handle is closed. Throws
+        // UnsupportedOperationException when the store cannot push changes.
+        AutoCloseable watch(CatalogListener listener);
+
+        // Garments with an updatedAt at or after since, for polling when watch() is unavailable
+        List<Document> modifiedSince(Date since);
+    }
+
+    interface CatalogListener {
+        void changed(Document garment);
+        void removed(Object garmentId);
+
+        // After changes were missed and the whole catalog re-reported through changed():
+        // the ids that still exist, so anything else was deleted in the meantime
+        default void resynced(Set<Object> liveIds) {
+        }
+    }
+
+    interface UserRepository {
+        Document findByUsername(String username);
+
+        // Returns false when the username is already taken
+        boolean insert(Document user);
+
+        // Replaces the stored password hash fields and drops any legacy plaintext password
+        void updateCredentials(String username, Document credentials);
+    }
+
+    // Cart lines are unique per (username, garmentId, size) and carry a quantity.
+    // An add is an upsert that increments the quantity of that line. Its _id is a
+    // client-assigned operation id, which becomes the line's _id if the add creates
+    // the line, and which the line remembers so a retried add is not counted twice.
+    interface CartRepository {
+        List<Document> findByUsername(String username);
+        void add(Document addition);
+        void remove(String username, Object lineId);
+
+        // Applies a batch of cart edits for one user in a single round trip. Edits
+        // to lines another session already removed are ignored.
+        void applyChanges(String username, List<Document> additions, Collection<Object> removedIds, Map<Object, Integer> quantities);
+    }
+
+    interface OrderRepository {
+        List<Document> findByUsername(String username);
+
+        // Up to limit of the user's order lines, newest first, that come after the
+        // given (createdAt, _id) position, or from the newest when beforeId is null
+        List<Document> page(String username, Date beforeCreatedAt, Object beforeId, int limit);
+
+        // Order count, lifetime spend and orders per status for the user, as
+        // { orders, spend, byStatus: { <status>: <orders> } }
+        Document summary(String username);
+
+        // Stores the header and its lines and removes the purchased cart lines as one unit.
+        // Placing an order whose header _id is already stored does not place it twice.
+        // Each line's units come out of stock, the user's hold on that size first; when
+        // a line cannot be filled nothing is written and OutOfStockException is thrown.
+        void place(Document header, List<Document> lines, String username, List<Object> cartItemIds);
+    }
+
+    // Stock per garment and size. A size's units are split over INVENTORY_SHARDS
+    // counters so concurrent orders for a hot size mostly update different ones,
+    // and taking stock never drives a counter below zero. Sizes that were never
+    // restocked are not tracked and never run out. Carts hold units through
+    // reservations, which go back on sale RESERVATION_MS after they were last renewed.
+    interface InventoryRepository {
+        // Units per tracked size that are neither sold nor held
+        Map<String, Integer> available(Object garmentId);
+
+        void restock(Object garmentId, String size, int units);
+
+        // Sets the user's hold on this garment and size to units and renews it. Returns
+        // false, leaving the hold as it was, when the extra units are not in stock.
+        boolean reserve(String username, Object garmentId, String size, int units);
+
+        // Returns lapsed holds to stock and evens out drained shards; run periodically
+        void reconcile();
+    }
+
+    // Thrown when an order asks for more units of a size than are left
+    static class OutOfStockException extends RuntimeException {
+        final Object garmentId;
+        final String size;
+
+        OutOfStockException(Object garmentId, String size) {
+            super("Not enough left in size " + size);
+            this.garmentId = garmentId;
+            this.size = size;
+        }
+    }
+
+    // Thrown when the shop service does not know who is asking: the user has not
+    // signed in through this store or their session has lapsed
+    static class SignInRequiredException extends IllegalStateException {
+        SignInRequiredException() {
+            super("Your session with the shop service has ended; please sign in again");
+        }
+    }
+
+    // One size's stock split over shards. Taking stock is a compare-and-set on a
+    // single shard whenever one covers the amount, so orders for a hot size seldom
+    // retry on the same counter, and no shard ever goes below zero.
+    static class StripedStock {
+        private final AtomicIntegerArray shards;
+        private volatile boolean drained;
+
+        StripedStock(int shards) {
+            this.shards = new AtomicIntegerArray(shards);
+        }
+
+        int total() {
+            int total = 0;
+            for (int shard = 0; shard < shards.length(); shard++) {
+                total += shards.get(shard);
+            }
+            return total;
+        }
+
+        void add(int units) {
+            int count = shards.length();
+            int start = ThreadLocalRandom.current().nextInt(count);
+            for (int i = 0; i < count; i++) {
+                int share = units / count + (i < units % count ? 1 : 0);
+                if (share > 0) {
+                    shards.addAndGet((start + i) % count, share);
+                }
+            }
+        }
+
+        boolean take(int units) {
+            int count = shards.length();
+            int start = ThreadLocalRandom.current().nextInt(count);
+            for (int i = 0; i < count; i++) {
+                int shard = (start + i) % count;
+                for (int current = shards.get(shard); current >= units; current = shards.get(shard)) {
+                    if (shards.compareAndSet(shard, current, current - units)) {
+                        return true;
+                    }
+                }
+            }
+            // No one shard has enough: gather from several and give it all back if they fall short
+            drained = true;
+            int[] taken = new int[count];
+            int remaining = units;
+            for (int i = 0; i < count && remaining > 0; i++) {
+                int shard = (start + i) % count;
+                for (int current = shards.get(shard); current > 0 && remaining > 0; current = shards.get(shard)) {
+                    int part = Math.min(current, remaining);
+                    if (shards.compareAndSet(shard, current, current - part)) {
+                        taken[shard] += part;
+                        remaining -= part;
+                    }
+                }
+            }
+            if (remaining == 0) {
+                return true;
+            }
+            for (int shard = 0; shard < count; shard++) {
+                if (taken[shard] > 0) {
+                    shards.addAndGet(shard, taken[shard]);
+                }
+            }
+            return false;
+        }
+
+        // Moves units from the fullest shards to the emptiest once takes have had to
+        // gather from several; units are only ever moved, never made up
+        void rebalance() {
+            if (!drained) {
+                return;
+            }
+            drained = false;
+            int count = shards.length();
+            int target = total() / count;
+            int pool = 0;
+            for (int shard = 0; shard < count; shard++) {
+                for (int current = shards.get(shard); current > target; current = shards.get(shard)) {
+                    if (shards.compareAndSet(shard, current, target)) {
+                        pool += current - target;
+                        break;
+                    }
+                }
+            }
+            for (int shard = 0; shard < count && pool > 0; shard++) {
+                int share = Math.min(pool, Math.max(0, target - shards.get(shard)));
+                shards.addAndGet(shard, share);
+                pool -= share;
+            }
+            if (pool > 0) {
+                shards.addAndGet(ThreadLocalRandom.current().nextInt(count), pool);
+            }
+        }
+    }
+
+    // The MongoDB-backed store used in production
+    static class MongoShopStore implements ShopStore {
+        private final MongoClient mongoClient;
+        private final MongoDatabase database;
+        private final GarmentRepository garments;
+        private final UserRepository users;
+        private final CartRepository cart;
+        private final OrderRepository orders;
+        private final Inventory inventory;
+        private Boolean transactionsSupported;
+
+        MongoShopStore(MongoClient mongoClient, MongoDatabase database) {
+            this.mongoClient = mongoClient;
+            this.database = database;
+            // The repositories look their collections up from database as they are built
+            garments = new Garments();
+            users = new Users();
+            cart = new Cart();
+            orders = new Orders();
+            inventory = new Inventory();
+        }
+
+        static MongoShopStore connect(String uri, String databaseName, int minPoolSize) {
+            MongoClientSettings settings = MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString(uri))
+                .applyToConnectionPoolSettings(pool -> pool.minSize(minPoolSize))
+                .addCommandListener(new MongoCommandTimer())
+                .build();
+            MongoClient mongoClient = MongoClients.create(settings);
+            MongoDatabase database = mongoClient.getDatabase(databaseName);
+            // The first command opens a pooled connection and proves the server is reachable
+            try {
+                database.runCommand(new Document("ping", 1));
+            } catch (RuntimeException e) {
+                mongoClient.close();
+                throw e;
+            }
+            return new MongoShopStore(mongoClient, database);
+        }
+
+        @Override
+        public GarmentRepository garments() {
+            return garments;
+        }
+
+        @Override
+        public UserRepository users() {
+            return users;
+        }
+
+        @Override
+        public CartRepository cart() {
+            return cart;
+        }
+
+        @Override
+        public OrderRepository orders() {
+            return orders;
+        }
+
+        @Override
+        public InventoryRepository inventory() {
+            return inventory;
+        }
+
+        @Override
+        public void prepare() {
+            IndexManager.ensureIndexes(database);
+            if (VERIFY_QUERY_PLANS) {
+                IndexManager.verifyQueryPlans(database);
+            }
+        }
+
+        // Multi-document transactions need a replica set or a sharded cluster
+        private synchronized boolean supportsTransactions() {
+            if (transactionsSupported == null) {
+                try {
+                    Document hello = database.runCommand(new Document("hello", 1));
+                    transactionsSupported = hello.containsKey("setName") || "isdbgrid".equals(hello.getString("msg"));
+                } catch (Exception e) {
+                    transactionsSupported = false;
+                }
+            }
+            return transactionsSupported;
+        }
+
+        private class Garments implements GarmentRepository {
+            private final MongoCollection<Document> collection = database.getCollection(GARMENTS_COLLECTION);
+
+            @Override
+            public boolean isEmpty() {
+                // An existence check is an index lookup, unlike an exact count of the collection
+                return collection.find().projection(Projections.include("_id")).first() == null;
+            }
+
+            @Override
+            public void insertAll(List<Document> garments) {
+                Date now = new Date();
+                for (Document garment : garments) {
+                    garment.putIfAbsent("updatedAt", now);
+                }
+                collection.insertMany(garments);
+            }
+
+            @Override
+            public List<Document> page(String sortField, Object afterSortValue, Object afterId, int limit) {
+                Bson after;
+                if (afterId == null) {
+                    after = new Document();
+                } else if (sortField.equals("_id")) {
+                    after = Filters.gt("_id", afterId);
+                } else {
+                    after = Filters.or(
+                        Filters.gt(sortField, afterSortValue),
+                        Filters.and(Filters.eq(sortField, afterSortValue), Filters.gt("_id", afterId)));
+                }
+                return collection.find(after)
+                    .projection(Projections.include("name", "price", "category", "image", "sizes", "updatedAt", sortField))
+                    .sort(sortField.equals("_id") ? Sorts.ascending("_id") : Sorts.ascending(sortField, "_id"))
+                    .limit(limit)
+                    .batchSize(limit)
+                    .into(new ArrayList<>());
+            }
+
+            @Override
+            public List<Document> findByIds(Collection<Object> garmentIds) {
+                return collection.find(Filters.in("_id", garmentIds))
+                    .projection(Projections.include("name", "price", "category", "image", "sizes"))
+                    .into(new ArrayList<>());
+            }
+
+            @Override
+            public AutoCloseable watch(CatalogListener listener) {
+                ChangeStreamFollower follower = new ChangeStreamFollower(collection, listener);
+                try {
+                    follower.open(null);
+                } catch (MongoCommandException e) {
+                    // A standalone server has no oplog to stream changes from
+                    throw new UnsupportedOperationException("Change streams are not available: " + e.getErrorMessage(), e);
+                }
+                Thread thread = new Thread(follower::follow, "catalog-watch");
+                thread.setDaemon(true);
+                thread.start();
+                return follower;
+            }
+
+            @Override
+            public List<Document> modifiedSince(Date since) {
+                return collection.find(Filters.gte("updatedAt", since))
+                    .projection(Projections.include("name", "price", "category", "image", "sizes", "updatedAt"))
+                    .into(new ArrayList<>());
+            }
+        }
+
+        // Feeds a garments change stream to a listener, resuming from the last event
+        // seen when the cursor fails for longer than the driver's own single retry.
+        // When the oplog no longer reaches back that far, it starts a fresh stream and
+        // re-reads the whole collection instead.
+        private static class ChangeStreamFollower implements AutoCloseable {
+            private static final long RESUME_DELAY_MS = 1000;
+            // Server error codes for a resume token that has fallen off the oplog
+            private static final int CHANGE_STREAM_FATAL_ERROR = 280;
+            private static final int CHANGE_STREAM_HISTORY_LOST = 286;
+
+            private final MongoCollection<Document> collection;
+            private final CatalogListener listener;
+            private volatile MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor;
+            private volatile boolean closed;
+
+            ChangeStreamFollower(MongoCollection<Document> collection, CatalogListener listener) {
+                this.collection = collection;
+                this.listener = listener;
+            }
+
+            void open(BsonDocument resumeToken) {
+                ChangeStreamIterable<Document> stream = collection.watch().fullDocument(FullDocument.UPDATE_LOOKUP);
+                cursor = (resumeToken != null ? stream.resumeAfter(resumeToken) : stream).cursor();
+            }
+
+            void follow() {
+                while (!closed) {
+                    try {
+                        ChangeStreamDocument<Document> change = cursor.next();
+                        if (!dispatch(change)) {
+                            System.out.println("Catalog change stream ended: " + change.getOperationType());
+                            return;
+                        }
+                    } catch (MongoException | IllegalStateException e) {
+                        if (closed) {
+                            return;
+                        }
+                        System.out.println("Catalog change stream interrupted, resuming: " + e.getMessage());
+                        resume();
+                    }
+                }
+            }
+
+            private void resume() {
+                BsonDocument resumeToken = cursor.getResumeToken();
+                boolean historyLost = false;
+                while (!closed) {
+                    try {
+                        Thread.sleep(RESUME_DELAY_MS);
+                        if (historyLost) {
+                            reload();
+                        } else {
+                            open(resumeToken);
+                        }
+                        return;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    } catch (MongoServerException e) {
+                        historyLost |= e.getCode() == CHANGE_STREAM_HISTORY_LOST || e.getCode() == CHANGE_STREAM_FATAL_ERROR;
+                        System.out.println("Could not resume catalog change stream: " + e.getMessage());
+                    } catch (MongoException e) {
+                        System.out.println("Could not resume catalog change stream: " + e.getMessage());
+                    }
+                }
+            }
+
+            // Opens the new stream before reading, so nothing changed during the read is missed
+            private void reload() {
+                System.out.println("Warning: Catalog changes were missed while the change stream was down, re-reading the catalog");
+                open(null);
+                Set<Object> liveIds = new HashSet<>();
+                for (Document garment : collection.find()
+                        .projection(Projections.include("name", "price", "category", "image", "sizes", "updatedAt"))) {
+                    liveIds.add(garment.get("_id"));
+                    listener.changed(garment);
+                }
+                listener.resynced(liveIds);
+            }
+
+            // False once the stream can deliver nothing more, e.g. after the collection is dropped
+            private boolean dispatch(ChangeStreamDocument<Document> change) {
+                switch (change.getOperationType()) {
+                    case INSERT:
+                    case UPDATE:
+                    case REPLACE:
+                        // Null when the garment was deleted again before the lookup ran
+                        if (change.getFullDocument() != null) {
+                            listener.changed(change.getFullDocument());
+                        }
+                        return true;
+                    case DELETE:
+                        BsonValue id = change.getDocumentKey() != null ? change.getDocumentKey().get("_id") : null;
+                        if (id != null && id.isObjectId()) {
+                            listener.removed(id.asObjectId().getValue());
+                        }
+                        return true;
+                    case DROP:
+                    case DROP_DATABASE:
+                    case RENAME:
+                    case INVALIDATE:
+                        return false;
+                    default:
+                        return true;
+                }
+            }
+
+            @Override
+            public void close() {
+                closed = true;
+                MongoChangeStreamCursor<ChangeStreamDocument<Document>> current = cursor;
+                if (current != null) {
+                    current.close();
+                }
+            }
+        }
+
+        private class Users implements UserRepository {
+            private final MongoCollection<Document> collection = database.getCollection(USERS_COLLECTION);
+
+            @Override
+            public Document findByUsername(String username) {
+                return collection.find(Filters.eq("username", username)).first();
+            }
+
+            @Override
+            public boolean insert(Document user) {
+                if (findByUsername(user.getString("username")) != null) {
+                    return false;
+                }
+                try {
+                    collection.insertOne(user);
+                    return true;
+                } catch (MongoWriteException e) {
+                    // Lost a race with another registration; the unique index rejected ours
+                    if (e.getError().getCategory() == ErrorCategory.DUPLICATE_KEY) {
+                        return false;
+                    }
+                    throw e;
+                }
+            }
+
+            @Override
+            public void updateCredentials(String username, Document credentials) {
+                List<Bson> updates = new ArrayList<>();
+                for (Map.Entry<String, Object> field : credentials.entrySet()) {
+                    updates.add(Updates.set(field.getKey(), field.getValue()));
+                }
+                updates.add(Updates.unset("password"));
+                collection.updateOne(Filters.eq("username", username), Updates.combine(updates));
+            }
+        }
+
+        private class Cart implements CartRepository {
+            private final MongoCollection<Document> collection = database.getCollection(CART_COLLECTION);
+
+            @Override
+            public List<Document> findByUsername(String username) {
+                return collection.find(Filters.eq("username", username))
+                    .projection(Projections.exclude(RECENT_OPS_FIELD))
+                    .into(new ArrayList<>());
+            }
+
+            @Override
+            public void add(Document addition) {
+                applyChanges(addition.getString("username"), List.of(addition), List.of(), Map.of());
+            }
+
+            @Override
+            public void remove(String username, Object lineId) {
+                collection.deleteOne(Filters.and(Filters.eq("_id", lineId), Filters.eq("username", username)));
+            }
+
+            @Override
+            public void applyChanges(String username, List<Document> additions, Collection<Object> removedIds, Map<Object, Integer> quantities) {
+                List<WriteModel<Document>> writes = new ArrayList<>();
+                for (Document addition : additions) {
+                    writes.add(upsert(username, addition));
+                }
+                for (Map.Entry<Object, Integer> quantity : quantities.entrySet()) {
+                    writes.add(new UpdateOneModel<>(
+                        Filters.and(Filters.eq("_id", quantity.getKey()), Filters.eq("username", username)),
+                        Updates.set("quantity", quantity.getValue())));
+                }
+                if (!removedIds.isEmpty()) {
+                    writes.add(new DeleteManyModel<>(Filters.and(Filters.eq("username", username), Filters.in("_id", removedIds))));
+                }
+                if (writes.isEmpty()) {
+                    return;
+                }
+                try {
+                    collection.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+                } catch (MongoBulkWriteException e) {
+                    // Additions come first in the batch, so their errors index into additions
+                    List<Document> collided = new ArrayList<>();
+                    for (BulkWriteError error : e.getWriteErrors()) {
+                        if (error.getCategory() != ErrorCategory.DUPLICATE_KEY || error.getIndex() >= additions.size()) {
+                            throw e;
+                        }
+                        collided.add(additions.get(error.getIndex()));
+                    }
+                    for (Document addition : collided) {
+                        retryAdd(username, addition);
+                    }
+                }
+            }
+
+            // An upsert collides with the line for the same garment and size either
+            // because this add already got through (the line remembers its operation
+            // id) or because another session created the line first. Only the first
+            // is done; in the second the upsert now matches the line and increments it.
+            private void retryAdd(String username, Document addition) {
+                for (int attempt = 0; attempt < 3; attempt++) {
+                    if (alreadyApplied(username, addition)) {
+                        return;
+                    }
+                    UpdateOneModel<Document> upsert = upsert(username, addition);
+                    try {
+                        collection.updateOne(upsert.getFilter(), upsert.getUpdate(), upsert.getOptions());
+                        return;
+                    } catch (MongoWriteException e) {
+                        if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                            throw e;
+                        }
+                    }
+                }
+                throw new IllegalStateException("Could not add " + addition.getString("size") + " of " + addition.get("garmentId")
+                    + " to the cart of " + username + ": the line kept changing");
+            }
+
+            private boolean alreadyApplied(String username, Document addition) {
+                Object operationId = addition.get("_id");
+                return collection.find(Filters.or(
+                        Filters.eq("_id", operationId),
+                        Filters.and(
+                            Filters.eq("username", username),
+                            Filters.eq("garmentId", addition.get("garmentId")),
+                            Filters.eq("size", addition.getString("size")),
+                            Filters.eq(RECENT_OPS_FIELD, operationId))))
+                    .projection(Projections.include("_id"))
+                    .first() != null;
+            }
+
+            private UpdateOneModel<Document> upsert(String username, Document addition) {
+                Object operationId = addition.get("_id");
+                Bson line = Filters.and(
+                    Filters.eq("username", username),
+                    Filters.eq("garmentId", addition.get("garmentId")),
+                    Filters.eq("size", addition.getString("size")),
+                    Filters.ne(RECENT_OPS_FIELD, operationId));
+                Bson increment = Updates.combine(
+                    Updates.inc("quantity", lineQuantity(addition)),
+                    Updates.setOnInsert("_id", operationId),
+                    Updates.setOnInsert("price", linePrice(addition)),
+                    Updates.pushEach(RECENT_OPS_FIELD, List.of(operationId), new PushOptions().slice(-RECENT_OPS_KEPT)));
+                return new UpdateOneModel<>(line, increment, new UpdateOptions().upsert(true));
+            }
+        }
+
+        private class Orders implements OrderRepository {
+            // Set on the header without a transaction once its stock has been taken
+            private static final String STOCK_TAKEN = "stockTaken";
+
+            private final MongoCollection<Document> collection = database.getCollection(ORDERS_COLLECTION);
+            private final MongoCollection<Document> headersCollection = database.getCollection(ORDER_HEADERS_COLLECTION);
+            private final MongoCollection<Document> cartCollection = database.getCollection(CART_COLLECTION);
+
+            @Override
+            public List<Document> findByUsername(String username) {
+                return collection.find(Filters.eq("username", username)).into(new ArrayList<>());
+            }
+
+            @Override
+            public List<Document> page(String username, Date beforeCreatedAt, Object beforeId, int limit) {
+                Bson filter = Filters.eq("username", username);
+                if (beforeId != null) {
+                    filter = Filters.and(filter, before(beforeCreatedAt, beforeId));
+                }
+                return collection.find(filter)
+                    .sort(Sorts.descending("createdAt", "_id"))
+                    .limit(limit)
+                    .batchSize(limit)
+                    .into(new ArrayList<>());
+            }
+
+            // Lines written before orders had a createdAt sort after every dated line
+            private Bson before(Date createdAt, Object id) {
+                if (createdAt == null) {
+                    return Filters.and(Filters.eq("createdAt", null), Filters.lt("_id", id));
+                }
+                return Filters.or(
+                    Filters.lt("createdAt", createdAt),
+                    Filters.and(Filters.eq("createdAt", createdAt), Filters.lt("_id", id)),
+                    Filters.eq("createdAt", null));
+            }
+
+            // Totals each order from its lines on the server, then rolls the orders
+            // up per status, so only one small document per status comes back
+            @Override
+            public Document summary(String username) {
+                Document price = new Document("$ifNull", List.of("$price", new Document("$ifNull", List.of("$garment.price", 0))));
+                Document quantity = new Document("$ifNull", List.of("$quantity", 1));
+                List<Bson> pipeline = List.of(
+                    Aggregates.match(Filters.eq("username", username)),
+                    Aggregates.group(new Document("$ifNull", List.of("$orderId", "$_id")),
+                        Accumulators.first("status", "$status"),
+                        Accumulators.sum("spend", new Document("$multiply", List.of(price, quantity)))),
+                    Aggregates.group("$status",
+                        Accumulators.sum("orders", 1),
+                        Accumulators.sum("spend", "$spend")));
+                List<Document> statuses = new ArrayList<>();
+                for (Document status : collection.aggregate(pipeline)) {
+                    statuses.add(new Document("status", status.get("_id"))
+                        .append("orders", status.get("orders"))
+                        .append("spend", status.get("spend")));
+                }
+                return orderSummary(statuses);
+            }
+
+            // A fixed number of round trips however many lines there are, inside a
+            // transaction when the server supports one. Placing an order whose header
+            // is already stored finishes that order instead of failing, so replays are safe.
+            @Override
+            public void place(Document header, List<Document> lines, String username, List<Object> cartItemIds) {
+                Bson purchasedCartItems = Filters.and(Filters.eq("username", username), Filters.in("_id", cartItemIds));
+                Bson stored = Filters.eq("_id", header.get("_id"));
+                if (supportsTransactions()) {
+                    try (ClientSession session = mongoClient.startSession()) {
+                        session.withTransaction(() -> {
+                            headersCollection.insertOne(session, new Document(header).append(STOCK_TAKEN, true));
+                            for (Document line : lines) {
+                                inventory.takeForOrder(session, username, lineGarmentId(line), line.getString("size"), lineQuantity(line));
+                            }
+                            collection.insertMany(session, lines);
+                            if (!cartItemIds.isEmpty()) {
+                                cartCollection.deleteMany(session, purchasedCartItems);
+                            }
+                            return null;
+                        });
+                    } catch (MongoWriteException e) {
+                        // The earlier attempt committed the whole order
+                        if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                            throw e;
+                        }
+                    }
+                    return;
+                }
+                // Without transactions write the header first, so a failure part-way leaves
+                // the items in the cart rather than losing them. The header is marked once
+                // the stock is taken and the lines are only written after that, so a replay
+                // of an attempt that failed in between takes the stock then.
+                boolean stockTaken = false;
+                try {
+                    headersCollection.insertOne(new Document(header).append(STOCK_TAKEN, false));
+                } catch (MongoWriteException e) {
+                    if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                        throw e;
+                    }
+                    Document existing = headersCollection.find(stored).projection(Projections.include(STOCK_TAKEN)).first();
+                    if (existing == null) {
+                        throw new IllegalStateException("Order " + header.get("_id") + " was being placed and given up at the same time");
+                    }
+                    // Headers written in a transaction, or before stock was tracked, carry no mark
+                    stockTaken = existing.getBoolean(STOCK_TAKEN, true);
+                }
+                if (!stockTaken) {
+                    List<Runnable> undo = new ArrayList<>();
+                    try {
+                        for (Document line : lines) {
+                            undo.add(inventory.takeForOrder(null, username, lineGarmentId(line), line.getString("size"), lineQuantity(line)));
+                        }
+                        headersCollection.updateOne(stored, Updates.set(STOCK_TAKEN, true));
+                    } catch (RuntimeException e) {
+                        giveUp(stored, undo, e);
+                        throw e;
+                    }
+                }
+                try {
+                    collection.insertMany(lines, new InsertManyOptions().ordered(false));
+                } catch (MongoBulkWriteException e) {
+                    // Lines that carry an _id and were written by the earlier attempt
+                    for (BulkWriteError error : e.getWriteErrors()) {
+                        if (error.getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                            throw e;
+                        }
+                    }
+                }
+                if (!cartItemIds.isEmpty()) {
+                    cartCollection.deleteMany(purchasedCartItems);
+                }
+            }
+
+            // Stock is only given back once the header is gone. While it may still be
+            // stored, and perhaps marked, keeping the stock can at worst undersell.
+            private void giveUp(Bson header, List<Runnable> undo, RuntimeException failure) {
+                try {
+                    headersCollection.deleteOne(header);
+                } catch (RuntimeException e) {
+                    failure.addSuppressed(e);
+                    System.out.println("Warning: Could not withdraw a failed order, keeping the stock it took: " + e.getMessage());
+                    return;
+                }
+                for (Runnable giveBack : undo) {
+                    try {
+                        giveBack.run();
+                    } catch (RuntimeException e) {
+                        failure.addSuppressed(e);
+                        System.out.println("Warning: Could not return stock taken by a failed order: " + e.getMessage());
+                    }
+                }
+            }
+        }
+
+        // Each size's stock is INVENTORY_SHARDS documents { _id: "<garmentId>:<size>:<shard>",
+        // garmentId, size, units }, taken from with a conditional $inc so none goes below
+        // zero. Holds are documents in the reservations collection keyed by user, garment
+        // and size; whoever deletes one owns its units.
+        private class Inventory implements InventoryRepository {
+            private final MongoCollection<Document> shards = database.getCollection(INVENTORY_COLLECTION);
+            private final MongoCollection<Document> reservations = database.getCollection(RESERVATIONS_COLLECTION);
+            // Sizes whose takes had to gather from several shards since the last reconcile
+            private final Set<Document> drained = ConcurrentHashMap.newKeySet();
+
+            @Override
+            public Map<String, Integer> available(Object garmentId) {
+                Map<String, Integer> available = new TreeMap<>();
+                for (Document shard : shards.find(Filters.eq("garmentId", garmentId))) {
+                    available.merge(shard.getString("size"), shard.getInteger("units"), Integer::sum);
+                }
+                return available;
+            }
+
+            @Override
+            public void restock(Object garmentId, String size, int units) {
+                List<WriteModel<Document>> writes = new ArrayList<>();
+                for (int shard = 0; shard < INVENTORY_SHARDS; shard++) {
+                    int share = units / INVENTORY_SHARDS + (shard < units % INVENTORY_SHARDS ? 1 : 0);
+                    writes.add(new UpdateOneModel<>(Filters.eq("_id", shardId(garmentId, size, shard)),
+                        Updates.combine(Updates.setOnInsert("garmentId", garmentId), Updates.setOnInsert("size", size), Updates.inc("units", share)),
+                        new UpdateOptions().upsert(true)));
+                }
+                shards.bulkWrite(writes);
+            }
+
+            @Override
+            public boolean reserve(String username, Object garmentId, String size, int units) {
+                List<Document> current = shardsOf(null, garmentId, size);
+                if (current.isEmpty()) {
+                    return true;
+                }
+                Object reservationId = reservationId(username, garmentId, size);
+                for (int attempt = 0; attempt < 3; attempt++) {
+                    // Deleting the hold claims its units, lapsed or not, before reconcile() can
+                    Document held = reservations.findOneAndDelete(Filters.eq("_id", reservationId));
+                    int heldUnits = held != null ? held.getInteger("units") : 0;
+                    try {
+                        if (units > heldUnits && !take(null, garmentId, size, current, units - heldUnits)) {
+                            if (held != null) {
+                                putBack(held);
+                            }
+                            return false;
+                        }
+                        if (units < heldUnits) {
+                            give(null, garmentId, size, heldUnits - units);
+                        }
+                    } catch (RuntimeException e) {
+                        // The claimed units are in neither a hold nor a shard until they go back
+                        if (held != null) {
+                            try {
+                                putBack(held);
+                            } catch (RuntimeException putBackFailure) {
+                                e.addSuppressed(putBackFailure);
+                            }
+                        }
+                        throw e;
+                    }
+                    if (units == 0) {
+                        return true;
+                    }
+                    Document hold = new Document("_id", reservationId)
+                        .append("username", username)
+                        .append("garmentId", garmentId)
+                        .append("size", size)
+                        .append("units", units)
+                        .append("expiresAt", new Date(System.currentTimeMillis() + RESERVATION_MS));
+                    if (putBack(hold)) {
+                        return true;
+                    }
+                    // Another window of the same user reserved at the same moment and its
+                    // hold went back to stock; go again from what it left
+                }
+                return false;
+            }
+
+            // Stores a hold, or returns its units to stock when one is already there
+            private boolean putBack(Document hold) {
+                try {
+                    reservations.insertOne(hold);
+                    return true;
+                } catch (MongoWriteException e) {
+                    if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                        throw e;
+                    }
+                    give(null, hold.get("garmentId"), hold.getString("size"), hold.getInteger("units"));
+                    return false;
+                }
+            }
+
+            // Uses up the user's hold on the size first; returns how to put the units back
+            Runnable takeForOrder(ClientSession session, String username, Object garmentId, String size, int units) {
+                List<Document> current = shardsOf(session, garmentId, size);
+                if (current.isEmpty()) {
+                    return () -> { };
+                }
+                Bson hold = Filters.eq("_id", reservationId(username, garmentId, size));
+                Document held = session != null ? reservations.findOneAndDelete(session, hold) : reservations.findOneAndDelete(hold);
+                int heldUnits = held != null ? held.getInteger("units") : 0;
+                boolean heldReturned = false;
+                try {
+                    if (heldUnits >= units) {
+                        give(session, garmentId, size, heldUnits - units);
+                    } else if (!take(session, garmentId, size, current, units - heldUnits)) {
+                        heldReturned = true;
+                        give(session, garmentId, size, heldUnits);
+                        throw new OutOfStockException(garmentId, size);
+                    }
+                } catch (RuntimeException e) {
+                    // A transaction's abort restores the hold; without one the claimed units
+                    // are in neither a hold nor a shard, and the caller has no undo for them
+                    if (session == null && !heldReturned && heldUnits > 0) {
+                        try {
+                            give(null, garmentId, size, heldUnits);
+                        } catch (RuntimeException giveBackFailure) {
+                            e.addSuppressed(giveBackFailure);
+                        }
+                    }
+                    throw e;
+                }
+                return () -> give(null, garmentId, size, units);
+            }
+
+            @Override
+            public void reconcile() {
+                Date now = new Date();
+                Map<Document, Integer> lapsed = new HashMap<>();
+                for (Document expired : reservations.find(Filters.lt("expiresAt", now)).limit(1000)) {
+                    Document claimed = reservations.findOneAndDelete(
+                        Filters.and(Filters.eq("_id", expired.get("_id")), Filters.lt("expiresAt", now)));
+                    if (claimed != null) {
+                        lapsed.merge(new Document("garmentId", claimed.get("garmentId")).append("size", claimed.getString("size")),
+                            claimed.getInteger("units"), Integer::sum);
+                    }
+                }
+                // One write per size however many of its holds lapsed
+                lapsed.forEach((size, units) -> give(null, size.get("garmentId"), size.getString("size"), units));
+                for (Document size : new ArrayList<>(drained)) {
+                    drained.remove(size);
+                    rebalance(size.get("garmentId"), size.getString("size"));
+                }
+            }
+
+            private List<Document> shardsOf(ClientSession session, Object garmentId, String size) {
+                Bson filter = Filters.and(Filters.eq("garmentId", garmentId), Filters.eq("size", size));
+                return (session != null ? shards.find(session, filter) : shards.find(filter)).into(new ArrayList<>());
+            }
+
+            private boolean take(ClientSession session, Object garmentId, String size, List<Document> current, int units) {
+                int start = ThreadLocalRandom.current().nextInt(current.size());
+                for (int i = 0; i < current.size(); i++) {
+                    Document shard = current.get((start + i) % current.size());
+                    if (shard.getInteger("units") >= units && decrement(session, shard.get("_id"), units)) {
+                        return true;
+                    }
+                }
+                // No one shard has enough: gather from several and give it all back if they fall short
+                drained.add(new Document("garmentId", garmentId).append("size", size));
+                Map<Object, Integer> taken = new HashMap<>();
+                int remaining = units;
+                for (int i = 0; i < current.size() && remaining > 0; i++) {
+                    Object shardId = current.get((start + i) % current.size()).get("_id");
+                    for (int attempt = 0; attempt < 3 && remaining > 0; attempt++) {
+                        Bson filter = Filters.eq("_id", shardId);
+                        Document latest = (session != null ? shards.find(session, filter) : shards.find(filter)).first();
+                        int have = latest != null ? latest.getInteger("units") : 0;
+                        if (have <= 0) {
+                            break;
+                        }
+                        int part = Math.min(have, remaining);
+                        if (decrement(session, shardId, part)) {
+                            taken.merge(shardId, part, Integer::sum);
+                            remaining -= part;
+                        }
+                    }
+                }
+                if (remaining == 0) {
+                    return true;
+                }
+                taken.forEach((shardId, part) -> increment(session, shardId, part));
+                return false;
+            }
+
+            private boolean decrement(ClientSession session, Object shardId, int units) {
+                Bson filter = Filters.and(Filters.eq("_id", shardId), Filters.gte("units", units));
+                Bson update = Updates.inc("units", -units);
+                UpdateResult result = session != null ? shards.updateOne(session, filter, update) : shards.updateOne(filter, update);
+                return result.getModifiedCount() == 1;
+            }
+
+            private void increment(ClientSession session, Object shardId, int units) {
+                Bson filter = Filters.eq("_id", shardId);
+                Bson update = Updates.inc("units", units);
+                if (session != null) {
+                    shards.updateOne(session, filter, update);
+                } else {
+                    shards.updateOne(filter, update);
+                }
+            }
+
+            // Puts units back on one of the size's stored shards, whatever
+            // -Dshoppie.inventoryShards this process runs with; sizes that are not
+            // tracked are left alone
+            private void give(ClientSession session, Object garmentId, String size, int units) {
+                if (units <= 0) {
+                    return;
+                }
+                List<Document> current = shardsOf(session, garmentId, size);
+                if (!current.isEmpty()) {
+                    increment(session, current.get(ThreadLocalRandom.current().nextInt(current.size())).get("_id"), units);
+                }
+            }
+
+            // Moves units from the fullest shards to the emptiest, each move a conditional
+            // decrement before the increment, so stock is never made up
+            private void rebalance(Object garmentId, String size) {
+                List<Document> current = shardsOf(null, garmentId, size);
+                if (current.isEmpty()) {
+                    return;
+                }
+                int total = 0;
+                for (Document shard : current) {
+                    total += shard.getInteger("units");
+                }
+                int target = total / current.size();
+                int pool = 0;
+                for (Document shard : current) {
+                    int excess = shard.getInteger("units") - target;
+                    if (excess > 0 && decrement(null, shard.get("_id"), excess)) {
+                        pool += excess;
+                    }
+                }
+                for (Document shard : current) {
+                    int share = Math.min(pool, Math.max(0, target - shard.getInteger("units")));
+                    if (share > 0) {
+                        increment(null, shard.get("_id"), share);
+                        pool -= share;
+                    }
+                }
+                if (pool > 0) {
+                    increment(null, current.get(0).get("_id"), pool);
+                }
+            }
+
+            private String shardId(Object garmentId, String size, int shard) {
+                return garmentId + ":" + size + ":" + shard;
+            }
+
+            private String reservationId(String username, Object garmentId, String size) {
+                return username + ":" + garmentId + ":" + size;
+            }
+        }
+    }
+
+    // Embedded store on concurrent maps, indexed the same way as the Mongo collections.
+    // Used as a local stand-in for benchmarks and load tests, and for demos with
+    // -Dshoppie.store=memory. Documents are deep-copied in and out so callers can
+    // never modify what is stored.
+    static class InMemoryShopStore implements ShopStore {
+        private final ConcurrentSkipListMap<ObjectId, Document> garmentsById = new ConcurrentSkipListMap<>();
+        private final List<CatalogListener> garmentListeners = new CopyOnWriteArrayList<>();
+        private final Map<String, ConcurrentSkipListSet<Document>> garmentsBySortField = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, Document> usersByName = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<ObjectId, Document> cartById = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, ConcurrentSkipListSet<ObjectId>> cartIdsByUser = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, ObjectId> cartIdsByLineKey = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, ConcurrentSkipListSet<Document>> ordersByUser = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<ObjectId, Document> orderHeaders = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, Object> userLocks = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<Object, ConcurrentHashMap<String, StripedStock>> stockByGarment = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, Reservation> reservations = new ConcurrentHashMap<>();
+
+        private final GarmentRepository garments = new Garments();
+        private final UserRepository users = new Users();
+        private final CartRepository cart = new Cart();
+        private final OrderRepository orders = new Orders();
+        private final InventoryRepository inventory = new Inventory();
+
+        @Override
+        public GarmentRepository garments() {
+            return garments;
+        }
+
+        @Override
+        public UserRepository users() {
+            return users;
+        }
+
+        @Override
+        public CartRepository cart() {
+            return cart;
+        }
+
+        @Override
+        public OrderRepository orders() {
+            return orders;
+        }
+
+        @Override
+        public InventoryRepository inventory() {
+            return inventory;
+        }
+
+        @Override
+        public void prepare() {
+        }
+
+        private Object lockFor(String username) {
+            return userLocks.computeIfAbsent(username, name -> new Object());
+        }
+
+        private static ObjectId assignId(Document document) {
+            if (!(document.get("_id") instanceof ObjectId)) {
+                document.put("_id", new ObjectId());
+            }
+            return document.getObjectId("_id");
+        }
+
+        // Same order as the (username, createdAt desc, _id desc) index on order lines
+        private static final Comparator<Document> NEWEST_FIRST = (a, b) -> {
+            int byCreatedAt = compareValues(b.get("createdAt"), a.get("createdAt"));
+            return byCreatedAt != 0 ? byCreatedAt : b.getObjectId("_id").compareTo(a.getObjectId("_id"));
+        };
+
+        // Orders garments by a field and then by _id, like the compound indexes on the collection
+        private static Comparator<Document> bySortField(String sortField) {
+            return (a, b) -> {
+                int bySortValue = compareValues(a.get(sortField), b.get(sortField));
+                return bySortValue != 0 ? bySortValue : a.getObjectId("_id").compareTo(b.getObjectId("_id"));
+            };
+        }
+
+        @SuppressWarnings("unchecked")
+        private static int compareValues(Object a, Object b) {
+            if (a == b) {
+                return 0;
+            }
+            if (a == null) {
+                return -1;
+            }
+            if (b == null) {
+                return 1;
+            }
+            return ((Comparable<Object>) a).compareTo(b);
+        }
+
+        private class Garments implements GarmentRepository {
+            @Override
+            public boolean isEmpty() {
+                return garmentsById.isEmpty();
+            }
+
+            @Override
+            public void insertAll(List<Document> newGarments) {
+                Date now = new Date();
+                for (Document garment : newGarments) {
+                    ObjectId id = assignId(garment);
+                    garment.putIfAbsent("updatedAt", now);
+                    Document stored = copy(garment);
+                    Document previous = garmentsById.put(id, stored);
+                    for (ConcurrentSkipListSet<Document> index : garmentsBySortField.values()) {
+                        if (previous != null) {
+                            index.remove(previous);
+                        }
+                        index.add(stored);
+                    }
+                    for (CatalogListener listener : garmentListeners) {
+                        listener.changed(copy(stored));
+                    }
+                }
+            }
+
+            @Override
+            public List<Document> page(String sortField, Object afterSortValue, Object afterId, int limit) {
+                Collection<Document> candidates;
+                if (sortField.equals("_id")) {
+                    candidates = afterId == null ? garmentsById.values() : garmentsById.tailMap((ObjectId) afterId, false).values();
+                } else {
+                    ConcurrentSkipListSet<Document> index = sortIndex(sortField);
+                    candidates = afterId == null ? index
+                        : index.tailSet(new Document(sortField, afterSortValue).append("_id", afterId), false);
+                }
+                List<Document> page = new ArrayList<>(Math.min(limit, 256));
+                for (Document garment : candidates) {
+                    if (page.size() == limit) {
+                        break;
+                    }
+                    page.add(copy(garment));
+                }
+                return page;
+            }
+
+            private ConcurrentSkipListSet<Document> sortIndex(String sortField) {
+                return garmentsBySortField.computeIfAbsent(sortField, field -> {
+                    ConcurrentSkipListSet<Document> index = new ConcurrentSkipListSet<>(bySortField(field));
+                    index.addAll(garmentsById.values());
+                    return index;
+                });
+            }
+
+            @Override
+            public List<Document> findByIds(Collection<Object> garmentIds) {
+                List<Document> found = new ArrayList<>();
+                for (Object garmentId : garmentIds) {
+                    Document garment = garmentId instanceof ObjectId ? garmentsById.get(garmentId) : null;
+                    if (garment != null) {
+                        found.add(copy(garment));
+                    }
+                }
+                return found;
+            }
+
+            @Override
+            public AutoCloseable watch(CatalogListener listener) {
+                garmentListeners.add(listener);
+                return () -> garmentListeners.remove(listener);
+            }
+
+            @Override
+            public List<Document> modifiedSince(Date since) {
+                List<Document> modified = new ArrayList<>();
+                for (Document garment : garmentsById.values()) {
+                    Date updatedAt = garment.getDate("updatedAt");
+                    if (updatedAt != null && !updatedAt.before(since)) {
+                        modified.add(copy(garment));
+                    }
+                }
+                return modified;
+            }
+        }
+
+        private class Users implements UserRepository {
+            @Override
+            public Document findByUsername(String username) {
+                Document user = usersByName.get(username);
+                return user != null ? copy(user) : null;
+            }
+
+            @Override
+            public boolean insert(Document user) {
+                assignId(user);
+                return usersByName.putIfAbsent(user.getString("username"), copy(user)) == null;
+            }
+
+            @Override
+            public void updateCredentials(String username, Document credentials) {
+                usersByName.computeIfPresent(username, (name, user) -> {
+                    Document updated = copy(user);
+                    updated.putAll(credentials);
+                    updated.remove("password");
+                    return updated;
+                });
+            }
+        }
+
+        private class Cart implements CartRepository {
+            @Override
+            public List<Document> findByUsername(String username) {
+                List<Document> lines = new ArrayList<>();
+                for (ObjectId id : cartIdsByUser.getOrDefault(username, new ConcurrentSkipListSet<>())) {
+                    Document line = cartById.get(id);
+                    if (line != null) {
+                        Document visible = copy(line);
+                        visible.remove(RECENT_OPS_FIELD);
+                        lines.add(visible);
+                    }
+                }
+                return lines;
+            }
+
+            @Override
+            public void add(Document addition) {
+                String username = addition.getString("username");
+                synchronized (lockFor(username)) {
+                    increment(username, addition);
+                }
+            }
+
+            @Override
+            public void remove(String username, Object lineId) {
+                synchronized (lockFor(username)) {
+                    removeCartLine(username, lineId);
+                }
+            }
+
+            @Override
+            public void applyChanges(String username, List<Document> additions, Collection<Object> removedIds, Map<Object, Integer> quantities) {
+                synchronized (lockFor(username)) {
+                    for (Document addition : additions) {
+                        increment(username, addition);
+                    }
+                    for (Map.Entry<Object, Integer> quantity : quantities.entrySet()) {
+                        Document line = cartById.get(quantity.getKey());
+                        if (line != null && username.equals(line.getString("username"))) {
+                            line.put("quantity", quantity.getValue());
+                        }
+                    }
+                    for (Object id : removedIds) {
+                        removeCartLine(username, id);
+                    }
+                }
+            }
+
+            // Same outcome as the Mongo upsert: grow the line for this garment and size,
+            // or create it under the operation id, unless the add was already applied
+            private void increment(String username, Document addition) {
+                ObjectId operationId = assignId(addition);
+                String key = cartLineKey(username, lineGarmentId(addition), addition.getString("size"));
+                ObjectId lineId = cartIdsByLineKey.get(key);
+                Document line = lineId != null ? cartById.get(lineId) : null;
+                if (line == null) {
+                    if (cartById.containsKey(operationId)) {
+                        return;
+                    }
+                    line = copy(addition).append(RECENT_OPS_FIELD, new ArrayList<>(List.of(operationId)));
+                    line.put("username", username);
+                    cartById.put(operationId, line);
+                    cartIdsByUser.computeIfAbsent(username, name -> new ConcurrentSkipListSet<>()).add(operationId);
+                    cartIdsByLineKey.put(key, operationId);
+                    return;
+                }
+                List<Object> recentOps = new ArrayList<>(line.getList(RECENT_OPS_FIELD, Object.class, List.of()));
+                if (recentOps.contains(operationId)) {
+                    return;
+                }
+                recentOps.add(operationId);
+                if (recentOps.size() > RECENT_OPS_KEPT) {
+                    recentOps.remove(0);
+                }
+                line.put(RECENT_OPS_FIELD, recentOps);
+                line.put("quantity", lineQuantity(line) + lineQuantity(addition));
+            }
+        }
+
+        private static String cartLineKey(String username, Object garmentId, String size) {
+            return username + '\u0000' + garmentId + '\u0000' + size;
+        }
+
+        // Callers hold the user's lock
+        private void removeCartLine(String username, Object lineId) {
+            Document line = cartById.get(lineId);
+            if (line == null || !username.equals(line.getString("username"))) {
+                return;
+            }
+            cartById.remove(lineId);
+            cartIdsByLineKey.remove(cartLineKey(username, lineGarmentId(line), line.getString("size")), lineId);
+            ConcurrentSkipListSet<ObjectId> ids = cartIdsByUser.get(username);
+            if (ids != null) {
+                ids.remove(lineId);
+            }
+        }
+
+        int garmentCount() {
+            return garmentsById.size();
+        }
+
+        // A user's hold on some units of one size; replaced, never changed, so whoever
+        // removes it from the map owns its units
+        private static class Reservation {
+            final StripedStock stock;
+            final int units;
+            final long expiresAt;
+
+            Reservation(StripedStock stock, int units, long expiresAt) {
+                this.stock = stock;
+                this.units = units;
+                this.expiresAt = expiresAt;
+            }
+        }
+
+        private static String reservationKey(String username, Object garmentId, String size) {
+            return username + '\u0000' + garmentId + '\u0000' + size;
+        }
+
+        private StripedStock stockFor(Object garmentId, String size) {
+            Map<String, StripedStock> sizes = stockByGarment.get(garmentId);
+            return sizes != null ? sizes.get(size) : null;
+        }
+
+        // Callers hold the user's lock. Uses up the user's hold on the size first and
+        // returns how to put the units back.
+        private Runnable takeForOrder(String username, Object garmentId, String size, int units) {
+            StripedStock stock = stockFor(garmentId, size);
+            if (stock == null) {
+                return () -> { };
+            }
+            Reservation held = reservations.remove(reservationKey(username, garmentId, size));
+            int heldUnits = held != null ? held.units : 0;
+            if (heldUnits >= units) {
+                stock.add(heldUnits - units);
+            } else if (!stock.take(units - heldUnits)) {
+                stock.add(heldUnits);
+                throw new OutOfStockException(garmentId, size);
+            }
+            return () -> stock.add(units);
+        }
+
+        private class Inventory implements InventoryRepository {
+            @Override
+            public Map<String, Integer> available(Object garmentId) {
+                Map<String, Integer> available = new TreeMap<>();
+                stockByGarment.getOrDefault(garmentId, new ConcurrentHashMap<>())
+                    .forEach((size, stock) -> available.put(size, stock.total()));
+                return available;
+            }
+
+            @Override
+            public void restock(Object garmentId, String size, int units) {
+                stockByGarment.computeIfAbsent(garmentId, id -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(size, s -> new StripedStock(INVENTORY_SHARDS))
+                    .add(units);
+            }
+
+            @Override
+            public boolean reserve(String username, Object garmentId, String size, int units) {
+                StripedStock stock = stockFor(garmentId, size);
+                if (stock == null) {
+                    return true;
+                }
+                String key = reservationKey(username, garmentId, size);
+                synchronized (lockFor(username)) {
+                    // Removing the hold claims its units, lapsed or not, before reconcile() can
+                    Reservation held = reservations.remove(key);
+                    int heldUnits = held != null ? held.units : 0;
+                    if (units > heldUnits && !stock.take(units - heldUnits)) {
+                        if (held != null) {
+                            reservations.put(key, held);
+                        }
+                        return false;
+                    }
+                    if (units < heldUnits) {
+                        stock.add(heldUnits - units);
+                    }
+                    if (units > 0) {
+                        reservations.put(key, new Reservation(stock, units, System.currentTimeMillis() + RESERVATION_MS));
+                    }
+                    return true;
+                }
+            }
+
+            @Override
+            public void reconcile() {
+                long now = System.currentTimeMillis();
+                for (Map.Entry<String, Reservation> entry : reservations.entrySet()) {
+                    Reservation held = entry.getValue();
+                    if (held.expiresAt < now && reservations.remove(entry.getKey(), held)) {
+                        held.stock.add(held.units);
+                    }
+                }
+                for (Map<String, StripedStock> sizes : stockByGarment.values()) {
+                    for (StripedStock stock : sizes.values()) {
+                        stock.rebalance();
+                    }
+                }
+            }
+        }
+
+        // Drops a garment deleted from the store this one mirrors
+        void removeGarment(Object garmentId) {
+            Document removed = garmentsById.remove(garmentId);
+            if (removed == null) {
+                return;
+            }
+            for (ConcurrentSkipListSet<Document> index : garmentsBySortField.values()) {
+                index.remove(removed);
+            }
+            for (CatalogListener listener : garmentListeners) {
+                listener.removed(garmentId);
+            }
+        }
+
+        // Replaces the user's cart with lines read from the store this one mirrors
+        void replaceCart(String username, List<Document> lines) {
+            synchronized (lockFor(username)) {
+                for (ObjectId id : new ArrayList<>(cartIdsByUser.getOrDefault(username, new ConcurrentSkipListSet<>()))) {
+                    removeCartLine(username, id);
+                }
+                for (Document line : lines) {
+                    ObjectId id = line.getObjectId("_id");
+                    Document stored = copy(line).append(RECENT_OPS_FIELD, new ArrayList<>());
+                    cartById.put(id, stored);
+                    cartIdsByUser.computeIfAbsent(username, name -> new ConcurrentSkipListSet<>()).add(id);
+                    cartIdsByLineKey.put(cartLineKey(username, lineGarmentId(line), line.getString("size")), id);
+                }
+            }
+        }
+
+        // Takes back an order the store this one mirrors turned down; stock is not
+        // returned, as this copy does not keep it
+        void removeOrder(String username, Object orderId) {
+            synchronized (lockFor(username)) {
+                orderHeaders.remove(orderId);
+                ConcurrentSkipListSet<Document> userOrders = ordersByUser.get(username);
+                if (userOrders != null) {
+                    userOrders.removeIf(line -> orderId.equals(line.get("orderId")));
+                }
+            }
+        }
+
+        private class Orders implements OrderRepository {
+            @Override
+            public List<Document> findByUsername(String username) {
+                List<Document> lines = new ArrayList<>();
+                for (Document line : ordersByUser.getOrDefault(username, new ConcurrentSkipListSet<>(NEWEST_FIRST))) {
+                    lines.add(copy(line));
+                }
+                return lines;
+            }
+
+            @Override
+            public List<Document> page(String username, Date beforeCreatedAt, Object beforeId, int limit) {
+                ConcurrentSkipListSet<Document> userOrders = ordersByUser.get(username);
+                List<Document> page = new ArrayList<>();
+                if (userOrders == null) {
+                    return page;
+                }
+                Collection<Document> candidates = beforeId == null ? userOrders
+                    : userOrders.tailSet(new Document("createdAt", beforeCreatedAt).append("_id", beforeId), false);
+                for (Document line : candidates) {
+                    if (page.size() == limit) {
+                        break;
+                    }
+                    page.add(copy(line));
+                }
+                return page;
+            }
+
+            @Override
+            public Document summary(String username) {
+                Map<Object, String> statusByOrder = new HashMap<>();
+                Map<Object, Double> spendByOrder = new HashMap<>();
+                for (Document line : ordersByUser.getOrDefault(username, new ConcurrentSkipListSet<>(NEWEST_FIRST))) {
+                    Object orderId = line.get("orderId") != null ? line.get("orderId") : line.get("_id");
+                    statusByOrder.putIfAbsent(orderId, line.getString("status"));
+                    spendByOrder.merge(orderId, linePrice(line) * lineQuantity(line), Double::sum);
+                }
+                Map<String, Document> byStatus = new LinkedHashMap<>();
+                for (Map.Entry<Object, String> order : statusByOrder.entrySet()) {
+                    Document status = byStatus.computeIfAbsent(order.getValue(),
+                        name -> new Document("status", name).append("orders", 0).append("spend", 0.0));
+                    status.put("orders", status.getInteger("orders") + 1);
+                    status.put("spend", status.getDouble("spend") + spendByOrder.get(order.getKey()));
+                }
+                return orderSummary(new ArrayList<>(byStatus.values()));
+            }
+
+            @Override
+            public void place(Document header, List<Document> lines, String username, List<Object> cartItemIds) {
+                synchronized (lockFor(username)) {
+                    if (orderHeaders.containsKey(assignId(header))) {
+                        return;
+                    }
+                    // Take every line's stock before writing anything, and put back what was
+                    // taken if a later line falls short
+                    List<Runnable> undo = new ArrayList<>();
+                    try {
+                        for (Document line : lines) {
+                            undo.add(takeForOrder(username, lineGarmentId(line), line.getString("size"), lineQuantity(line)));
+                        }
+                    } catch (OutOfStockException e) {
+                        undo.forEach(Runnable::run);
+                        throw e;
+                    }
+                    orderHeaders.put(header.getObjectId("_id"), copy(header));
+                    ConcurrentSkipListSet<Document> userOrders = ordersByUser.computeIfAbsent(username, name -> new ConcurrentSkipListSet<>(NEWEST_FIRST));
+                    for (Document line : lines) {
+                        assignId(line);
+                        userOrders.add(copy(line));
+                    }
+                    for (Object cartItemId : cartItemIds) {
+                        removeCartLine(username, cartItemId);
+                    }
+                }
+            }
+        }
+
+        // Nested documents and lists, such as sizes and order lines, are copied as well
+        private static Document copy(Document document) {
+            Document copy = new Document();
+            document.forEach((key, value) -> copy.put(key, copyValue(value)));
+            return copy;
+        }
+
+        private static Object copyValue(Object value) {
+            if (value instanceof Document) {
+                return copy((Document) value);
+            }
+            if (value instanceof List) {
+                List<Object> copy = new ArrayList<>();
+                for (Object item : (List<?>) value) {
+                    copy.add(copyValue(item));
+                }
+                return copy;
+            }
+            return value;
+        }
+    }
+
+    // Talks to a ShopService over HTTP instead of to the database, so desktop
+    // clients share the service's connection pool and catalog cache. Reads are GETs
+    // with the arguments as extended JSON in the q parameter, which lets the service
+    // cache and coalesce them by URI; writes are POSTs with a JSON body.
+    static class RemoteShopStore implements ShopStore {
+        static final JsonWriterSettings JSON = JsonWriterSettings.builder().outputMode(JsonMode.EXTENDED).build();
+
+        private final String baseUrl;
+        private final HttpClient http;
+        private final GarmentRepository garments = new Garments();
+        private final UserRepository users = new Users();
+        private final CartRepository cart = new Cart();
+        private final OrderRepository orders = new Orders();
+        private final InventoryRepository inventory = new Inventory();
+        private final Accounts accounts = new RemoteAccounts();
+        // The session token the service handed each user who signed in through this store
+        private final Map<String, String> sessionTokens = new ConcurrentHashMap<>();
+
+        RemoteShopStore(String baseUrl) {
+            this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+            this.http = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(DATA_TIMEOUT_MS))
+                .build();
+        }
+
+        @Override
+        public GarmentRepository garments() {
+            return garments;
+        }
+
+        @Override
+        public UserRepository users() {
+            return users;
+        }
+
+        @Override
+        public CartRepository cart() {
+            return cart;
+        }
+
+        @Override
+        public OrderRepository orders() {
+            return orders;
+        }
+
+        @Override
+        public InventoryRepository inventory() {
+            return inventory;
+        }
+
+        // The service builds its own indexes
+        @Override
+        public void prepare() {
+        }
+
+        Accounts accounts() {
+            return accounts;
+        }
+
+        private Document get(String path, Document query) {
+            String q = URLEncoder.encode(query.toJson(JSON), StandardCharsets.UTF_8);
+            return send(path, authorized(path, query, HttpRequest.newBuilder(URI.create(baseUrl + path + "?q=" + q))).GET());
+        }
+
+        private Document post(String path, Document body) {
+            return send(path, authorized(path, body, HttpRequest.newBuilder(URI.create(baseUrl + path)))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body.toJson(JSON), StandardCharsets.UTF_8)));
+        }
+
+        // Catalog and stock writes carry -Dshoppie.adminToken; anything for a user
+        // carries that user's session token
+        private HttpRequest.Builder authorized(String path, Document request, HttpRequest.Builder builder) {
+            String username = request.getString("username");
+            String token = ShopService.ADMIN_WRITES.contains(path) ? ADMIN_TOKEN
+                : username != null ? sessionTokens.get(username) : null;
+            return token != null ? builder.header("Authorization", "Bearer " + token) : builder;
+        }
+
+        private Document send(String path, HttpRequest.Builder request) {
+            return Metrics.time("remote" + path, () -> {
+                HttpResponse<String> response;
+                try {
+                    response = http.send(request.timeout(Duration.ofMillis(DATA_TIMEOUT_MS)).build(),
+                        HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    throw new IllegalStateException("Could not reach the shop service at " + baseUrl + ": " + e.getMessage(), e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException("Interrupted while waiting for the shop service");
+                }
+                if (response.statusCode() == 409) {
+                    Document conflict = Document.parse(response.body());
+                    throw new OutOfStockException(conflict.get("garmentId"), conflict.getString("size"));
+                }
+                if (response.statusCode() == 401) {
+                    throw new SignInRequiredException();
+                }
+                if (response.statusCode() != 200) {
+                    throw new IllegalStateException("The shop service answered " + response.statusCode() + " to " + path + ": " + response.body());
+                }
+                return Document.parse(response.body());
+            });
+        }
+
+        private static List<Document> items(Document response) {
+            return response.getList("items", Document.class);
+        }
+
+        private class Garments implements GarmentRepository {
+            @Override
+            public boolean isEmpty() {
+                return get("/garments/empty", new Document()).getBoolean("empty");
+            }
+
+            // Copies the _id and updatedAt the service assigned back onto the caller's documents
+            @Override
+            public void insertAll(List<Document> newGarments) {
+                List<Document> stored = post("/garments", new Document("garments", newGarments)).getList("garments", Document.class);
+                for (int i = 0; i < newGarments.size(); i++) {
+                    newGarments.get(i).putAll(stored.get(i));
+                }
+            }
+
+            @Override
+            public List<Document> page(String sortField, Object afterSortValue, Object afterId, int limit) {
+                return items(get("/garments/page", new Document("sortField", sortField)
+                    .append("afterSortValue", afterSortValue)
+                    .append("afterId", afterId)
+                    .append("limit", limit)));
+            }
+
+            @Override
+            public List<Document> findByIds(Collection<Object> garmentIds) {
+                return items(get("/garments/byIds", new Document("ids", new ArrayList<>(garmentIds))));
+            }
+
+            @Override
+            public AutoCloseable watch(CatalogListener listener) {
+                throw new UnsupportedOperationException("The shop service does not push catalog changes");
+            }
+
+            @Override
+            public List<Document> modifiedSince(Date since) {
+                return items(get("/garments/modifiedSince", new Document("since", since)));
+            }
+        }
+
+        // User records and password hashes stay on the service; clients sign in through accounts()
+        private static class Users implements UserRepository {
+            @Override
+            public Document findByUsername(String username) {
+                throw new UnsupportedOperationException("User records are only available on the shop service");
+            }
+
+            @Override
+            public boolean insert(Document user) {
+                throw new UnsupportedOperationException("User records are only available on the shop service");
+            }
+
+            @Override
+            public void updateCredentials(String username, Document credentials) {
+                throw new UnsupportedOperationException("User records are only available on the shop service");
+            }
+        }
+
+        private class Cart implements CartRepository {
+            @Override
+            public List<Document> findByUsername(String username) {
+                return items(get("/cart", new Document("username", username)));
+            }
+
+            @Override
+            public void add(Document addition) {
+                post("/cart/add", addition);
+            }
+
+            @Override
+            public void remove(String username, Object lineId) {
+                post("/cart/remove", new Document("username", username).append("lineId", lineId));
+            }
+
+            @Override
+            public void applyChanges(String username, List<Document> additions, Collection<Object> removedIds, Map<Object, Integer> quantities) {
+                // JSON keys are strings, so quantities travel as a list of pairs
+                List<Document> quantityList = new ArrayList<>();
+                for (Map.Entry<Object, Integer> entry : quantities.entrySet()) {
+                    quantityList.add(new Document("lineId", entry.getKey()).append("quantity", entry.getValue()));
+                }
+                post("/cart/apply", new Document("username", username)
+                    .append("additions", additions)
+                    .append("removedIds", new ArrayList<>(removedIds))
+                    .append("quantities", quantityList));
+            }
+        }
+
+        private class Orders implements OrderRepository {
+            @Override
+            public List<Document> findByUsername(String username) {
+                return items(get("/orders", new Document("username", username)));
+            }
+
+            @Override
+            public List<Document> page(String username, Date beforeCreatedAt, Object beforeId, int limit) {
+                return items(get("/orders/page", new Document("username", username)
+                    .append("beforeCreatedAt", beforeCreatedAt)
+                    .append("beforeId", beforeId)
+                    .append("limit", limit)));
+            }
+
+            @Override
+            public Document summary(String username) {
+                return get("/orders/summary", new Document("username", username));
+            }
+
+            @Override
+            public void place(Document header, List<Document> lines, String username, List<Object> cartItemIds) {
+                post("/orders/place", new Document("header", header)
+                    .append("lines", lines)
+                    .append("username", username)
+                    .append("cartItemIds", cartItemIds));
+            }
+        }
+
+        private class Inventory implements InventoryRepository {
+            @Override
+            public Map<String, Integer> available(Object garmentId) {
+                Document available = get("/inventory", new Document("garmentId", garmentId)).get("available", Document.class);
+                Map<String, Integer> units = new TreeMap<>();
+                available.forEach((size, count) -> units.put(size, ((Number) count).intValue()));
+                return units;
+            }
+
+            @Override
+            public void restock(Object garmentId, String size, int units) {
+                post("/inventory/restock", new Document("garmentId", garmentId).append("size", size).append("units", units));
+            }
+
+            @Override
+            public boolean reserve(String username, Object garmentId, String size, int units) {
+                return post("/inventory/reserve", new Document("username", username)
+                    .append("garmentId", garmentId)
+                    .append("size", size)
+                    .append("units", units)).getBoolean("reserved");
+            }
+
+            // Lapsed holds are returned by the service's own reconcile timer
+            @Override
+            public void reconcile() {
+            }
+        }
+
+        private class RemoteAccounts implements Accounts {
+            @Override
+            public AuthOutcome signIn(String username, char[] password) {
+                return call("/auth/login", username, password);
+            }
+
+            @Override
+            public AuthOutcome register(String username, char[] password) {
+                return call("/auth/register", username, password);
+            }
+
+            private AuthOutcome call(String path, String username, char[] password) {
+                Document response = post(path, new Document("username", username).append("password", new String(password)));
+                if (response.getString("token") != null) {
+                    sessionTokens.put(username, response.getString("token"));
+                }
+                return AuthOutcome.valueOf(response.getString("outcome"));
+            }
+        }
+    }
+
+    // Keeps a copy of the catalog, the carts and the users who signed in on this
+    // machine in a LocalLog, so the app starts from the copy in milliseconds and goes
+    // on browsing and building carts while the store it mirrors is slow or down. Cart
+    // changes and orders are applied to the copy straight away and queued in the log;
+    // a background thread sends the queue in order whenever the store answers. Sending
+    // twice is harmless: cart adds carry operation ids and orders their header _id.
+    // Enabled with -Dshoppie.offlineDir=<directory>.
+    static class OfflineShopStore implements ShopStore {
+        private static final String GARMENT = "garment";
+        private static final String GARMENT_REMOVED = "garmentRemoved";
+        private static final String CATALOG_SYNCED = "catalogSynced";
+        private static final String USER = "user";
+        private static final String CART = "cart";
+        private static final String CART_CHANGE = "cartChange";
+        private static final String ORDER = "order";
+        private static final String SENT = "sent";
+        private static final String REJECTED = "rejected";
+        private static final String REJECTION_SEEN = "rejectionSeen";
+        private static final String REJECTED_STATUS = "Rejected";
+        private static final int COMPACT_MIN_RECORDS = 10000;
+        private static final int SEND_ATTEMPTS = 3;
+
+        private final Supplier<ShopStore> connector;
+        private final InMemoryShopStore local = new InMemoryShopStore();
+        private final Map<String, Document> users = new ConcurrentHashMap<>();
+        private final Set<String> cartOwners = ConcurrentHashMap.newKeySet();
+        // Queued writes by operation id, oldest first; guarded by this
+        private final Map<Object, Document> pending = new LinkedHashMap<>();
+        private final Map<Object, Integer> failedSends = new HashMap<>();
+        // When an operation the store turned down may be sent again; sync thread only
+        private final Map<Object, Long> retryAt = new HashMap<>();
+        // Writes the store turned down for good by operation id; guarded by this
+        private final Map<Object, Document> rejected = new LinkedHashMap<>();
+        private volatile Consumer<Document> rejectionListener;
+        private final ScheduledExecutorService syncThread = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "offline-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final AtomicBoolean syncQueued = new AtomicBoolean();
+        private final GarmentRepository garments = new Garments();
+        private final UserRepository userRepository = new Users();
+        private final CartRepository cart = new Cart();
+        private final OrderRepository orders = new Orders();
+        private final InventoryRepository inventory = new Inventory();
+        private LocalLog log;
+        private volatile ShopStore upstream;
+        private volatile boolean online;
+        private volatile boolean offlineReported;
+        private volatile boolean catalogSynced;
+        private volatile Date watermark = new Date(0);
+        // Only touched by the sync thread
+        private boolean upstreamPrepared;
+        private AutoCloseable catalogSubscription;
+
+        private OfflineShopStore(Supplier<ShopStore> connector) {
+            this.connector = connector;
+        }
+
+        // Reads the copy back from the log and starts syncing with the store in the background
+        static OfflineShopStore open(Path path, Supplier<ShopStore> connector) throws IOException {
+            OfflineShopStore store = new OfflineShopStore(connector);
+            store.log = LocalLog.open(path, store::restore);
+            StartupTimer.mark("offline copy read");
+            store.syncThread.scheduleWithFixedDelay(store::sync, 0, OFFLINE_SYNC_MS, TimeUnit.MILLISECONDS);
+            return store;
+        }
+
+        @Override
+        public GarmentRepository garments() {
+            return garments;
+        }
+
+        @Override
+        public UserRepository users() {
+            return userRepository;
+        }
+
+        @Override
+        public CartRepository cart() {
+            return cart;
+        }
+
+        @Override
+        public OrderRepository orders() {
+            return orders;
+        }
+
+        @Override
+        public InventoryRepository inventory() {
+            return inventory;
+        }
+
+        // The sync thread prepares the mirrored store once it connects
+        @Override
+        public void prepare() {
+        }
+
+        // Rebuilds the copy from one log record; runs before the sync thread starts
+        private void restore(Document record) {
+            switch (record.getString("t")) {
+                case GARMENT:
+                    Document garment = record.get("garment", Document.class);
+                    local.garments().insertAll(List.of(garment));
+                    advanceWatermark(garment);
+                    break;
+                case GARMENT_REMOVED:
+                    local.removeGarment(record.get("garmentId"));
+                    break;
+                case CATALOG_SYNCED:
+                    catalogSynced = true;
+                    break;
+                case USER:
+                    Document user = record.get("user", Document.class);
+                    users.put(user.getString("username"), user);
+                    break;
+                case CART:
+                    local.replaceCart(record.getString("username"), record.getList("lines", Document.class));
+                    cartOwners.add(record.getString("username"));
+                    break;
+                case CART_CHANGE:
+                case ORDER:
+                    if (!record.getBoolean("applied", false)) {
+                        apply(local, record);
+                        cartOwners.add(record.getString("username"));
+                    }
+                    pending.put(record.get("_id"), record);
+                    break;
+                case SENT:
+                    pending.remove(record.get("operationId"));
+                    break;
+                case REJECTED:
+                    pending.remove(record.get("operationId"));
+                    remember(record);
+                    break;
+                case REJECTION_SEEN:
+                    Document rejection = rejected.get(record.get("operationId"));
+                    if (rejection != null) {
+                        rejection.put("seen", true);
+                    }
+                    break;
+                default:
+                    System.out.println("Warning: Skipping an offline log record of unknown type " + record.getString("t"));
+            }
+        }
+
+        private static void apply(ShopStore target, Document operation) {
+            String username = operation.getString("username");
+            if (operation.getString("t").equals(CART_CHANGE)) {
+                Map<Object, Integer> quantities = new LinkedHashMap<>();
+                for (Document pair : operation.getList("quantities", Document.class)) {
+                    quantities.put(pair.get("lineId"), pair.getInteger("quantity"));
+                }
+                target.cart().applyChanges(username, operation.getList("additions", Document.class),
+                    operation.getList("removedIds", Object.class), quantities);
+            } else {
+                target.orders().place(operation.get("header", Document.class), operation.getList("lines", Document.class),
+                    username, operation.getList("cartItemIds", Object.class));
+            }
+        }
+
+        // Applies a write to the copy, where it assigns any missing ids, then makes
+        // it durable in the log before anyone can see it as done
+        private void queue(Document operation) {
+            synchronized (this) {
+                apply(local, operation);
+                cartOwners.add(operation.getString("username"));
+                log.append(operation, true);
+                pending.put(operation.get("_id"), operation);
+            }
+            requestSync();
+        }
+
+        private synchronized boolean hasPending(String username) {
+            for (Document operation : pending.values()) {
+                if (username.equals(operation.getString("username"))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // The mirrored store when it answered last time, otherwise null without trying it
+        private ShopStore reachable() {
+            return online ? upstream : null;
+        }
+
+        private ShopStore connected() {
+            ShopStore store = reachable();
+            if (store == null) {
+                throw new IllegalStateException("The " + STORE_TYPE + " store is unreachable; this needs a connection");
+            }
+            return store;
+        }
+
+        private void wentOffline(RuntimeException e) {
+            online = false;
+            if (!offlineReported) {
+                offlineReported = true;
+                System.out.println("Warning: Cannot reach the " + STORE_TYPE + " store, working from the offline copy: " + e.getMessage());
+            }
+        }
+
+        private void requestSync() {
+            if (online && syncQueued.compareAndSet(false, true)) {
+                syncThread.execute(() -> {
+                    syncQueued.set(false);
+                    sync();
+                });
+            }
+        }
+
+        private void sync() {
+            try {
+                ShopStore store = upstream;
+                if (store == null) {
+                    store = connector.get();
+                    upstream = store;
+                }
+                if (!online || offlineReported) {
+                    catchUp(store);
+                    online = true;
+                    offlineReported = false;
+                    System.out.println("Synced the offline copy with the " + STORE_TYPE + " store");
+                } else if (catalogSubscription == null) {
+                    for (Document garment : store.garments().modifiedSince(watermark)) {
+                        keep(garment);
+                    }
+                }
+                send(store);
+                compactIfWorthIt();
+            } catch (RuntimeException e) {
+                wentOffline(e);
+            }
+        }
+
+        // Brings the catalog copy level with the store, including deletes missed while offline
+        private void catchUp(ShopStore store) {
+            if (!upstreamPrepared) {
+                store.prepare();
+                upstreamPrepared = true;
+            }
+            closeSubscription();
+            Set<Object> removedDuringRead = ConcurrentHashMap.newKeySet();
+            // Subscribe before reading so nothing that changes during the read is missed
+            try {
+                catalogSubscription = store.garments().watch(new CatalogListener() {
+                    @Override
+                    public void changed(Document garment) {
+                        keep(garment);
+                    }
+
+                    @Override
+                    public void removed(Object garmentId) {
+                        removedDuringRead.add(garmentId);
+                        forget(garmentId);
+                    }
+
+                    @Override
+                    public void resynced(Set<Object> liveIds) {
+                        for (Document garment : local.garments().page("_id", null, null, Integer.MAX_VALUE)) {
+                            if (!liveIds.contains(garment.get("_id"))) {
+                                forget(garment.get("_id"));
+                            }
+                        }
+                    }
+                });
+            } catch (UnsupportedOperationException e) {
+                catalogSubscription = null;
+            }
+            Set<Object> seen = new HashSet<>();
+            CatalogPager pager = new CatalogPager(store::garments, "_id", CATALOG_LOAD_PAGE_SIZE);
+            while (pager.hasMore()) {
+                for (Document garment : pager.nextPage()) {
+                    if (!removedDuringRead.contains(garment.get("_id"))) {
+                        seen.add(garment.get("_id"));
+                        keep(garment);
+                    }
+                }
+            }
+            for (Document garment : local.garments().page("_id", null, null, Integer.MAX_VALUE)) {
+                if (!seen.contains(garment.get("_id"))) {
+                    forget(garment.get("_id"));
+                }
+            }
+            if (!catalogSynced) {
+                catalogSynced = true;
+                log.append(new Document("t", CATALOG_SYNCED), false);
+            }
+        }
+
+        private void closeSubscription() {
+            if (catalogSubscription != null) {
+                try {
+                    catalogSubscription.close();
+                } catch (Exception e) {
+                    System.out.println("Warning: Could not close the catalog subscription: " + e.getMessage());
+                }
+                catalogSubscription = null;
+            }
+        }
+
+        private synchronized void keep(Document garment) {
+            List<Document> current = local.garments().findByIds(List.of(garment.get("_id")));
+            if (!current.isEmpty() && current.get(0).equals(garment)) {
+                return;
+            }
+            local.garments().insertAll(List.of(new Document(garment)));
+            log.append(new Document("t", GARMENT).append("garment", garment), false);
+            advanceWatermark(garment);
+        }
+
+        private synchronized void forget(Object garmentId) {
+            local.removeGarment(garmentId);
+            log.append(new Document("t", GARMENT_REMOVED).append("garmentId", garmentId), false);
+        }
+
+        private void advanceWatermark(Document garment) {
+            Date updatedAt = garment.getDate("updatedAt");
+            if (updatedAt != null && updatedAt.after(watermark)) {
+                watermark = updatedAt;
+            }
+        }
+
+        // Sends queued writes oldest first. A write the store keeps turning down while
+        // it otherwise answers is set aside as rejected, so one bad write cannot hold
+        // up the rest.
+        private void send(ShopStore store) {
+            while (true) {
+                Document operation;
+                synchronized (this) {
+                    operation = pending.isEmpty() ? null : pending.values().iterator().next();
+                }
+                if (operation == null) {
+                    return;
+                }
+                Long due = retryAt.get(operation.get("_id"));
+                if (due != null && System.currentTimeMillis() < due) {
+                    // The queue goes in order, so everything behind it waits too
+                    return;
+                }
+                try {
+                    Metrics.time("offline.send", () -> {
+                        apply(store, operation);
+                        return null;
+                    });
+                } catch (OutOfStockException e) {
+                    // Asking again will not bring the stock back
+                    reject(operation, e.getMessage());
+                    continue;
+                } catch (SignInRequiredException e) {
+                    // The shop service takes it once its user signs in again
+                    return;
+                } catch (RuntimeException e) {
+                    // Throws when the store is down, which ends this round and takes the copy offline
+                    store.garments().isEmpty();
+                    // The store answers but turned this down: back off without going offline
+                    int failures = failedSends.merge(operation.get("_id"), 1, Integer::sum);
+                    if (failures < SEND_ATTEMPTS) {
+                        long backoffMs = OFFLINE_SYNC_MS << failures;
+                        retryAt.put(operation.get("_id"), System.currentTimeMillis() + backoffMs);
+                        System.out.println("Warning: The " + STORE_TYPE + " store turned down a queued " + operation.getString("t")
+                            + " for " + operation.getString("username") + ", trying again in " + backoffMs / 1000 + " s: " + e.getMessage());
+                        return;
+                    }
+                    reject(operation, e.getMessage());
+                    continue;
+                }
+                retryAt.remove(operation.get("_id"));
+                synchronized (this) {
+                    pending.remove(operation.get("_id"));
+                    failedSends.remove(operation.get("_id"));
+                    log.append(new Document("t", SENT).append("operationId", operation.get("_id")), false);
+                }
+            }
+        }
+
+        // Takes a write the store turned down for good off the queue and out of the
+        // copy, and keeps a record of it in the log; a rejected order stays in its
+        // user's history with every line marked Rejected
+        private void reject(Document operation, String reason) {
+            Object operationId = operation.get("_id");
+            String kind = operation.getString("t");
+            String username = operation.getString("username");
+            Document rejection = new Document("t", REJECTED)
+                .append("operationId", operationId)
+                .append("kind", kind)
+                .append("username", username)
+                .append("reason", reason)
+                .append("rejectedAt", new Date())
+                .append("seen", false);
+            if (kind.equals(ORDER)) {
+                List<Document> lines = new ArrayList<>();
+                for (Document line : operation.getList("lines", Document.class)) {
+                    Document rejectedLine = new Document(line).append("status", REJECTED_STATUS).append("rejectedReason", reason);
+                    rejectedLine.putIfAbsent("_id", new ObjectId());
+                    lines.add(rejectedLine);
+                }
+                rejection.append("orderId", operation.get("header", Document.class).get("_id")).append("lines", lines);
+            }
+            retryAt.remove(operationId);
+            synchronized (this) {
+                pending.remove(operationId);
+                failedSends.remove(operationId);
+                log.append(rejection, true);
+                remember(rejection);
+            }
+            System.out.println("Warning: The " + STORE_TYPE + " store turned down a queued " + kind + " for " + username + ": " + reason);
+            Consumer<Document> listener = rejectionListener;
+            if (listener != null) {
+                listener.accept(new Document(rejection));
+            }
+        }
+
+        private void remember(Document rejection) {
+            rejected.put(rejection.get("operationId"), rejection);
+            if (rejection.containsKey("orderId")) {
+                local.removeOrder(rejection.getString("username"), rejection.get("orderId"));
+            }
+        }
+
+        // Hands listener every rejection nobody has been shown yet and then each new
+        // one as it happens, on the sync thread; call seen() once the user has seen one
+        void onRejected(Consumer<Document> listener) {
+            rejectionListener = listener;
+            List<Document> unseen = new ArrayList<>();
+            synchronized (this) {
+                for (Document rejection : rejected.values()) {
+                    if (!rejection.getBoolean("seen", false)) {
+                        unseen.add(new Document(rejection));
+                    }
+                }
+            }
+            unseen.forEach(listener);
+        }
+
+        synchronized void seen(Object operationId) {
+            Document rejection = rejected.get(operationId);
+            if (rejection != null && !rejection.getBoolean("seen", false)) {
+                rejection.put("seen", true);
+                log.append(new Document("t", REJECTION_SEEN).append("operationId", operationId), false);
+            }
+        }
+
+        // The user's rejected order lines older than the cursor, if there is one
+        private synchronized List<Document> rejectedLines(String username, Date beforeCreatedAt, Object beforeId) {
+            Document cursor = beforeId == null ? null : new Document("createdAt", beforeCreatedAt).append("_id", beforeId);
+            List<Document> lines = new ArrayList<>();
+            for (Document rejection : rejected.values()) {
+                if (!username.equals(rejection.getString("username")) || !rejection.containsKey("lines")) {
+                    continue;
+                }
+                for (Document line : rejection.getList("lines", Document.class)) {
+                    if (cursor == null || InMemoryShopStore.NEWEST_FIRST.compare(cursor, line) < 0) {
+                        lines.add(new Document(line));
+                    }
+                }
+            }
+            return lines;
+        }
+
+        // Rewrites the log as one record per live item once most of it is superseded
+        private void compactIfWorthIt() {
+            synchronized (this) {
+                int live = local.garmentCount() + users.size() + cartOwners.size() + pending.size() + rejected.size();
+                if (log.records() < COMPACT_MIN_RECORDS || log.records() < 2 * live) {
+                    return;
+                }
+                List<Document> records = new ArrayList<>();
+                if (catalogSynced) {
+                    records.add(new Document("t", CATALOG_SYNCED));
+                }
+                for (Document garment : local.garments().page("_id", null, null, Integer.MAX_VALUE)) {
+                    records.add(new Document("t", GARMENT).append("garment", garment));
+                }
+                for (Document user : users.values()) {
+                    records.add(new Document("t", USER).append("user", user));
+                }
+                for (String owner : cartOwners) {
+                    records.add(new Document("t", CART).append("username", owner).append("lines", local.cart().findByUsername(owner)));
+                }
+                // The cart records already include queued cart changes, which replaying
+                // would count twice; placing an order again is a no-op
+                for (Document operation : pending.values()) {
+                    records.add(operation.getString("t").equals(CART_CHANGE) ? new Document(operation).append("applied", true) : operation);
+                }
+                records.addAll(rejected.values());
+                try {
+                    log.rewrite(records);
+                } catch (IOException e) {
+                    System.out.println("Warning: Could not compact the offline log: " + e.getMessage());
+                }
+            }
+        }
+
+        private class Garments implements GarmentRepository {
+            // Unknown until the copy has been synced once; an empty copy must not be
+            // taken for an empty catalog, or sample garments would be added twice
+            @Override
+            public boolean isEmpty() {
+                return catalogSynced && local.garments().isEmpty();
+            }
+
+            @Override
+            public void insertAll(List<Document> newGarments) {
+                connected().garments().insertAll(newGarments);
+                for (Document garment : newGarments) {
+                    keep(garment);
+                }
+            }
+
+            @Override
+            public List<Document> page(String sortField, Object afterSortValue, Object afterId, int limit) {
+                return local.garments().page(sortField, afterSortValue, afterId, limit);
+            }
+
+            @Override
+            public List<Document> findByIds(Collection<Object> garmentIds) {
+                return local.garments().findByIds(garmentIds);
+            }
+
+            @Override
+            public AutoCloseable watch(CatalogListener listener) {
+                return local.garments().watch(listener);
+            }
+
+            @Override
+            public List<Document> modifiedSince(Date since) {
+                return local.garments().modifiedSince(since);
+            }
+        }
+
+        // Users who signed in here are remembered with their password hash, so they
+        // can sign in again while the store is down. Registering needs the store.
+        private class Users implements UserRepository {
+            @Override
+            public Document findByUsername(String username) {
+                ShopStore store = reachable();
+                if (store != null) {
+                    try {
+                        Document user = store.users().findByUsername(username);
+                        remember(user);
+                        return user;
+                    } catch (RuntimeException e) {
+                        wentOffline(e);
+                    }
+                }
+                Document user = users.get(username);
+                return user != null ? new Document(user) : null;
+            }
+
+            @Override
+            public boolean insert(Document user) {
+                boolean inserted = connected().users().insert(user);
+                if (inserted) {
+                    remember(user);
+                }
+                return inserted;
+            }
+
+            @Override
+            public void updateCredentials(String username, Document credentials) {
+                connected().users().updateCredentials(username, credentials);
+                Document user = users.get(username);
+                if (user != null) {
+                    Document updated = new Document(user);
+                    updated.putAll(credentials);
+                    updated.remove("password");
+                    remember(updated);
+                }
+            }
+
+            private void remember(Document user) {
+                if (user != null && !user.equals(users.get(user.getString("username")))) {
+                    users.put(user.getString("username"), new Document(user));
+                    log.append(new Document("t", USER).append("user", user), false);
+                }
+            }
+        }
+
+        private class Cart implements CartRepository {
+            // The store's cart while it answers and nothing is queued for the user,
+            // otherwise the copy, which already includes the queued changes
+            @Override
+            public List<Document> findByUsername(String username) {
+                ShopStore store = reachable();
+                if (store != null && !hasPending(username)) {
+                    try {
+                        List<Document> lines = store.cart().findByUsername(username);
+                        synchronized (OfflineShopStore.this) {
+                            if (!hasPending(username)) {
+                                if (!lines.equals(local.cart().findByUsername(username))) {
+                                    local.replaceCart(username, lines);
+                                    log.append(new Document("t", CART).append("username", username).append("lines", lines), false);
+                                }
+                                cartOwners.add(username);
+                                return lines;
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        wentOffline(e);
+                    }
+                }
+                return local.cart().findByUsername(username);
+            }
+
+            @Override
+            public void add(Document addition) {
+                applyChanges(addition.getString("username"), List.of(addition), List.of(), Map.of());
+            }
+
+            @Override
+            public void remove(String username, Object lineId) {
+                applyChanges(username, List.of(), List.of(lineId), Map.of());
+            }
+
+            @Override
+            public void applyChanges(String username, List<Document> additions, Collection<Object> removedIds, Map<Object, Integer> quantities) {
+                List<Document> additionCopies = new ArrayList<>();
+                for (Document addition : additions) {
+                    additionCopies.add(new Document(addition));
+                }
+                List<Document> quantityList = new ArrayList<>();
+                for (Map.Entry<Object, Integer> entry : quantities.entrySet()) {
+                    quantityList.add(new Document("lineId", entry.getKey()).append("quantity", entry.getValue()));
+                }
+                queue(new Document("t", CART_CHANGE)
+                    .append("_id", new ObjectId())
+                    .append("username", username)
+                    .append("additions", additionCopies)
+                    .append("removedIds", new ArrayList<>(removedIds))
+                    .append("quantities", quantityList));
+            }
+        }
+
+        // History comes from the store while it answers; offline only the orders
+        // placed on this machine are known
+        // Orders the store turned down are only in the log, so every read adds them in
+        private class Orders implements OrderRepository {
+            @Override
+            public List<Document> findByUsername(String username) {
+                List<Document> lines = new ArrayList<>(placed(username));
+                lines.addAll(rejectedLines(username, null, null));
+                lines.sort(InMemoryShopStore.NEWEST_FIRST);
+                return lines;
+            }
+
+            private List<Document> placed(String username) {
+                ShopStore store = reachable();
+                if (store != null) {
+                    try {
+                        return store.orders().findByUsername(username);
+                    } catch (RuntimeException e) {
+                        wentOffline(e);
+                    }
+                }
+                return local.orders().findByUsername(username);
+            }
+
+            @Override
+            public List<Document> page(String username, Date beforeCreatedAt, Object beforeId, int limit) {
+                List<Document> lines = new ArrayList<>(placedPage(username, beforeCreatedAt, beforeId, limit));
+                List<Document> rejectedLines = rejectedLines(username, beforeCreatedAt, beforeId);
+                if (rejectedLines.isEmpty()) {
+                    return lines;
+                }
+                lines.addAll(rejectedLines);
+                lines.sort(InMemoryShopStore.NEWEST_FIRST);
+                return lines.size() > limit ? new ArrayList<>(lines.subList(0, limit)) : lines;
+            }
+
+            private List<Document> placedPage(String username, Date beforeCreatedAt, Object beforeId, int limit) {
+                ShopStore store = reachable();
+                if (store != null) {
+                    try {
+                        return store.orders().page(username, beforeCreatedAt, beforeId, limit);
+                    } catch (RuntimeException e) {
+                        wentOffline(e);
+                    }
+                }
+                return local.orders().page(username, beforeCreatedAt, beforeId, limit);
+            }
+
+            @Override
+            public Document summary(String username) {
+                Set<Object> rejectedOrders = new HashSet<>();
+                for (Document line : rejectedLines(username, null, null)) {
+                    rejectedOrders.add(line.get("orderId"));
+                }
+                Document summary = placedSummary(username);
+                if (rejectedOrders.isEmpty()) {
+                    return summary;
+                }
+                Document byStatus = new Document(summary.get("byStatus", Document.class))
+                    .append(REJECTED_STATUS, rejectedOrders.size());
+                return new Document(summary)
+                    .append("orders", ((Number) summary.get("orders")).intValue() + rejectedOrders.size())
+                    .append("byStatus", byStatus);
+            }
+
+            private Document placedSummary(String username) {
+                ShopStore store = reachable();
+                if (store != null) {
+                    try {
+                        return store.orders().summary(username);
+                    } catch (RuntimeException e) {
+                        wentOffline(e);
+                    }
+                }
+                return local.orders().summary(username);
+            }
+
+            @Override
+            public void place(Document header, List<Document> lines, String username, List<Object> cartItemIds) {
+                queue(new Document("t", ORDER)
+                    .append("_id", new ObjectId())
+                    .append("header", header)
+                    .append("lines", lines)
+                    .append("username", username)
+                    .append("cartItemIds", new ArrayList<>(cartItemIds)));
+            }
+        }
+
+        // Stock is not copied; while the store is unreachable every size looks unlimited
+        // and orders queued meanwhile are checked against the stock when they are sent
+        private class Inventory implements InventoryRepository {
+            @Override
+            public Map<String, Integer> available(Object garmentId) {
+                ShopStore store = reachable();
+                if (store != null) {
+                    try {
+                        return store.inventory().available(garmentId);
+                    } catch (RuntimeException e) {
+                        wentOffline(e);
+                    }
+                }
+                return new TreeMap<>();
+            }
+
+            @Override
+            public void restock(Object garmentId, String size, int units) {
+                connected().inventory().restock(garmentId, size, units);
+            }
+
+            @Override
+            public boolean reserve(String username, Object garmentId, String size, int units) {
+                ShopStore store = reachable();
+                if (store != null) {
+                    try {
+                        return store.inventory().reserve(username, garmentId, size, units);
+                    } catch (RuntimeException e) {
+                        wentOffline(e);
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public void reconcile() {
+                ShopStore store = reachable();
+                if (store != null) {
+                    store.inventory().reconcile();
+                }
+            }
+        }
+    }
+
+    // Append-only log of BSON records in a memory-mapped file, owned by one process
+    // at a time. A record's body is written before its length and the length after it
+    // is kept at zero, so a crash part-way through an append leaves a zero length that
+    // ends the log the next time it is read. Appends survive the app crashing as soon
+    // as they are made; durable ones are also flushed to disk.
+    static class LocalLog implements AutoCloseable {
+        private static final int MIN_SIZE = 1 << 20;
+        private static final DocumentCodec CODEC = new DocumentCodec();
+
+        private final Path path;
+        private final FileChannel lockChannel;
+        private FileChannel channel;
+        private MappedByteBuffer map;
+        private int end;
+        private int records;
+
+        private LocalLog(Path path, FileChannel lockChannel) {
+            this.path = path;
+            this.lockChannel = lockChannel;
+        }
+
+        // Passes every record to replay in the order they were appended
+        static LocalLog open(Path path, Consumer<Document> replay) throws IOException {
+            Path directory = path.toAbsolutePath().getParent();
+            Files.createDirectories(directory);
+            FileChannel lockChannel = FileChannel.open(directory.resolve(path.getFileName() + ".lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock;
+            try {
+                lock = lockChannel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                lockChannel.close();
+                throw new IOException(path + " is in use by another copy of the app");
+            }
+            LocalLog log = new LocalLog(path, lockChannel);
+            log.map();
+            log.read(replay);
+            return log;
+        }
+
+        // Leaves the current channel and map alone if the file cannot be opened or mapped
+        private void map() throws IOException {
+            FileChannel opened = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer mapped;
+            try {
+                restrictToOwner(path);
+                mapped = opened.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(MIN_SIZE, opened.size()));
+            } catch (IOException | RuntimeException e) {
+                opened.close();
+                throw e;
+            }
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            channel = opened;
+            map = mapped;
+        }
+
+        // The log holds password hashes
+        private static void restrictToOwner(Path file) {
+            try {
+                Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException | IOException e) {
+                // Not a POSIX file system; the directory's permissions apply
+            }
+        }
+
+        private void read(Consumer<Document> replay) {
+            int position = 0;
+            while (position + 4 <= map.capacity()) {
+                int length = map.getInt(position);
+                if (length == 0) {
+                    break;
+                }
+                if (length < 5 || position + length + 4 > map.capacity() || map.get(position + length - 1) != 0) {
+                    System.out.println("Warning: The offline log " + path + " is damaged at byte " + position + "; ignoring the rest");
+                    break;
+                }
+                byte[] bytes = new byte[length];
+                map.get(position, bytes);
+                Document record;
+                try {
+                    record = CODEC.decode(new BsonBinaryReader(ByteBuffer.wrap(bytes)), DecoderContext.builder().build());
+                } catch (RuntimeException e) {
+                    System.out.println("Warning: The offline log " + path + " is damaged at byte " + position + "; ignoring the rest");
+                    break;
+                }
+                replay.accept(record);
+                position += length;
+                records++;
+            }
+            end = position;
+            // Anything after a damaged record is unreachable, and appends rely on a zero length here
+            if (end + 4 <= map.capacity()) {
+                map.putInt(end, 0);
+            }
+        }
+
+        synchronized void append(Document record, boolean durable) {
+            byte[] bytes = encode(record);
+            int needed = end + bytes.length + 4;
+            if (needed > map.capacity()) {
+                try {
+                    map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(needed, 2L * map.capacity()));
+                    map.order(ByteOrder.LITTLE_ENDIAN);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Could not grow the offline log " + path, e);
+                }
+            }
+            map.put(end + 4, bytes, 4, bytes.length - 4);
+            map.putInt(end + bytes.length, 0);
+            map.putInt(end, bytes.length);
+            if (durable) {
+                map.force(end, bytes.length + 4);
+            }
+            end += bytes.length;
+            records++;
+        }
+
+        // Records appended since the log was opened or last rewritten
+        synchronized int records() {
+            return records;
+        }
+
+        // Replaces the whole log with the given records, through a new file moved into place
+        synchronized void rewrite(List<Document> live) throws IOException {
+            Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+            try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                for (Document record : live) {
+                    ByteBuffer buffer = ByteBuffer.wrap(encode(record));
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                }
+                out.force(true);
+            }
+            map.force();
+            // The old file stays open and mapped until the new one is in place and
+            // mapped, so a move that fails leaves the log appending where it was
+            Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            FileChannel replaced = channel;
+            map();
+            replaced.close();
+            records = 0;
+            read(record -> { });
+        }
+
+        private static byte[] encode(Document record) {
+            BasicOutputBuffer buffer = new BasicOutputBuffer();
+            CODEC.encode(new BsonBinaryWriter(buffer), record, EncoderContext.builder().build());
+            return buffer.toByteArray();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            map.force();
+            channel.close();
+            lockChannel.close();
+        }
+    }
+
+    // Cart or order lines together with the garments they refer to, fetched off the EDT
+    private static class LineItems {
+        final List<Document> lines;
+        final Map<Object, Document> garments;
+
+        LineItems(List<Document> lines, Map<Object, Document> garments) {
+            this.lines = lines;
+            this.garments = garments;
+        }
+    }
+
+    // Signs shoppers in and creates their accounts
+    interface Accounts {
+        AuthOutcome signIn(String username, char[] password);
+        AuthOutcome register(String username, char[] password);
+    }
+
+    // Checks passwords on this machine against the user records in the store.
+    // Throttled names are turned away before any hashing, and accounts still
+    // holding a plaintext or cheaper hash are upgraded on success.
+    static class LocalAccounts implements Accounts {
+        private final UserRepository users;
+        private final PasswordHasher passwordHasher;
+        private final LoginThrottle loginThrottle = new LoginThrottle();
+
+        LocalAccounts(UserRepository users, PasswordHasher passwordHasher) {
+            this.users = users;
+            this.passwordHasher = passwordHasher;
+        }
+
+        @Override
+        public AuthOutcome signIn(String username, char[] password) {
+            if (loginThrottle.isLocked(username)) {
+                return AuthOutcome.THROTTLED;
+            }
+            Document user = users.findByUsername(username);
+            try {
+                if (!passwordHasher.verify(password, user)) {
+                    loginThrottle.failed(username);
+                    return AuthOutcome.INVALID;
+                }
+                loginThrottle.succeeded(username);
+                if (passwordHasher.needsRehash(user)) {
+                    try {
+                        users.updateCredentials(username, passwordHasher.hash(password));
+                    } catch (RuntimeException e) {
+                        // The old credentials still work, so the upgrade can wait for the next login
+                        System.out.println("Warning: Could not upgrade the password hash for " + username + ": " + e.getMessage());
+                    }
+                }
+                return AuthOutcome.SUCCESS;
+            } catch (RejectedExecutionException e) {
+                return AuthOutcome.BUSY;
+            }
+        }
+
+        @Override
+        public AuthOutcome register(String username, char[] password) {
+            // Cheaper than hashing a password for a name that is already taken
+            if (users.findByUsername(username) != null) {
+                return AuthOutcome.TAKEN;
+            }
+            Document credentials;
+            try {
+                credentials = passwordHasher.hash(password);
+            } catch (RejectedExecutionException e) {
+                return AuthOutcome.BUSY;
+            }
+            Document newUser = new Document("username", username);
+            newUser.putAll(credentials);
+            return users.insert(newUser) ? AuthOutcome.SUCCESS : AuthOutcome.TAKEN;
+        }
+
+        // Stored credentials for a password, for seeding many users that share one
+        Document credentials(char[] password) {
+            return passwordHasher.hash(password);
+        }
+    }
+
+    // Salted PBKDF2 password hashing on a small bounded pool, so a burst of logins
+    // queues up here instead of starving the EDT, the data service or the database.
+    // The iteration count is calibrated once at startup so a hash takes about the
+    // target time on this machine. Stored hashes keep the count they were made with
+    // and are upgraded on the next successful login once the count has gone up.
+    private static class PasswordHasher {
+        static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+        private static final int MIN_ITERATIONS = 100_000;
+        private static final int CALIBRATION_ITERATIONS = 20_000;
+        private static final int SALT_BYTES = 16;
+        private static final int KEY_BITS = 256;
+        private static final int QUEUE_CAPACITY = 64;
+
+        private final ThreadPoolExecutor workers;
+        private final CompletableFuture<Integer> iterations;
+        private final SecureRandom random = new SecureRandom();
+        // Hashed against when the user does not exist, so unknown names take as long as wrong passwords
+        private final byte[] decoySalt = new byte[SALT_BYTES];
+
+        PasswordHasher(long targetMs, int threads) {
+            // Anything beyond the queue is turned away with RejectedExecutionException
+            workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY), runnable -> {
+                    Thread thread = new Thread(runnable, "password-hasher");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+            random.nextBytes(decoySalt);
+            iterations = CompletableFuture.supplyAsync(() -> calibrate(targetMs), workers);
+        }
+
+        private static int calibrate(long targetMs) {
+            char[] sample = "calibration".toCharArray();
+            byte[] salt = new byte[SALT_BYTES];
+            // The first run pays for class loading and JIT warm-up
+            derive(sample, salt, CALIBRATION_ITERATIONS);
+            long start = System.nanoTime();
+            derive(sample, salt, CALIBRATION_ITERATIONS);
+            long elapsedNanos = Math.max(1, System.nanoTime() - start);
+            long calibrated = CALIBRATION_ITERATIONS * targetMs * 1_000_000L / elapsedNanos;
+            int chosen = (int) Math.max(MIN_ITERATIONS, Math.min(Integer.MAX_VALUE, calibrated));
+            System.out.println("Password hashing: " + chosen + " " + ALGORITHM + " iterations (target " + targetMs + " ms)");
+            return chosen;
+        }
+
+        // New credentials for the password at the current cost, as stored on the user
+        Document hash(char[] password) {
+            return onPool(() -> {
+                byte[] salt = new byte[SALT_BYTES];
+                random.nextBytes(salt);
+                int cost = iterations.join();
+                return new Document("algorithm", ALGORITHM)
+                    .append("iterations", cost)
+                    .append("salt", Base64.getEncoder().encodeToString(salt))
+                    .append("passwordHash", Base64.getEncoder().encodeToString(derive(password, salt, cost)));
+            });
+        }
+
+        // Accepts hashed credentials and, until they are migrated, legacy plaintext passwords
+        boolean verify(char[] password, Document user) {
+            return onPool(() -> {
+                if (user == null) {
+                    derive(password, decoySalt, iterations.join());
+                    return false;
+                }
+                if (user.containsKey("passwordHash")) {
+                    byte[] expected = Base64.getDecoder().decode(user.getString("passwordHash"));
+                    byte[] salt = Base64.getDecoder().decode(user.getString("salt"));
+                    return MessageDigest.isEqual(expected, derive(password, salt, user.getInteger("iterations")));
+                }
+                String plaintext = user.getString("password");
+                return plaintext != null
+                    && MessageDigest.isEqual(plaintext.getBytes(StandardCharsets.UTF_8), new String(password).getBytes(StandardCharsets.UTF_8));
+            });
+        }
+
+        boolean needsRehash(Document user) {
+            return !user.containsKey("passwordHash") || user.getInteger("iterations", 0) < iterations.join();
+        }
+
+        private static byte[] derive(char[] password, byte[] salt, int iterations) {
+            PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, KEY_BITS);
+            try {
+                return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+            } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                spec.clearPassword();
+            }
+        }
+
+        // Runs the work on the hashing pool and waits for it; the caller is already off the EDT
+        private <T> T onPool(Callable<T> work) {
+            Future<T> result = workers.submit(work);
+            try {
+                return result.get();
+            } catch (InterruptedException e) {
+                result.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted while hashing a password");
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+            }
+        }
+    }
+
+    // Counts failed logins per username. After MAX_FAILURES in a row the name is
+    // locked, for twice as long with every further failure up to MAX_LOCK_MS; a
+    // successful login clears it.
+    private static class LoginThrottle {
+        private static final int MAX_FAILURES = 5;
+        private static final long BASE_LOCK_MS = 30_000;
+        private static final long MAX_LOCK_MS = 15 * 60_000;
+        private static final int MAX_TRACKED = 10_000;
+
+        private static class Attempts {
+            int failures;
+            long lockedUntil;
+        }
+
+        private final ConcurrentHashMap<String, Attempts> attempts = new ConcurrentHashMap<>();
+
+        boolean isLocked(String username) {
+            Attempts user = attempts.get(username);
+            return user != null && user.lockedUntil > System.currentTimeMillis();
+        }
+
+        void failed(String username) {
+            if (attempts.size() >= MAX_TRACKED) {
+                // Keep guesses at random names from growing the map without bound
+                long now = System.currentTimeMillis();
+                attempts.values().removeIf(user -> user.lockedUntil <= now);
+            }
+            attempts.compute(username, (name, user) -> {
+                Attempts updated = user != null ? user : new Attempts();
+                updated.failures++;
+                if (updated.failures >= MAX_FAILURES) {
+                    long lockMs = Math.min(MAX_LOCK_MS, BASE_LOCK_MS << Math.min(16, updated.failures - MAX_FAILURES));
+                    updated.lockedUntil = System.currentTimeMillis() + lockMs;
+                }
+                return updated;
+            });
+        }
+
+        void succeeded(String username) {
+            attempts.remove(username);
+        }
+    }
+
+    // Runs blocking store calls on a small worker pool so the event dispatch thread
+    // never waits on the database. Calls time out, and cancelling the returned
+    // future interrupts the worker that is running it.
+    private static class DataService {
+        private static final int WORKER_THREADS = 4;
+
+        private final long timeoutMs;
+        private final ExecutorService workers = Executors.newFixedThreadPool(WORKER_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "data-access");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        DataService(long timeoutMs) {
+            this.timeoutMs = timeoutMs;
+        }
+
+        <T> CompletableFuture<T> call(Supplier<T> operation) {
+            CompletableFuture<T> result = new CompletableFuture<>();
+            FutureTask<Void> task = new FutureTask<>(() -> {
+                try {
+                    result.complete(operation.get());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            }, null);
+            result.whenComplete((value, error) -> {
+                if (error instanceof CancellationException || error instanceof TimeoutException) {
+                    task.cancel(true);
+                }
+            });
+            result.orTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+            workers.execute(task);
+            return result;
+        }
+    }
+
+    // Local copy of the signed-in user's cart. Edits show up immediately and are
+    // queued, coalesced and written back in batches by flush(). Every flush re-reads
+    // the stored cart and replays whatever is still pending on top of it, so changes
+    // made by another session of the same user are merged in rather than overwritten.
+    static class CartModel {
+        private final String username;
+        private final Supplier<CartRepository> repository;
+        private final Object flushLock = new Object();
+        private final Map<Object, Document> lines = new LinkedHashMap<>();
+        // Quantity increments keyed by operation id, see CartRepository
+        private final Map<Object, Document> pendingAdds = new LinkedHashMap<>();
+        // Adds that were in a failed batch and may already have been applied; they are
+        // resent as they are and never coalesced with newer adds
+        private final Set<Object> retriedAdds = new HashSet<>();
+        private final Set<Object> pendingRemovals = new LinkedHashSet<>();
+        private final Map<Object, Integer> pendingQuantities = new LinkedHashMap<>();
+        private boolean loaded;
+        // Bumped by every change to the lines, so views can tell when to catch up
+        private long version;
+
+        CartModel(String username, Supplier<CartRepository> repository) {
+            this.username = username;
+            this.repository = repository;
+        }
+
+        // The stored cart merged with local edits; fetched the first time only
+        List<Document> load() {
+            synchronized (this) {
+                if (loaded) {
+                    return lines();
+                }
+            }
+            refresh();
+            return lines();
+        }
+
+        synchronized List<Document> lines() {
+            List<Document> copy = new ArrayList<>();
+            for (Document line : lines.values()) {
+                copy.add(new Document(line));
+            }
+            return copy;
+        }
+
+        synchronized long version() {
+            return version;
+        }
+
+        synchronized boolean hasPendingChanges() {
+            return !pendingAdds.isEmpty() || !pendingRemovals.isEmpty() || !pendingQuantities.isEmpty();
+        }
+
+        // Adds the line's quantity to the line for the same garment and size, creating it if needed
+        synchronized void add(Document line) {
+            int quantity = lineQuantity(line);
+            Document pending = null;
+            for (Map.Entry<Object, Document> entry : pendingAdds.entrySet()) {
+                if (!retriedAdds.contains(entry.getKey()) && sameLine(entry.getValue(), line)) {
+                    pending = entry.getValue();
+                    break;
+                }
+            }
+            if (pending != null) {
+                pending.put("quantity", lineQuantity(pending) + quantity);
+            } else {
+                pending = new Document(line).append("_id", new ObjectId());
+                pendingAdds.put(pending.get("_id"), pending);
+            }
+            Document existing = findLine(line);
+            if (existing != null) {
+                existing.put("quantity", lineQuantity(existing) + quantity);
+            } else {
+                lines.put(pending.get("_id"), new Document(pending));
+            }
+            version++;
+        }
+
+        synchronized void remove(Object lineId) {
+            Document line = lines.remove(lineId);
+            pendingQuantities.remove(lineId);
+            if (line == null) {
+                return;
+            }
+            version++;
+            // Pending adds to the line go with it. If one of them created the line and
+            // was never sent, nothing was written that needs removing.
+            boolean writtenOrSent = true;
+            Iterator<Map.Entry<Object, Document>> adds = pendingAdds.entrySet().iterator();
+            while (adds.hasNext()) {
+                Map.Entry<Object, Document> add = adds.next();
+                if (sameLine(add.getValue(), line)) {
+                    if (add.getKey().equals(lineId) && !retriedAdds.contains(lineId)) {
+                        writtenOrSent = false;
+                    }
+                    retriedAdds.remove(add.getKey());
+                    adds.remove();
+                }
+            }
+            if (writtenOrSent) {
+                pendingRemovals.add(lineId);
+            }
+        }
+
+        synchronized void setQuantity(Object lineId, int quantity) {
+            Document line = lines.get(lineId);
+            if (line == null) {
+                return;
+            }
+            line.put("quantity", quantity);
+            version++;
+            Document pending = pendingAdds.get(lineId);
+            if (pending != null && !retriedAdds.contains(lineId)) {
+                // The line only exists locally, so its add carries the whole quantity
+                pending.put("quantity", quantity);
+                return;
+            }
+            // An absolute quantity supersedes increments that have not been sent yet
+            pendingAdds.entrySet().removeIf(add -> !retriedAdds.contains(add.getKey()) && sameLine(add.getValue(), line));
+            pendingQuantities.put(lineId, quantity);
+        }
+
+        // Quantity already in the cart for the garment and size of like
+        synchronized int quantityOf(Document like) {
+            Document line = findLine(like);
+            return line != null ? lineQuantity(line) : 0;
+        }
+
+        private Document findLine(Document like) {
+            for (Document line : lines.values()) {
+                if (sameLine(line, like)) {
+                    return line;
+                }
+            }
+            return null;
+        }
+
+        private static boolean sameLine(Document a, Document b) {
+            return Objects.equals(lineGarmentId(a), lineGarmentId(b)) && Objects.equals(a.getString("size"), b.getString("size"));
+        }
+
+        // Called off the EDT. Only one flush runs at a time; if the write fails the
+        // batch is put back in front of anything queued since.
+        void flush() {
+            synchronized (flushLock) {
+                List<Document> adds;
+                Set<Object> removals;
+                Map<Object, Integer> quantities;
+                synchronized (this) {
+                    adds = new ArrayList<>(pendingAdds.values());
+                    removals = new LinkedHashSet<>(pendingRemovals);
+                    quantities = new LinkedHashMap<>(pendingQuantities);
+                    pendingAdds.clear();
+                    retriedAdds.clear();
+                    pendingRemovals.clear();
+                    pendingQuantities.clear();
+                }
+                try {
+                    Metrics.time("op.cart.flush", () -> {
+                        repository.get().applyChanges(username, adds, removals, quantities);
+                        return null;
+                    });
+                } catch (RuntimeException e) {
+                    synchronized (this) {
+                        Map<Object, Document> requeuedAdds = new LinkedHashMap<>();
+                        for (Document add : adds) {
+                            if (findLine(add) != null) {
+                                requeuedAdds.put(add.get("_id"), add);
+                                retriedAdds.add(add.get("_id"));
+                            }
+                        }
+                        requeuedAdds.putAll(pendingAdds);
+                        pendingAdds.clear();
+                        pendingAdds.putAll(requeuedAdds);
+                        pendingRemovals.addAll(removals);
+                        for (Map.Entry<Object, Integer> quantity : quantities.entrySet()) {
+                            pendingQuantities.putIfAbsent(quantity.getKey(), quantity.getValue());
+                        }
+                    }
+                    throw e;
+                }
+                refresh();
+            }
+        }
+
+        // Re-reads the stored cart and replays local edits that are not written yet
+        void refresh() {
+            List<Document> stored = Metrics.time("op.cart.load", () -> repository.get().findByUsername(username));
+            synchronized (this) {
+                lines.clear();
+                for (Document line : stored) {
+                    Object lineId = line.get("_id");
+                    if (pendingRemovals.contains(lineId)) {
+                        continue;
+                    }
+                    Integer quantity = pendingQuantities.get(lineId);
+                    if (quantity != null) {
+                        line.put("quantity", quantity);
+                    }
+                    lines.put(lineId, line);
+                }
+                for (Document pending : pendingAdds.values()) {
+                    Document existing = findLine(pending);
+                    if (existing != null) {
+                        existing.put("quantity", lineQuantity(existing) + lineQuantity(pending));
+                    } else {
+                        lines.put(pending.get("_id"), new Document(pending));
+                    }
+                }
+                loaded = true;
+                version++;
+            }
+        }
+    }
 }
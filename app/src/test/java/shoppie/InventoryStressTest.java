@@ -0,0 +1,194 @@
+package shoppie;
+
+import com.sun.net.httpserver.HttpServer;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+import shoppie.OnlineGarmentShoppingApp.Accounts;
+import shoppie.OnlineGarmentShoppingApp.AuthOutcome;
+import shoppie.OnlineGarmentShoppingApp.InMemoryShopStore;
+import shoppie.OnlineGarmentShoppingApp.MongoShopStore;
+import shoppie.OnlineGarmentShoppingApp.Order;
+import shoppie.OnlineGarmentShoppingApp.OutOfStockException;
+import shoppie.OnlineGarmentShoppingApp.RemoteShopStore;
+import shoppie.OnlineGarmentShoppingApp.ShopService;
+import shoppie.OnlineGarmentShoppingApp.ShopStore;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+// Races many shoppers for one size of a freshly stocked garment, mixing checkouts
+// that use a cart hold, buy-now checkouts without one, replayed orders, holds
+// left to lapse and holds released early, while reconcile() runs alongside.
+// Passes when the units in stored orders plus the units left add up to what was
+// stocked, which is only possible if nothing was oversold and no hold leaked.
+class InventoryStressTest {
+    private static final String SIZE = "M";
+    private static final String PASSWORD = "stress-password";
+    private static final int SHOPPERS = 16;
+    private static final int UNITS = 100;
+    private static final int ATTEMPTS = 100;
+
+    @Test
+    void inMemoryStoreNeitherOversellsNorLeaks() throws InterruptedException {
+        race(new InMemoryShopStore());
+    }
+
+    // Through an in-process shop service, so holds and orders also pass its
+    // session checks and request validation
+    @Test
+    void shopServiceNeitherOversellsNorLeaks() throws IOException, InterruptedException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        ShopService.attach(server, new InMemoryShopStore());
+        server.start();
+        try {
+            RemoteShopStore store = new RemoteShopStore("http://127.0.0.1:" + server.getAddress().getPort());
+            for (int i = 0; i < SHOPPERS; i++) {
+                signIn(store.accounts(), "stress-shopper-" + i);
+            }
+            race(store);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void mongoStoreNeitherOversellsNorLeaks() throws InterruptedException {
+        assumeTrue(Boolean.getBoolean("shoppie.testMongo"), "Needs a MongoDB at localhost:27017 and -Dshoppie.testMongo=true");
+        ShopStore store = MongoShopStore.connect(OnlineGarmentShoppingApp.MONGO_URI, OnlineGarmentShoppingApp.DATABASE_NAME,
+            OnlineGarmentShoppingApp.MIN_POOL_SIZE);
+        store.prepare();
+        race(store);
+    }
+
+    private static void race(ShopStore store) throws InterruptedException {
+        Document garment = new Document("name", "Stress test garment")
+            .append("price", 10.0)
+            .append("category", "Clothing")
+            .append("sizes", List.of(SIZE));
+        store.garments().insertAll(new ArrayList<>(List.of(garment)));
+        Object garmentId = garment.get("_id");
+        store.inventory().restock(garmentId, SIZE, UNITS);
+
+        LongAdder failed = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService threads = Executors.newFixedThreadPool(SHOPPERS);
+        for (int i = 0; i < SHOPPERS; i++) {
+            String username = "stress-shopper-" + i;
+            threads.execute(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+                    int quantity = 1 + random.nextInt(3);
+                    try {
+                        switch (random.nextInt(4)) {
+                            case 0:
+                                if (store.inventory().reserve(username, garmentId, SIZE, quantity)) {
+                                    place(store, username, garmentId, quantity, false);
+                                }
+                                break;
+                            case 1:
+                                // Half of these are sent twice, as a retrying client or the offline queue would
+                                place(store, username, garmentId, quantity, random.nextBoolean());
+                                break;
+                            case 2:
+                                // Abandoned cart, left for reconcile() or the release below
+                                store.inventory().reserve(username, garmentId, SIZE, quantity);
+                                break;
+                            default:
+                                store.inventory().reserve(username, garmentId, SIZE, quantity);
+                                store.inventory().reserve(username, garmentId, SIZE, 0);
+                                break;
+                        }
+                    } catch (OutOfStockException e) {
+                        // Sold out is a normal answer
+                    } catch (RuntimeException e) {
+                        failed.increment();
+                        System.out.println("Error in " + username + ": " + e);
+                    }
+                }
+            });
+        }
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread reconciler = new Thread(() -> {
+            while (running.get()) {
+                store.inventory().reconcile();
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "inventory-stress-reconcile");
+        reconciler.setDaemon(true);
+        reconciler.start();
+        start.countDown();
+        threads.shutdown();
+        assertTrue(threads.awaitTermination(5, TimeUnit.MINUTES), "The shoppers did not finish");
+        running.set(false);
+        reconciler.join();
+        // Holds that have not lapsed yet go back the way a removed cart line's do
+        for (int i = 0; i < SHOPPERS; i++) {
+            store.inventory().reserve("stress-shopper-" + i, garmentId, SIZE, 0);
+        }
+        store.inventory().reconcile();
+
+        long sold = 0;
+        for (int i = 0; i < SHOPPERS; i++) {
+            for (Document line : store.orders().findByUsername("stress-shopper-" + i)) {
+                if (garmentId.equals(line.get("garmentId"))) {
+                    sold += line.getInteger("quantity");
+                }
+            }
+        }
+        int left = store.inventory().available(garmentId).getOrDefault(SIZE, 0);
+        assertEquals(0, failed.sum(), "Store calls failed");
+        assertTrue(sold <= UNITS, "Oversold: " + sold + " of " + UNITS);
+        assertEquals(UNITS, sold + left, "Units were lost or made up: sold " + sold + ", left " + left);
+    }
+
+    private static void place(ShopStore store, String username, Object garmentId, int quantity, boolean replay) {
+        Document item = new Document("garmentId", garmentId)
+            .append("size", SIZE)
+            .append("quantity", quantity)
+            .append("price", 10.0);
+        Order order = OnlineGarmentShoppingApp.newOrder(username, List.of(item), "Stress Shopper", "1 Load Test Lane", "555-0100");
+        store.orders().place(order.header, order.lines, username, List.of());
+        if (replay) {
+            // Fresh copies, as read back from a log or a request body
+            List<Document> lines = new ArrayList<>();
+            for (Document line : order.lines) {
+                lines.add(Document.parse(line.toJson(RemoteShopStore.JSON)));
+            }
+            store.orders().place(Document.parse(order.header.toJson(RemoteShopStore.JSON)), lines, username, List.of());
+        }
+    }
+
+    private static void signIn(Accounts accounts, String username) {
+        AuthOutcome outcome;
+        do {
+            outcome = accounts.register(username, PASSWORD.toCharArray());
+        } while (outcome == AuthOutcome.BUSY);
+        do {
+            outcome = accounts.signIn(username, PASSWORD.toCharArray());
+        } while (outcome == AuthOutcome.BUSY);
+        assertEquals(AuthOutcome.SUCCESS, outcome, "Could not sign " + username + " in");
+    }
+}
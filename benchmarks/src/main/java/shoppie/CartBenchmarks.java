@@ -0,0 +1,79 @@
+package shoppie;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Cart totals and the cart model's add/flush cycle against the in-memory store
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 3, jvmArgsAppend = "-Dshoppie.store=memory")
+public class CartBenchmarks {
+    private static final String USER = "benchmark";
+
+    @Param({"10", "200"})
+    int lines;
+
+    private final List<Document> cart = new ArrayList<>();
+    private final List<Document> additions = new ArrayList<>();
+    private OnlineGarmentShoppingApp.CartModel model;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < lines; i++) {
+            ObjectId garmentId = new ObjectId();
+            if (i % 5 == 0) {
+                // Lines written before garments were referenced by id embed the whole garment
+                cart.add(new Document("username", USER)
+                    .append("garment", new Document("_id", garmentId).append("price", 19.99))
+                    .append("size", "M"));
+            } else {
+                cart.add(new Document("username", USER)
+                    .append("garmentId", garmentId)
+                    .append("size", "M")
+                    .append("quantity", 1 + i % 3)
+                    .append("price", 10 + i % 50 + 0.99));
+            }
+            additions.add(new Document("username", USER)
+                .append("garmentId", garmentId)
+                .append("size", "L")
+                .append("quantity", 1)
+                .append("price", 24.99));
+        }
+        OnlineGarmentShoppingApp.InMemoryShopStore store = new OnlineGarmentShoppingApp.InMemoryShopStore();
+        model = new OnlineGarmentShoppingApp.CartModel(USER, store::cart);
+        model.load();
+    }
+
+    @Benchmark
+    public double cartTotal() {
+        return OnlineGarmentShoppingApp.cartTotal(cart);
+    }
+
+    // One add per line, coalesced locally and written back in a single flush
+    @Benchmark
+    public int addAndFlush() {
+        for (Document addition : additions) {
+            model.add(addition);
+        }
+        model.flush();
+        return model.lines().size();
+    }
+}
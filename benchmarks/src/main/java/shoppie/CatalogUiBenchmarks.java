@@ -0,0 +1,71 @@
+package shoppie;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Building product cards for a catalog. Cards are built headless and never shown;
+// ThemeSwitchBenchmarks measures the theme switch with cards on screen.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 3, jvmArgsAppend = {"-Djava.awt.headless=true", "-Dshoppie.store=memory"})
+public class CatalogUiBenchmarks {
+    @Param({"60", "1000"})
+    int garments;
+
+    private OnlineGarmentShoppingApp app;
+    private Path image;
+    private final List<Document> catalog = new ArrayList<>();
+
+    @Setup
+    public void setUp() throws Exception {
+        app = new OnlineGarmentShoppingApp();
+        image = Files.createTempFile("shoppie-benchmark", ".png");
+        ImageIO.write(new BufferedImage(400, 400, BufferedImage.TYPE_INT_RGB), "png", image.toFile());
+        for (int i = 0; i < garments; i++) {
+            catalog.add(new Document("_id", new ObjectId())
+                .append("name", "Garment " + i)
+                .append("price", 10 + i % 200 + 0.99)
+                .append("category", "Clothing")
+                .append("image", image.toUri().toString()));
+        }
+        // Every card is then a memory cache hit
+        app.preloadCardImage(image.toUri().toString()).get(10, TimeUnit.SECONDS);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(image);
+    }
+
+    @Benchmark
+    public void createProductCards(Blackhole blackhole) {
+        for (Document garment : catalog) {
+            blackhole.consume(app.createProductCard(garment));
+        }
+    }
+}
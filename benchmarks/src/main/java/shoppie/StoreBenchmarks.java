@@ -0,0 +1,136 @@
+package shoppie;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Catalog, cart and order data access against the in-memory stand-in store, which
+// answers the same queries as the Mongo store without a server
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 3, jvmArgsAppend = "-Dshoppie.store=memory")
+public class StoreBenchmarks {
+    private static final String USER = "benchmark";
+    private static final int ORDERS = 500;
+    // Checkout adds orders forever, so it starts over on a fresh store this often
+    private static final int CHECKOUTS_PER_STORE = 10000;
+
+    @Param({"1000", "20000"})
+    int catalogSize;
+
+    private OnlineGarmentShoppingApp.InMemoryShopStore store;
+    private final List<Object> garmentIds = new ArrayList<>();
+    private final List<Object> lookupIds = new ArrayList<>();
+    private OnlineGarmentShoppingApp.InMemoryShopStore checkoutStore;
+    private int checkouts;
+
+    @Setup
+    public void setUp() {
+        store = new OnlineGarmentShoppingApp.InMemoryShopStore();
+        Random random = new Random(42);
+        List<Document> catalog = new ArrayList<>();
+        for (int i = 0; i < catalogSize; i++) {
+            ObjectId garmentId = new ObjectId();
+            garmentIds.add(garmentId);
+            catalog.add(new Document("_id", garmentId)
+                .append("name", "Garment " + i)
+                .append("price", 5 + random.nextInt(300) + 0.99)
+                .append("category", "Clothing")
+                .append("sizes", List.of("S", "M", "L", "XL")));
+        }
+        store.garments().insertAll(catalog);
+        for (int i = 0; i < 30; i++) {
+            lookupIds.add(garmentIds.get(random.nextInt(garmentIds.size())));
+        }
+        for (int i = 0; i < ORDERS; i++) {
+            placeOrder(store, new Date(System.currentTimeMillis() - (ORDERS - i) * 60000L));
+        }
+        checkoutStore = new OnlineGarmentShoppingApp.InMemoryShopStore();
+    }
+
+    @Benchmark
+    public List<Document> catalogFirstPage() {
+        return store.garments().page("_id", null, null, OnlineGarmentShoppingApp.CATALOG_PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<Document> catalogFindByIds() {
+        return store.garments().findByIds(lookupIds);
+    }
+
+    @Benchmark
+    public List<Document> cartAddAndRemove() {
+        ObjectId opId = new ObjectId();
+        store.cart().applyChanges(USER, List.of(new Document("_id", opId)
+            .append("username", USER)
+            .append("garmentId", garmentIds.get(0))
+            .append("size", "M")
+            .append("quantity", 1)
+            .append("price", 19.99)), Collections.emptyList(), Collections.emptyMap());
+        store.cart().remove(USER, opId);
+        return store.cart().findByUsername(USER);
+    }
+
+    @Benchmark
+    public List<Document> ordersFirstPage() {
+        return store.orders().page(USER, null, null, OnlineGarmentShoppingApp.ORDER_PAGE_SIZE);
+    }
+
+    @Benchmark
+    public Document ordersSummary() {
+        return store.orders().summary(USER);
+    }
+
+    @Benchmark
+    public void checkout() {
+        if (++checkouts % CHECKOUTS_PER_STORE == 0) {
+            checkoutStore = new OnlineGarmentShoppingApp.InMemoryShopStore();
+        }
+        placeOrder(checkoutStore, new Date());
+    }
+
+    private void placeOrder(OnlineGarmentShoppingApp.InMemoryShopStore target, Date createdAt) {
+        ObjectId orderId = new ObjectId();
+        List<Document> headerLines = new ArrayList<>();
+        List<Document> orderLines = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            Object garmentId = garmentIds.get((orderLines.size() + checkouts) % garmentIds.size());
+            headerLines.add(new Document("garmentId", garmentId).append("size", "M").append("quantity", 1).append("price", 29.99));
+            orderLines.add(new Document("orderId", orderId)
+                .append("username", USER)
+                .append("garmentId", garmentId)
+                .append("size", "M")
+                .append("quantity", 1)
+                .append("price", 29.99)
+                .append("status", "Placed")
+                .append("createdAt", createdAt));
+        }
+        Document header = new Document("_id", orderId)
+            .append("username", USER)
+            .append("status", "Placed")
+            .append("total", 59.98)
+            .append("lines", headerLines)
+            .append("createdAt", createdAt);
+        target.orders().place(header, orderLines, USER, Collections.emptyList());
+    }
+}
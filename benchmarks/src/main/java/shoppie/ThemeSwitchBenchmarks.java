@@ -0,0 +1,95 @@
+package shoppie;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import javax.swing.JFrame;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.SwingUtilities;
+import java.awt.GraphicsEnvironment;
+import java.awt.GridLayout;
+import java.awt.Toolkit;
+import java.awt.image.BufferedImage;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Switching the theme with a catalog's worth of product cards in a realized,
+// showing frame, including the repaint the switch causes; a switch should cost
+// about the same whatever the catalog size. Needs a display: on a headless
+// machine run it under xvfb-run, or leave it out with -e ThemeSwitch.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 3, jvmArgsAppend = "-Dshoppie.store=memory")
+public class ThemeSwitchBenchmarks {
+    @Param({"60", "1000"})
+    int garments;
+
+    private OnlineGarmentShoppingApp app;
+    private Path image;
+    private JFrame frame;
+
+    @Setup
+    public void setUp() throws Exception {
+        if (GraphicsEnvironment.isHeadless()) {
+            throw new IllegalStateException("The theme switch benchmark needs a display; run it under xvfb-run");
+        }
+        app = new OnlineGarmentShoppingApp();
+        image = Files.createTempFile("shoppie-benchmark", ".png");
+        ImageIO.write(new BufferedImage(400, 400, BufferedImage.TYPE_INT_RGB), "png", image.toFile());
+        app.preloadCardImage(image.toUri().toString()).get(10, TimeUnit.SECONDS);
+        SwingUtilities.invokeAndWait(() -> {
+            JPanel grid = new JPanel(new GridLayout(0, 4, 10, 10));
+            for (int i = 0; i < garments; i++) {
+                grid.add(app.createProductCard(new Document("_id", new ObjectId())
+                    .append("name", "Garment " + i)
+                    .append("price", 10 + i % 200 + 0.99)
+                    .append("category", "Clothing")
+                    .append("image", image.toUri().toString())));
+            }
+            frame = new JFrame("Theme switch benchmark");
+            frame.add(new JScrollPane(grid));
+            frame.setSize(1200, 900);
+            frame.setVisible(true);
+        });
+        settle();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        SwingUtilities.invokeAndWait(frame::dispose);
+        Files.deleteIfExists(image);
+    }
+
+    // Switches on the event dispatch thread, as the app does, and returns once the
+    // repaint the switch queued has been painted
+    @Benchmark
+    public void switchTheme() throws InterruptedException, InvocationTargetException {
+        SwingUtilities.invokeAndWait(app::toggleTheme);
+        settle();
+    }
+
+    // Repaints are queued as events, so an empty event behind them runs after they are done
+    private static void settle() throws InterruptedException, InvocationTargetException {
+        SwingUtilities.invokeAndWait(() -> { });
+        Toolkit.getDefaultToolkit().sync();
+    }
+}
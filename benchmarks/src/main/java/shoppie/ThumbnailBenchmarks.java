@@ -0,0 +1,74 @@
+package shoppie;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// The work loadImage does off the EDT once the bytes have arrived: decoding a
+// photo with subsampling and scaling it down to a card thumbnail
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 3, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ThumbnailBenchmarks {
+    private static final int THUMBNAIL_SIZE = 100;
+
+    @Param({"1200", "4000"})
+    int sourceWidth;
+
+    private byte[] jpeg;
+    private BufferedImage decoded;
+
+    @Setup
+    public void setUp() throws IOException {
+        jpeg = syntheticJpeg(sourceWidth, sourceWidth * 3 / 4);
+        decoded = ImageIO.read(new ByteArrayInputStream(jpeg));
+    }
+
+    @Benchmark
+    public BufferedImage decodeAndScale() throws IOException {
+        BufferedImage image = OnlineGarmentShoppingApp.ThumbnailScaler.decode(new ByteArrayInputStream(jpeg),
+            THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+        return OnlineGarmentShoppingApp.ThumbnailScaler.scale(image, THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+    }
+
+    @Benchmark
+    public BufferedImage scaleDecoded() {
+        return OnlineGarmentShoppingApp.ThumbnailScaler.scale(decoded, THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+    }
+
+    private static byte[] syntheticJpeg(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = image.createGraphics();
+        g2d.setPaint(new GradientPaint(0, 0, Color.DARK_GRAY, width, height, Color.LIGHT_GRAY));
+        g2d.fillRect(0, 0, width, height);
+        g2d.setColor(Color.WHITE);
+        for (int x = 0; x < width; x += 40) {
+            g2d.drawLine(x, 0, width - x, height);
+        }
+        g2d.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return out.toByteArray();
+    }
+}